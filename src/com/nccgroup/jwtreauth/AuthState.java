@@ -0,0 +1,615 @@
+/*
+Copyright 2022 NCC Group
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    https://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.nccgroup.jwtreauth;
+
+import burp.IHttpService;
+import com.nccgroup.jwtreauth.utils.HeaderTemplate;
+import com.nccgroup.jwtreauth.utils.JsonPathExtractor;
+import com.nccgroup.jwtreauth.utils.JwtMinter;
+import javax.validation.constraints.NotNull;
+
+import java.net.URL;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.regex.Pattern;
+
+/**
+ * Immutable snapshot of everything the TokenListener needs to process a message.
+ * <p>
+ * The listener publishes a new snapshot for every change, so a thread handling a message
+ * reads a single consistent state and can never see a header built from one token
+ * and a prefix belonging to another.
+ * The header template is compiled eagerly whenever the token, header name or header value prefix
+ * change, and carried over unchanged by every other update, so reading it never has to build anything.
+ */
+final class AuthState {
+    private final URL authorizeURL;
+    private final String headerName;
+    private final String headerValuePrefix;
+    private final TokenExtractionMode tokenExtractionMode;
+    private final Pattern tokenPattern;
+    private final JsonPathExtractor tokenJsonPath;
+    private final int maxTokenScanLength;
+    private final Duration refreshMargin;
+    private final Duration tokenGracePeriod;
+    private final TokenSource tokenSource;
+    private final OAuthGrant oauthGrant;
+    private final JwtMinter jwtMinter;
+    private final FailureSignature failureSignature;
+    private final boolean replayFailedRequests;
+    private final TokenDelivery tokenDelivery;
+    private final String cookieName;
+    private final InjectionRules injectionRules;
+    private final ToolRouting toolRouting;
+    // the values extracted for the injection rules from the last auth response, in rule order
+    private final String[] extractedValues;
+    private final boolean isListening;
+    private final boolean tokenSetManually;
+    private final Optional<String> token;
+    // the OAuth2 refresh token from the last auth response, if it had one
+    private final Optional<String> refreshToken;
+    // when a retired token stops being injected, in epoch millis, or 0 if the token is current
+    private final long tokenGraceDeadline;
+    // when the token expires according to our clock, in epoch millis, or 0 if it isn't known
+    private final long tokenExpiresAt;
+    // the request set from the context menu and the service it goes to, both null if there isn't one
+    private final IHttpService authorizeService;
+    private final byte[] authorizeRequest;
+    // whether the authorization request is saved with the settings, as it may hold credentials
+    private final boolean persistAuthorizeRequest;
+
+    // derived from the fields above
+    private final HeaderTemplate headerTemplate;
+    // the extracted values with the current token filled in for rules which inject it
+    private final String[] injectionValues;
+
+    private AuthState(Builder builder) {
+        this.authorizeURL = builder.authorizeURL;
+        this.headerName = builder.headerName;
+        this.headerValuePrefix = builder.headerValuePrefix;
+        this.tokenExtractionMode = builder.tokenExtractionMode;
+        this.tokenPattern = builder.tokenPattern;
+        this.tokenJsonPath = builder.tokenJsonPath;
+        this.maxTokenScanLength = builder.maxTokenScanLength;
+        this.refreshMargin = builder.refreshMargin;
+        this.tokenGracePeriod = builder.tokenGracePeriod;
+        this.tokenSource = builder.tokenSource;
+        this.oauthGrant = builder.oauthGrant;
+        this.jwtMinter = builder.jwtMinter;
+        this.failureSignature = builder.failureSignature;
+        this.replayFailedRequests = builder.replayFailedRequests;
+        this.tokenDelivery = builder.tokenDelivery;
+        this.cookieName = builder.cookieName;
+        this.injectionRules = builder.injectionRules;
+        this.toolRouting = builder.toolRouting;
+        this.extractedValues = builder.extractedValues;
+        this.isListening = builder.isListening;
+        this.tokenSetManually = builder.tokenSetManually;
+        this.token = builder.token;
+        this.refreshToken = builder.refreshToken;
+        this.tokenGraceDeadline = builder.tokenGraceDeadline;
+        this.tokenExpiresAt = builder.tokenExpiresAt;
+        this.authorizeService = builder.authorizeService;
+        this.authorizeRequest = builder.authorizeRequest;
+        this.persistAuthorizeRequest = builder.persistAuthorizeRequest;
+
+        var previous = builder.headerTemplate;
+        if (token.isEmpty()) {
+            this.headerTemplate = null;
+        } else if (previous != null && previous.isFor(headerName, headerValuePrefix, token.get())) {
+            this.headerTemplate = previous;
+        } else {
+            this.headerTemplate = HeaderTemplate.compile(headerName, headerValuePrefix, token.get());
+        }
+
+        var rules = injectionRules.getRules();
+        this.injectionValues = extractedValues.clone();
+        for (int i = 0; i < injectionValues.length; i++) {
+            if (rules.get(i).getSource() == InjectionRules.Source.Token) injectionValues[i] = token.orElse(null);
+        }
+    }
+
+    /**
+     * Create the state the listener starts in, with no token or authorization request.
+     */
+    static @NotNull AuthState initial(
+            @NotNull URL authorizeURL,
+            @NotNull String headerName,
+            @NotNull String headerValuePrefix,
+            @NotNull TokenExtractionMode tokenExtractionMode,
+            @NotNull Pattern tokenPattern,
+            @NotNull JsonPathExtractor tokenJsonPath,
+            int maxTokenScanLength,
+            @NotNull Duration refreshMargin,
+            @NotNull Duration tokenGracePeriod,
+            @NotNull TokenSource tokenSource,
+            @NotNull OAuthGrant oauthGrant,
+            @NotNull JwtMinter jwtMinter,
+            @NotNull FailureSignature failureSignature,
+            boolean replayFailedRequests,
+            @NotNull TokenDelivery tokenDelivery,
+            @NotNull String cookieName,
+            boolean isListening
+    ) {
+        var builder = new Builder();
+        builder.authorizeURL = authorizeURL;
+        builder.headerName = headerName;
+        builder.headerValuePrefix = headerValuePrefix;
+        builder.tokenExtractionMode = tokenExtractionMode;
+        builder.tokenPattern = tokenPattern;
+        builder.tokenJsonPath = tokenJsonPath;
+        builder.maxTokenScanLength = maxTokenScanLength;
+        builder.refreshMargin = refreshMargin;
+        builder.tokenGracePeriod = tokenGracePeriod;
+        builder.tokenSource = tokenSource;
+        builder.oauthGrant = oauthGrant;
+        builder.jwtMinter = jwtMinter;
+        builder.failureSignature = failureSignature;
+        builder.replayFailedRequests = replayFailedRequests;
+        builder.tokenDelivery = tokenDelivery;
+        builder.cookieName = cookieName;
+        builder.injectionRules = InjectionRules.EMPTY;
+        builder.toolRouting = ToolRouting.ALL;
+        builder.extractedValues = new String[0];
+        builder.isListening = isListening;
+        builder.tokenSetManually = false;
+        builder.token = Optional.empty();
+        builder.refreshToken = Optional.empty();
+        builder.tokenGraceDeadline = 0;
+        builder.tokenExpiresAt = 0;
+        builder.authorizeService = null;
+        builder.authorizeRequest = null;
+        builder.persistAuthorizeRequest = false;
+
+        return new AuthState(builder);
+    }
+
+    AuthState withAuthorizeURL(@NotNull URL newAuthorizeURL) {
+        var builder = new Builder(this);
+        builder.authorizeURL = newAuthorizeURL;
+        return new AuthState(builder);
+    }
+
+    /**
+     * @param newAuthorizeService the service the request goes to
+     * @param newAuthorizeRequest the raw request, which is copied
+     */
+    AuthState withAuthorizeRequest(@NotNull IHttpService newAuthorizeService, @NotNull byte[] newAuthorizeRequest) {
+        var builder = new Builder(this);
+        builder.authorizeService = newAuthorizeService;
+        builder.authorizeRequest = newAuthorizeRequest.clone();
+        return new AuthState(builder);
+    }
+
+    AuthState withoutAuthorizeRequest() {
+        var builder = new Builder(this);
+        builder.authorizeService = null;
+        builder.authorizeRequest = null;
+        return new AuthState(builder);
+    }
+
+    AuthState withPersistAuthorizeRequest(boolean newPersistAuthorizeRequest) {
+        var builder = new Builder(this);
+        builder.persistAuthorizeRequest = newPersistAuthorizeRequest;
+        return new AuthState(builder);
+    }
+
+    AuthState withHeaderName(@NotNull String newHeaderName) {
+        var builder = new Builder(this);
+        builder.headerName = newHeaderName;
+        return new AuthState(builder);
+    }
+
+    AuthState withHeaderValuePrefix(@NotNull String newHeaderValuePrefix) {
+        var builder = new Builder(this);
+        builder.headerValuePrefix = newHeaderValuePrefix;
+        return new AuthState(builder);
+    }
+
+    AuthState withTokenPattern(@NotNull Pattern newTokenPattern) {
+        var builder = new Builder(this);
+        builder.tokenPattern = newTokenPattern;
+        return new AuthState(builder);
+    }
+
+    AuthState withTokenExtractionMode(@NotNull TokenExtractionMode newTokenExtractionMode) {
+        var builder = new Builder(this);
+        builder.tokenExtractionMode = newTokenExtractionMode;
+        return new AuthState(builder);
+    }
+
+    AuthState withTokenJsonPath(@NotNull JsonPathExtractor newTokenJsonPath) {
+        var builder = new Builder(this);
+        builder.tokenJsonPath = newTokenJsonPath;
+        return new AuthState(builder);
+    }
+
+    AuthState withMaxTokenScanLength(int newMaxTokenScanLength) {
+        var builder = new Builder(this);
+        builder.maxTokenScanLength = newMaxTokenScanLength;
+        return new AuthState(builder);
+    }
+
+    AuthState withRefreshMargin(@NotNull Duration newRefreshMargin) {
+        var builder = new Builder(this);
+        builder.refreshMargin = newRefreshMargin;
+        return new AuthState(builder);
+    }
+
+    AuthState withTokenGracePeriod(@NotNull Duration newTokenGracePeriod) {
+        var builder = new Builder(this);
+        builder.tokenGracePeriod = newTokenGracePeriod;
+        return new AuthState(builder);
+    }
+
+    AuthState withTokenSource(@NotNull TokenSource newTokenSource) {
+        var builder = new Builder(this);
+        builder.tokenSource = newTokenSource;
+        return new AuthState(builder);
+    }
+
+    AuthState withOAuthGrant(@NotNull OAuthGrant newOAuthGrant) {
+        var builder = new Builder(this);
+        builder.oauthGrant = newOAuthGrant;
+        return new AuthState(builder);
+    }
+
+    AuthState withJwtMinter(@NotNull JwtMinter newJwtMinter) {
+        var builder = new Builder(this);
+        builder.jwtMinter = newJwtMinter;
+        return new AuthState(builder);
+    }
+
+    AuthState withRefreshToken(@NotNull Optional<String> newRefreshToken) {
+        var builder = new Builder(this);
+        builder.refreshToken = newRefreshToken;
+        return new AuthState(builder);
+    }
+
+    AuthState withFailureSignature(@NotNull FailureSignature newFailureSignature) {
+        var builder = new Builder(this);
+        builder.failureSignature = newFailureSignature;
+        return new AuthState(builder);
+    }
+
+    AuthState withReplayFailedRequests(boolean newReplayFailedRequests) {
+        var builder = new Builder(this);
+        builder.replayFailedRequests = newReplayFailedRequests;
+        return new AuthState(builder);
+    }
+
+    AuthState withTokenDelivery(@NotNull TokenDelivery newTokenDelivery) {
+        var builder = new Builder(this);
+        builder.tokenDelivery = newTokenDelivery;
+        return new AuthState(builder);
+    }
+
+    AuthState withCookieName(@NotNull String newCookieName) {
+        var builder = new Builder(this);
+        builder.cookieName = newCookieName;
+        return new AuthState(builder);
+    }
+
+    AuthState withToolRouting(@NotNull ToolRouting newToolRouting) {
+        var builder = new Builder(this);
+        builder.toolRouting = newToolRouting;
+        return new AuthState(builder);
+    }
+
+    /**
+     * Replace the injection rules, discarding the values extracted for the old ones.
+     */
+    AuthState withInjectionRules(@NotNull InjectionRules newInjectionRules) {
+        var builder = new Builder(this);
+        builder.injectionRules = newInjectionRules;
+        builder.extractedValues = new String[newInjectionRules.size()];
+        return new AuthState(builder);
+    }
+
+    /**
+     * @param newExtractedValues the values extracted from an auth response with the current injection rules
+     */
+    AuthState withExtractedValues(@NotNull String[] newExtractedValues) {
+        var builder = new Builder(this);
+        builder.extractedValues = newExtractedValues;
+        return new AuthState(builder);
+    }
+
+    AuthState withListening(boolean newIsListening) {
+        var builder = new Builder(this);
+        builder.isListening = newIsListening;
+        return new AuthState(builder);
+    }
+
+    AuthState withTokenSetManually(boolean newTokenSetManually) {
+        var builder = new Builder(this);
+        builder.tokenSetManually = newTokenSetManually;
+        return new AuthState(builder);
+    }
+
+    AuthState withToken(@NotNull String newToken, boolean setManually) {
+        var builder = new Builder(this);
+        builder.token = Optional.of(newToken);
+        builder.tokenSetManually = setManually;
+        builder.tokenGraceDeadline = 0;
+        builder.tokenExpiresAt = 0;
+        return new AuthState(builder);
+    }
+
+    /**
+     * @param expiresAt when the token expires according to our clock, in epoch millis, or 0 if it isn't known
+     */
+    AuthState withTokenExpiry(long expiresAt) {
+        var builder = new Builder(this);
+        builder.tokenExpiresAt = expiresAt;
+        return new AuthState(builder);
+    }
+
+    /**
+     * Keep the current token, but only until the deadline or until it is replaced by a new one.
+     *
+     * @param deadline when the token should stop being injected, in epoch millis
+     */
+    AuthState withTokenRetired(long deadline) {
+        var builder = new Builder(this);
+        builder.tokenGraceDeadline = deadline;
+        return new AuthState(builder);
+    }
+
+    AuthState withoutToken() {
+        var builder = new Builder(this);
+        builder.token = Optional.empty();
+        builder.refreshToken = Optional.empty();
+        builder.tokenGraceDeadline = 0;
+        builder.tokenExpiresAt = 0;
+        return new AuthState(builder);
+    }
+
+    URL getAuthorizeURL() {
+        return authorizeURL;
+    }
+
+    String getHeaderName() {
+        return headerName;
+    }
+
+    String getHeaderValuePrefix() {
+        return headerValuePrefix;
+    }
+
+    Pattern getTokenPattern() {
+        return tokenPattern;
+    }
+
+    TokenExtractionMode getTokenExtractionMode() {
+        return tokenExtractionMode;
+    }
+
+    JsonPathExtractor getTokenJsonPath() {
+        return tokenJsonPath;
+    }
+
+    /**
+     * @return the maximum number of bytes of the auth response body to search for the token
+     */
+    int getMaxTokenScanLength() {
+        return maxTokenScanLength;
+    }
+
+    /**
+     * @return how long before a JWT expires it should be refreshed
+     */
+    Duration getRefreshMargin() {
+        return refreshMargin;
+    }
+
+    /**
+     * @return how long a retired token keeps being injected while a new one is fetched
+     */
+    Duration getTokenGracePeriod() {
+        return tokenGracePeriod;
+    }
+
+    TokenSource getTokenSource() {
+        return tokenSource;
+    }
+
+    OAuthGrant getOAuthGrant() {
+        return oauthGrant;
+    }
+
+    JwtMinter getJwtMinter() {
+        return jwtMinter;
+    }
+
+    Optional<String> getRefreshToken() {
+        return refreshToken;
+    }
+
+    FailureSignature getFailureSignature() {
+        return failureSignature;
+    }
+
+    boolean isReplayFailedRequests() {
+        return replayFailedRequests;
+    }
+
+    TokenDelivery getTokenDelivery() {
+        return tokenDelivery;
+    }
+
+    String getCookieName() {
+        return cookieName;
+    }
+
+    ToolRouting getToolRouting() {
+        return toolRouting;
+    }
+
+    InjectionRules getInjectionRules() {
+        return injectionRules;
+    }
+
+    /**
+     * @return the value of each injection rule in rule order, null where there is no value,
+     * which must not be modified
+     */
+    String[] getInjectionValues() {
+        return injectionValues;
+    }
+
+    boolean isListening() {
+        return isListening;
+    }
+
+    boolean isTokenSetManually() {
+        return tokenSetManually;
+    }
+
+    Optional<String> getToken() {
+        return token;
+    }
+
+    /**
+     * @return the deadline for the retired token in epoch millis, or 0 if the token is current
+     */
+    long getTokenGraceDeadline() {
+        return tokenGraceDeadline;
+    }
+
+    /**
+     * @return when the token expires according to our clock in epoch millis, or 0 if it isn't known
+     */
+    long getTokenExpiresAt() {
+        return tokenExpiresAt;
+    }
+
+    /**
+     * @return whether there is a token which should be injected right now
+     */
+    boolean hasUsableToken() {
+        return token.isPresent() && (tokenGraceDeadline == 0 || System.currentTimeMillis() < tokenGraceDeadline);
+    }
+
+    /**
+     * @return whether the token has a known expiry which has passed
+     */
+    boolean isTokenExpired() {
+        return tokenExpiresAt != 0 && System.currentTimeMillis() >= tokenExpiresAt;
+    }
+
+    boolean hasAuthorizeRequest() {
+        return authorizeRequest != null;
+    }
+
+    /**
+     * @return the service the authorization request goes to, or null if there is no request
+     */
+    IHttpService getAuthorizeService() {
+        return authorizeService;
+    }
+
+    /**
+     * @return the raw authorization request, or null if there is no request, which must not be modified
+     */
+    byte[] getAuthorizeRequest() {
+        return authorizeRequest;
+    }
+
+    boolean isPersistAuthorizeRequest() {
+        return persistAuthorizeRequest;
+    }
+
+    Optional<String> getHeader() {
+        return Optional.ofNullable(headerTemplate).map(HeaderTemplate::getLine);
+    }
+
+    /**
+     * @return the compiled header to inject, or null if there is no token
+     */
+    HeaderTemplate getHeaderTemplate() {
+        return headerTemplate;
+    }
+
+    /**
+     * Mutable copy of the fields, used by the with methods so each one only has to name the field it changes.
+     */
+    private static final class Builder {
+        private URL authorizeURL;
+        private String headerName;
+        private String headerValuePrefix;
+        private TokenExtractionMode tokenExtractionMode;
+        private Pattern tokenPattern;
+        private JsonPathExtractor tokenJsonPath;
+        private int maxTokenScanLength;
+        private Duration refreshMargin;
+        private Duration tokenGracePeriod;
+        private TokenSource tokenSource;
+        private OAuthGrant oauthGrant;
+        private JwtMinter jwtMinter;
+        private FailureSignature failureSignature;
+        private boolean replayFailedRequests;
+        private TokenDelivery tokenDelivery;
+        private String cookieName;
+        private InjectionRules injectionRules;
+        private ToolRouting toolRouting;
+        private String[] extractedValues;
+        private boolean isListening;
+        private boolean tokenSetManually;
+        private Optional<String> token;
+        private Optional<String> refreshToken;
+        private long tokenGraceDeadline;
+        private long tokenExpiresAt;
+        private IHttpService authorizeService;
+        private byte[] authorizeRequest;
+        private boolean persistAuthorizeRequest;
+        // the template of the state being copied, reused if the header it was compiled from hasn't changed
+        private HeaderTemplate headerTemplate;
+
+        private Builder() {
+        }
+
+        private Builder(AuthState state) {
+            authorizeURL = state.authorizeURL;
+            headerName = state.headerName;
+            headerValuePrefix = state.headerValuePrefix;
+            tokenExtractionMode = state.tokenExtractionMode;
+            tokenPattern = state.tokenPattern;
+            tokenJsonPath = state.tokenJsonPath;
+            maxTokenScanLength = state.maxTokenScanLength;
+            refreshMargin = state.refreshMargin;
+            tokenGracePeriod = state.tokenGracePeriod;
+            tokenSource = state.tokenSource;
+            oauthGrant = state.oauthGrant;
+            jwtMinter = state.jwtMinter;
+            failureSignature = state.failureSignature;
+            replayFailedRequests = state.replayFailedRequests;
+            tokenDelivery = state.tokenDelivery;
+            cookieName = state.cookieName;
+            injectionRules = state.injectionRules;
+            toolRouting = state.toolRouting;
+            extractedValues = state.extractedValues;
+            isListening = state.isListening;
+            tokenSetManually = state.tokenSetManually;
+            token = state.token;
+            refreshToken = state.refreshToken;
+            tokenGraceDeadline = state.tokenGraceDeadline;
+            tokenExpiresAt = state.tokenExpiresAt;
+            authorizeService = state.authorizeService;
+            authorizeRequest = state.authorizeRequest;
+            persistAuthorizeRequest = state.persistAuthorizeRequest;
+            headerTemplate = state.headerTemplate;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/*
+Copyright 2022 NCC Group
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    https://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.nccgroup.jwtreauth;
+
+import burp.IBurpExtenderCallbacks;
+
+/**
+ * Enum of the burp tools which send HTTP messages, with the flag burp passes to the HTTP listener for each
+ */
+public enum BurpTool {
+    Suite(IBurpExtenderCallbacks.TOOL_SUITE),
+    Target(IBurpExtenderCallbacks.TOOL_TARGET),
+    Proxy(IBurpExtenderCallbacks.TOOL_PROXY),
+    Spider(IBurpExtenderCallbacks.TOOL_SPIDER),
+    Scanner(IBurpExtenderCallbacks.TOOL_SCANNER),
+    Intruder(IBurpExtenderCallbacks.TOOL_INTRUDER),
+    Repeater(IBurpExtenderCallbacks.TOOL_REPEATER),
+    Sequencer(IBurpExtenderCallbacks.TOOL_SEQUENCER),
+    // other extensions, and this one's own refreshes and replays
+    Extender(IBurpExtenderCallbacks.TOOL_EXTENDER);
+
+    private final int flag;
+
+    BurpTool(int flag) {
+        this.flag = flag;
+    }
+
+    public int getFlag() {
+        return flag;
+    }
+}
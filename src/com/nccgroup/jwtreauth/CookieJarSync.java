@@ -0,0 +1,137 @@
+/*
+Copyright 2022 NCC Group
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    https://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.nccgroup.jwtreauth;
+
+import burp.IBurpExtenderCallbacks;
+import burp.ICookie;
+import com.nccgroup.jwtreauth.ui.scope.ScopeController;
+import javax.validation.constraints.NotNull;
+
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Keeps the token cookie in burp's session handling cookie jar in step with the current token.
+ * <p>
+ * The cookie is set on every domain in scope, see ScopeController.getCookieDomains, and expires with the token.
+ * Burp's session handling rules then add it to requests, so in this mode the listener does no work per request,
+ * only when the token or the scope changes. The cookies last pushed are remembered, so syncing an unchanged
+ * state does nothing, and cookies on domains which have left the scope, or under an old name, are removed.
+ * <p>
+ * Note: burp removes a cookie from the jar when it is updated with a null value
+ */
+class CookieJarSync {
+    private final IBurpExtenderCallbacks callbacks;
+    private final ScopeController scopeController;
+
+    // what was last pushed, guarded by this
+    private Set<String> pushedDomains = Set.of();
+    private String pushedName;
+    private String pushedValue;
+    private long pushedExpiresAt;
+
+    CookieJarSync(@NotNull IBurpExtenderCallbacks callbacks, @NotNull ScopeController scopeController) {
+        this.callbacks = callbacks;
+        this.scopeController = scopeController;
+    }
+
+    /**
+     * Update the cookie jar to match a state, the cookie is set if the state delivers a usable token
+     * through the cookie jar while listening, otherwise any cookie pushed before is removed.
+     *
+     * @param state the current state
+     * @return the number of cookies added, updated or removed
+     */
+    synchronized int sync(@NotNull AuthState state) {
+        var deliver = state.getTokenDelivery() == TokenDelivery.CookieJar && state.isListening() && state.hasUsableToken();
+
+        var domains = deliver ? scopeController.getCookieDomains() : Set.<String>of();
+        var name = deliver ? state.getCookieName() : null;
+        var value = deliver ? state.getToken().get() : null;
+        var expiresAt = deliver ? state.getTokenExpiresAt() : 0;
+
+        var changed = 0;
+
+        // remove the cookies which won't be replaced below
+        for (var domain : pushedDomains) {
+            if (!domains.contains(domain) || !Objects.equals(name, pushedName)) {
+                callbacks.updateCookieJar(new Cookie(domain, pushedName, null, 0));
+                changed++;
+            }
+        }
+
+        var unchanged = Objects.equals(name, pushedName) && Objects.equals(value, pushedValue) && expiresAt == pushedExpiresAt;
+
+        for (var domain : domains) {
+            if (unchanged && pushedDomains.contains(domain)) continue;
+
+            callbacks.updateCookieJar(new Cookie(domain, name, value, expiresAt));
+            changed++;
+        }
+
+        pushedDomains = new HashSet<>(domains);
+        pushedName = name;
+        pushedValue = value;
+        pushedExpiresAt = expiresAt;
+
+        return changed;
+    }
+
+    /**
+     * A cookie for the whole of a domain.
+     */
+    private static final class Cookie implements ICookie {
+        private final String domain;
+        private final String name;
+        private final String value;
+        private final long expiresAt;
+
+        /**
+         * @param expiresAt the expiry in epoch millis, or 0 for a session cookie
+         */
+        private Cookie(String domain, String name, String value, long expiresAt) {
+            this.domain = domain;
+            this.name = name;
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+
+        @Override
+        public String getDomain() {
+            return domain;
+        }
+
+        @Override
+        public String getPath() {
+            return "/";
+        }
+
+        @Override
+        public Date getExpiration() {
+            return expiresAt == 0 ? null : new Date(expiresAt);
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public String getValue() {
+            return value;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+Copyright 2022 NCC Group
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    https://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.nccgroup.jwtreauth;
+
+import com.nccgroup.jwtreauth.utils.ByteCharSequence;
+import com.nccgroup.jwtreauth.utils.HeaderSplicer;
+import javax.validation.constraints.NotNull;
+
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+/**
+ * Describes a response which means the token was rejected, e.g. a 401 status or a body containing "invalid_token".
+ * <p>
+ * A response matches if its status is one of the statuses and its body contains a match for the body pattern,
+ * a blank part of the signature matches any response, so the body pattern narrows down which statuses count.
+ * The status is read straight from the status line and the body is searched in place,
+ * so checking a response which doesn't match is cheap.
+ */
+final class FailureSignature {
+    // a rejected token is reported near the start of the body, there is no need to search all of a large page
+    private static final int MAX_BODY_SCAN_LENGTH = 64 * 1024;
+
+    private final int[] statuses;
+    private final Pattern bodyPattern;
+
+    private FailureSignature(int[] statuses, Pattern bodyPattern) {
+        this.statuses = statuses;
+        this.bodyPattern = bodyPattern;
+    }
+
+    /**
+     * Parse a signature from its settings.
+     *
+     * @param statuses    a comma separated list of status codes, may be blank
+     * @param bodyPattern a regex to search the body for, may be blank
+     * @return the signature
+     * @throws IllegalArgumentException if a status isn't a number or the regex is invalid
+     */
+    static @NotNull FailureSignature parse(@NotNull String statuses, @NotNull String bodyPattern) {
+        return new FailureSignature(parseStatuses(statuses), compileBodyPattern(bodyPattern));
+    }
+
+    /**
+     * @param statuses a comma separated list of status codes, may be blank
+     * @return a copy of the signature with the new statuses
+     * @throws IllegalArgumentException if a status isn't a number
+     */
+    @NotNull FailureSignature withStatuses(@NotNull String statuses) {
+        return new FailureSignature(parseStatuses(statuses), bodyPattern);
+    }
+
+    /**
+     * @param bodyPattern a regex to search the body for, may be blank
+     * @return a copy of the signature with the new body pattern
+     * @throws IllegalArgumentException if the regex is invalid
+     */
+    @NotNull FailureSignature withBodyPattern(@NotNull String bodyPattern) {
+        return new FailureSignature(statuses, compileBodyPattern(bodyPattern));
+    }
+
+    private static int[] parseStatuses(String statuses) {
+        return Arrays.stream(statuses.split(","))
+                .map(String::trim)
+                .filter(s -> !s.isEmpty())
+                .mapToInt(s -> {
+                    try {
+                        return Integer.parseInt(s);
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Invalid status code: " + s, e);
+                    }
+                })
+                .sorted()
+                .distinct()
+                .toArray();
+    }
+
+    private static Pattern compileBodyPattern(String bodyPattern) {
+        return bodyPattern.isBlank() ? null : Pattern.compile(bodyPattern);
+    }
+
+    /**
+     * @return whether the signature can match anything
+     */
+    boolean isEnabled() {
+        return statuses.length > 0 || bodyPattern != null;
+    }
+
+    /**
+     * Check a response against the signature.
+     *
+     * @param response the raw response
+     * @return whether the response shows the token was rejected
+     */
+    boolean matches(@NotNull byte[] response) {
+        if (!isEnabled()) return false;
+        if (statuses.length > 0 && Arrays.binarySearch(statuses, statusCode(response)) < 0) return false;
+        if (bodyPattern == null) return true;
+
+        var bodyOffset = HeaderSplicer.findBodyOffset(response);
+        if (bodyOffset == -1) return false;
+
+        var length = Math.min(response.length - bodyOffset, MAX_BODY_SCAN_LENGTH);
+        return bodyPattern.matcher(new ByteCharSequence(response, bodyOffset, length)).find();
+    }
+
+    /**
+     * Helper method to read the status code from the status line, e.g. "HTTP/1.1 401 Unauthorized".
+     *
+     * @return the status code, or -1 if the status line is malformed
+     */
+    private static int statusCode(byte[] response) {
+        var i = 0;
+        while (i < response.length && response[i] != ' ') {
+            if (response[i] == '\n') return -1;
+            i++;
+        }
+
+        if (i + 4 > response.length) return -1;
+
+        var code = 0;
+        for (int j = i + 1; j <= i + 3; j++) {
+            if (response[j] < '0' || response[j] > '9') return -1;
+            code = code * 10 + (response[j] - '0');
+        }
+
+        return code;
+    }
+}
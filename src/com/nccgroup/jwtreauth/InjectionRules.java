@@ -0,0 +1,218 @@
+/*
+Copyright 2022 NCC Group
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    https://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.nccgroup.jwtreauth;
+
+import com.nccgroup.jwtreauth.utils.ByteCharSequence;
+import com.nccgroup.jwtreauth.utils.HeaderSplicer;
+import com.nccgroup.jwtreauth.utils.JsonPathExtractor;
+import javax.validation.constraints.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Rules for extracting extra values from the auth response and injecting them into requests,
+ * alongside the main auth header, e.g. a CSRF header or a session cookie.
+ * <p>
+ * Rules are written one per line, as "target name = source":
+ * <ul>
+ *     <li>target is one of header, cookie, query or json</li>
+ *     <li>name is the header, cookie or query parameter name, or a JSON path into the request body</li>
+ *     <li>source is token for the main token, regex:pattern for the first group of a pattern matched
+ *     against the auth response body and then its headers, or json:path for a value in the response body</li>
+ * </ul>
+ * Blank lines and lines starting with # are ignored. Instances are immutable and thread safe.
+ */
+final class InjectionRules {
+    enum Target {
+        Header,
+        Cookie,
+        Query,
+        Json,
+    }
+
+    enum Source {
+        Token,
+        Regex,
+        JsonPath,
+    }
+
+    private static final Pattern RULE = Pattern.compile("^\\s*(\\w+)\\s+(\\S+)\\s*=\\s*(.+?)\\s*$");
+
+    static final InjectionRules EMPTY = new InjectionRules("", List.of());
+
+    /**
+     * A single parsed rule.
+     */
+    static final class Rule {
+        private final Target target;
+        private final String name;
+        private final JsonPathExtractor targetPath;
+        private final Source source;
+        private final Pattern sourcePattern;
+        private final JsonPathExtractor sourcePath;
+
+        private Rule(Target target, String name, Source source, String sourceArgument) {
+            this.target = target;
+            this.name = name;
+            this.targetPath = target == Target.Json ? JsonPathExtractor.compile(name) : null;
+            this.source = source;
+            this.sourcePattern = source == Source.Regex ? Pattern.compile(sourceArgument) : null;
+            this.sourcePath = source == Source.JsonPath ? JsonPathExtractor.compile(sourceArgument) : null;
+        }
+
+        Target getTarget() {
+            return target;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        /**
+         * @return the compiled JSON path for a json target, or null for the other targets
+         */
+        JsonPathExtractor getTargetPath() {
+            return targetPath;
+        }
+
+        Source getSource() {
+            return source;
+        }
+    }
+
+    private final String text;
+    private final List<Rule> rules;
+
+    private InjectionRules(String text, List<Rule> rules) {
+        this.text = text;
+        this.rules = rules;
+    }
+
+    /**
+     * Parse a set of rules.
+     *
+     * @param text the rules, one per line
+     * @return the parsed rules
+     * @throws IllegalArgumentException naming the line number if a rule can't be parsed
+     */
+    static @NotNull InjectionRules parse(@NotNull String text) {
+        var rules = new ArrayList<Rule>();
+        var lines = text.split("\\R");
+
+        for (int i = 0; i < lines.length; i++) {
+            var line = lines[i].trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+
+            try {
+                rules.add(parseRule(line));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Line " + (i + 1) + ": " + e.getMessage(), e);
+            }
+        }
+
+        return new InjectionRules(text, List.copyOf(rules));
+    }
+
+    private static Rule parseRule(String line) {
+        var m = RULE.matcher(line);
+        if (!m.matches()) throw new IllegalArgumentException("expected \"target name = source\"");
+
+        final Target target;
+        switch (m.group(1).toLowerCase(Locale.ROOT)) {
+            case "header":
+                target = Target.Header;
+                break;
+            case "cookie":
+                target = Target.Cookie;
+                break;
+            case "query":
+                target = Target.Query;
+                break;
+            case "json":
+                target = Target.Json;
+                break;
+            default:
+                throw new IllegalArgumentException("unknown target \"" + m.group(1) + "\"");
+        }
+
+        var source = m.group(3);
+        try {
+            if (source.equalsIgnoreCase("token")) return new Rule(target, m.group(2), Source.Token, null);
+            if (source.startsWith("regex:")) return new Rule(target, m.group(2), Source.Regex, source.substring(6));
+            if (source.startsWith("json:")) return new Rule(target, m.group(2), Source.JsonPath, source.substring(5));
+        } catch (PatternSyntaxException e) {
+            throw new IllegalArgumentException("invalid regex - " + e.getDescription());
+        }
+
+        throw new IllegalArgumentException("unknown source \"" + source + "\", expected token, regex: or json:");
+    }
+
+    boolean isEmpty() {
+        return rules.isEmpty();
+    }
+
+    int size() {
+        return rules.size();
+    }
+
+    List<Rule> getRules() {
+        return rules;
+    }
+
+    /**
+     * @return the text the rules were parsed from
+     */
+    String getText() {
+        return text;
+    }
+
+    /**
+     * Extract the value of every rule which reads the auth response.
+     *
+     * @param response      the raw auth response
+     * @param maxScanLength the maximum number of body bytes to search
+     * @return the values in rule order, null where a value wasn't found or the rule uses the main token
+     */
+    String[] extract(@NotNull byte[] response, int maxScanLength) {
+        var values = new String[rules.size()];
+
+        var bodyOffset = HeaderSplicer.findBodyOffset(response);
+        if (bodyOffset == -1) bodyOffset = 0;
+
+        var bodyLength = Math.min(response.length - bodyOffset, maxScanLength);
+
+        for (int i = 0; i < values.length; i++) {
+            var rule = rules.get(i);
+
+            if (rule.source == Source.JsonPath) {
+                values[i] = rule.sourcePath.extract(response, bodyOffset, bodyLength);
+            } else if (rule.source == Source.Regex) {
+                var m = rule.sourcePattern.matcher(new ByteCharSequence(response, bodyOffset, bodyLength));
+
+                if (m.find()) {
+                    values[i] = m.group(m.groupCount() >= 1 ? 1 : 0);
+                } else if (bodyOffset > 0) {
+                    m = rule.sourcePattern.matcher(new ByteCharSequence(response, 0, bodyOffset));
+                    if (m.find()) values[i] = m.group(m.groupCount() >= 1 ? 1 : 0);
+                }
+            }
+        }
+
+        return values;
+    }
+}
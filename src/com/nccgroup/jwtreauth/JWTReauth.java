@@ -46,12 +46,16 @@ public class JWTReauth implements IBurpExtender {
         mainViewController = new MainViewController(this);
 
         callbacks.setExtensionName("JWT re-auth");
-        callbacks.registerHttpListener(tokenListener);
+        tokenListener.setHttpListenerEnabled(TokenListener.DEFAULT_HTTP_LISTENER_ENABLED);
+        callbacks.registerSessionHandlingAction(new JWTReauthSessionHandlingAction(this));
         callbacks.registerContextMenuFactory(new JWTReauthContextMenuFactory(this));
         callbacks.registerExtensionStateListener(tokenListener);
         callbacks.registerExtensionStateListener(tokenListenerStatePanel);
+        callbacks.registerExtensionStateListener(logController);
 
         SwingUtilities.invokeLater(() -> {
+            tokenListener.restoreTokenCache();
+
             callbacks.addSuiteTab(mainViewController);
             callbacks.printOutput("Loaded JWT re-auth. v" + VERSION);
         });
@@ -0,0 +1,41 @@
+/*
+Copyright 2022 NCC Group
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    https://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.nccgroup.jwtreauth;
+
+import burp.IHttpRequestResponse;
+import burp.ISessionHandlingAction;
+
+/**
+ * Exposes the token listener as a burp session handling action, so burp's session handling rules
+ * decide which tools and URLs get the token, see TokenListener.performSessionAction.
+ */
+public class JWTReauthSessionHandlingAction implements ISessionHandlingAction {
+    private static final String ACTION_NAME = "JWT re-auth: add token";
+
+    final TokenListener tokenListener;
+
+    public JWTReauthSessionHandlingAction(JWTReauth jwtReauth) {
+        tokenListener = jwtReauth.getTokenListener();
+    }
+
+    @Override
+    public String getActionName() {
+        return ACTION_NAME;
+    }
+
+    @Override
+    public void performAction(IHttpRequestResponse currentRequest, IHttpRequestResponse[] macroItems) {
+        tokenListener.performSessionAction(currentRequest, macroItems);
+    }
+}
@@ -0,0 +1,186 @@
+/*
+Copyright 2022 NCC Group
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    https://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.nccgroup.jwtreauth;
+
+import burp.IHttpService;
+import javax.validation.constraints.NotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Prebuilt OAuth2 token requests for the client_credentials and refresh_token grants.
+ * <p>
+ * Everything which only depends on the settings, i.e. the service, request line, headers and
+ * client parameters, is encoded once when the settings change. The client_credentials request
+ * never changes so it is built in full, and a refresh_token request only has to append the
+ * refresh token and set the Content-Length.
+ * The client authenticates with its id and secret in the request body (client_secret_post).
+ * Instances are immutable and thread safe.
+ */
+final class OAuthGrant {
+    private final URL tokenEndpoint;
+    private final String clientId;
+    private final String clientSecret;
+    private final String scope;
+
+    // derived from the fields above
+    private final IHttpService service;
+    private final byte[] head;
+    private final byte[] clientCredentialsRequest;
+    private final byte[] refreshTokenBodyPrefix;
+
+    private OAuthGrant(URL tokenEndpoint, String clientId, String clientSecret, String scope) {
+        this.tokenEndpoint = tokenEndpoint;
+        this.clientId = clientId;
+        this.clientSecret = clientSecret;
+        this.scope = scope;
+
+        this.service = new Service(tokenEndpoint);
+        this.head = buildHead(tokenEndpoint, service);
+
+        var clientParams = new StringBuilder();
+        appendParam(clientParams, "client_id", clientId);
+        appendParam(clientParams, "client_secret", clientSecret);
+        appendParam(clientParams, "scope", scope);
+
+        this.clientCredentialsRequest = buildRequest(head, encode("grant_type=client_credentials" + clientParams), null);
+        this.refreshTokenBodyPrefix = encode("grant_type=refresh_token" + clientParams + "&refresh_token=");
+    }
+
+    /**
+     * @param tokenEndpoint the URL of the token endpoint
+     * @param clientId      the client id, may be blank
+     * @param clientSecret  the client secret, may be blank for public clients
+     * @param scope         the scopes to request, may be blank
+     */
+    static @NotNull OAuthGrant of(
+            @NotNull URL tokenEndpoint,
+            @NotNull String clientId,
+            @NotNull String clientSecret,
+            @NotNull String scope
+    ) {
+        return new OAuthGrant(tokenEndpoint, clientId, clientSecret, scope);
+    }
+
+    OAuthGrant withTokenEndpoint(@NotNull URL newTokenEndpoint) {
+        return new OAuthGrant(newTokenEndpoint, clientId, clientSecret, scope);
+    }
+
+    OAuthGrant withClientId(@NotNull String newClientId) {
+        return new OAuthGrant(tokenEndpoint, newClientId, clientSecret, scope);
+    }
+
+    OAuthGrant withClientSecret(@NotNull String newClientSecret) {
+        return new OAuthGrant(tokenEndpoint, clientId, newClientSecret, scope);
+    }
+
+    OAuthGrant withScope(@NotNull String newScope) {
+        return new OAuthGrant(tokenEndpoint, clientId, clientSecret, newScope);
+    }
+
+    IHttpService getService() {
+        return service;
+    }
+
+    /**
+     * @return a copy of the client_credentials request, so burp can't modify the template
+     */
+    byte[] clientCredentialsRequest() {
+        return clientCredentialsRequest.clone();
+    }
+
+    /**
+     * @param refreshToken the refresh token from the last auth response
+     * @return the refresh_token request
+     */
+    byte[] refreshTokenRequest(@NotNull String refreshToken) {
+        return buildRequest(head, refreshTokenBodyPrefix, encode(formEncode(refreshToken)));
+    }
+
+    /**
+     * Helper method to encode the request line and headers, up to the value of the Content-Length header.
+     */
+    private static byte[] buildHead(URL tokenEndpoint, IHttpService service) {
+        var path = tokenEndpoint.getFile().isEmpty() ? "/" : tokenEndpoint.getFile();
+        var defaultPort = service.getProtocol().equals("https") ? 443 : 80;
+        var host = service.getPort() == defaultPort ? service.getHost() : service.getHost() + ":" + service.getPort();
+
+        return encode(
+                "POST " + path + " HTTP/1.1\r\n"
+                        + "Host: " + host + "\r\n"
+                        + "Accept: application/json\r\n"
+                        + "Content-Type: application/x-www-form-urlencoded\r\n"
+                        + "Content-Length: "
+        );
+    }
+
+    private static byte[] buildRequest(byte[] head, byte[] body, byte[] bodySuffix) {
+        var bodyLength = body.length + (bodySuffix == null ? 0 : bodySuffix.length);
+        var out = new ByteArrayOutputStream(head.length + bodyLength + 16);
+
+        out.writeBytes(head);
+        out.writeBytes(encode(bodyLength + "\r\n\r\n"));
+        out.writeBytes(body);
+        if (bodySuffix != null) out.writeBytes(bodySuffix);
+
+        return out.toByteArray();
+    }
+
+    private static void appendParam(StringBuilder params, String name, String value) {
+        if (value.isBlank()) return;
+
+        params.append('&').append(name).append('=').append(formEncode(value));
+    }
+
+    private static String formEncode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] encode(String s) {
+        return s.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * The service for the token endpoint, worked out once from its URL.
+     */
+    private static final class Service implements IHttpService {
+        private final String host;
+        private final int port;
+        private final String protocol;
+
+        private Service(URL url) {
+            this.host = url.getHost();
+            this.protocol = url.getProtocol();
+            this.port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        }
+
+        @Override
+        public String getHost() {
+            return host;
+        }
+
+        @Override
+        public int getPort() {
+            return port;
+        }
+
+        @Override
+        public String getProtocol() {
+            return protocol;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+Copyright 2022 NCC Group
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    https://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.nccgroup.jwtreauth;
+
+import javax.validation.constraints.NotNull;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+/**
+ * Makes sure there is only ever one token refresh pending or in flight.
+ * <p>
+ * A refresh is first delayed by the debounce delay, and every trigger during that time pushes it back,
+ * so a burst of triggers, e.g. from typing a new auth URL, results in a single refresh after the burst.
+ * Triggers while the refresh is in flight join it rather than starting another one.
+ * Every trigger gets a future which completes with the token parsed by the refresh it joined.
+ * <p>
+ * Requests which arrive while there is no valid token can optionally be held until the refresh
+ * completes, this is bounded both by a timeout and by the number of requests held at once.
+ */
+class RefreshCoordinator {
+    // requests aren't held for a while after a refresh fails, so they don't each trigger another failing refresh
+    private static final long HOLD_AFTER_FAILURE_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final ScheduledExecutorService executor;
+    private final Supplier<CompletableFuture<Optional<String>>> refresh;
+    private final Semaphore holdPermits;
+
+    private volatile Duration debounceDelay;
+    private volatile Duration maxHoldTime;
+
+    // guarded by this
+    private CompletableFuture<Optional<String>> pending;
+    private ScheduledFuture<?> pendingTask;
+    private boolean pendingImmediate;
+
+    // written while holding this, read without it
+    private volatile CompletableFuture<Optional<String>> inFlight;
+
+    // whether the last refresh didn't produce a token, and the System.nanoTime when it finished
+    private volatile boolean lastRefreshFailed;
+    private volatile long lastRefreshFinished;
+
+    /**
+     * @param executor         the executor to run refreshes on
+     * @param refresh          starts a refresh without blocking, returning a future of the parsed token
+     * @param debounceDelay    how long to wait for more triggers before refreshing
+     * @param maxHoldTime      how long to hold requests while there is no token, zero to not hold them
+     * @param maxHeldRequests  the maximum number of requests to hold at once
+     */
+    RefreshCoordinator(
+            @NotNull ScheduledExecutorService executor,
+            @NotNull Supplier<CompletableFuture<Optional<String>>> refresh,
+            @NotNull Duration debounceDelay,
+            @NotNull Duration maxHoldTime,
+            int maxHeldRequests
+    ) {
+        this.executor = executor;
+        this.refresh = refresh;
+        this.debounceDelay = debounceDelay;
+        this.maxHoldTime = maxHoldTime;
+        this.holdPermits = new Semaphore(maxHeldRequests);
+    }
+
+    /**
+     * Request a refresh, joining the pending or in flight refresh if there is one.
+     *
+     * @param immediate whether to skip the debounce delay, e.g. because a request is waiting for the token
+     * @return a future which completes with the token parsed by the refresh, or empty if none was found
+     */
+    synchronized CompletableFuture<Optional<String>> requestRefresh(boolean immediate) {
+        if (inFlight != null) return inFlight;
+
+        if (pending == null) {
+            pending = new CompletableFuture<>();
+            pendingImmediate = false;
+        } else if (pendingImmediate) {
+            // it's already about to run, there is no point pushing it back
+            return pending;
+        } else {
+            pendingTask.cancel(false);
+        }
+
+        var future = pending;
+        var delay = immediate ? Duration.ZERO : debounceDelay;
+
+        pendingImmediate = immediate;
+        pendingTask = executor.schedule(() -> run(future), delay.toMillis(), TimeUnit.MILLISECONDS);
+
+        return future;
+    }
+
+    /**
+     * @return whether a refresh request has been sent and its response hasn't been parsed yet
+     */
+    boolean isRefreshing() {
+        return inFlight != null;
+    }
+
+    /**
+     * @return whether requests should be held while there is no token
+     */
+    boolean isHoldingEnabled() {
+        return !maxHoldTime.isZero();
+    }
+
+    /**
+     * Block the calling thread until a refresh completes, starting one straight away if needed.
+     * <p>
+     * This gives up immediately if holding is disabled, too many requests are already being held,
+     * or the last refresh failed recently.
+     *
+     * @return whether a refresh completed in time
+     */
+    boolean awaitRefresh() {
+        var holdTime = maxHoldTime;
+        if (holdTime.isZero()) return false;
+
+        if (lastRefreshFailed && System.nanoTime() - lastRefreshFinished < HOLD_AFTER_FAILURE_NANOS) return false;
+
+        if (!holdPermits.tryAcquire()) return false;
+
+        try {
+            requestRefresh(true).get(holdTime.toMillis(), TimeUnit.MILLISECONDS);
+            return true;
+        } catch (InterruptedException _e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException | TimeoutException _e) {
+            return false;
+        } finally {
+            holdPermits.release();
+        }
+    }
+
+    void setDebounceDelay(@NotNull Duration debounceDelay) {
+        this.debounceDelay = debounceDelay;
+    }
+
+    void setMaxHoldTime(@NotNull Duration maxHoldTime) {
+        this.maxHoldTime = maxHoldTime;
+    }
+
+    /**
+     * Helper method to start a pending refresh, runs on the executor.
+     * The refresh itself runs elsewhere, so this returns as soon as it has started.
+     */
+    private void run(CompletableFuture<Optional<String>> future) {
+        synchronized (this) {
+            // the refresh may have been rescheduled after this task had already started
+            if (pending != future) return;
+
+            pending = null;
+            pendingTask = null;
+            inFlight = future;
+        }
+
+        CompletableFuture<Optional<String>> started;
+        try {
+            started = refresh.get();
+        } catch (RuntimeException e) {
+            started = CompletableFuture.failedFuture(e);
+        }
+
+        started.whenComplete((token, error) -> finish(future, error == null ? token : Optional.empty()));
+    }
+
+    private void finish(CompletableFuture<Optional<String>> future, Optional<String> token) {
+        lastRefreshFinished = System.nanoTime();
+        lastRefreshFailed = token.isEmpty();
+
+        synchronized (this) {
+            inFlight = null;
+        }
+
+        future.complete(token);
+    }
+}
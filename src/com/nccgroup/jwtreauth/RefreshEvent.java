@@ -0,0 +1,102 @@
+/*
+Copyright 2022 NCC Group
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    https://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.nccgroup.jwtreauth;
+
+import javax.validation.constraints.NotNull;
+
+import java.time.Duration;
+import java.util.Optional;
+
+/**
+ * Something which happened during a token refresh, published by the RefreshExecutor to its listeners.
+ */
+final class RefreshEvent {
+    enum Type {
+        // an attempt to fetch a token has started
+        ATTEMPT_STARTED,
+        // an attempt failed, the cause says why
+        ATTEMPT_FAILED,
+        // another attempt will be made after the retry delay
+        RETRY_SCHEDULED,
+        // a token was parsed
+        SUCCEEDED,
+        // every attempt failed
+        FAILED,
+        // too many refreshes failed in a row, refreshes are skipped until the circuit closes
+        CIRCUIT_OPENED,
+        // a refresh was skipped because the circuit is open
+        CIRCUIT_REJECTED,
+        // a refresh succeeded after the circuit had opened
+        CIRCUIT_CLOSED,
+    }
+
+    private final Type type;
+    private final int attempt;
+    private final Duration elapsed;
+    private final Duration delay;
+    private final Throwable cause;
+
+    RefreshEvent(@NotNull Type type, int attempt, @NotNull Duration elapsed, Duration delay, Throwable cause) {
+        this.type = type;
+        this.attempt = attempt;
+        this.elapsed = elapsed;
+        this.delay = delay;
+        this.cause = cause;
+    }
+
+    Type getType() {
+        return type;
+    }
+
+    /**
+     * @return the attempt the event belongs to, starting at 1
+     */
+    int getAttempt() {
+        return attempt;
+    }
+
+    /**
+     * @return the time since the refresh started
+     */
+    Duration getElapsed() {
+        return elapsed;
+    }
+
+    /**
+     * @return the retry delay for RETRY_SCHEDULED, or how long the circuit stays open for CIRCUIT_OPENED
+     */
+    Optional<Duration> getDelay() {
+        return Optional.ofNullable(delay);
+    }
+
+    /**
+     * @return why the attempt failed, for ATTEMPT_FAILED
+     */
+    Optional<Throwable> getCause() {
+        return Optional.ofNullable(cause);
+    }
+
+    @Override
+    public String toString() {
+        var sb = new StringBuilder()
+                .append(type)
+                .append(" attempt=").append(attempt)
+                .append(" elapsed=").append(elapsed.toMillis()).append("ms");
+
+        if (delay != null) sb.append(" delay=").append(delay.toMillis()).append("ms");
+        if (cause != null) sb.append(" cause=").append(cause);
+
+        return sb.toString();
+    }
+}
@@ -0,0 +1,313 @@
+/*
+Copyright 2022 NCC Group
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    https://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.nccgroup.jwtreauth;
+
+import javax.validation.constraints.NotNull;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Runs the blocking part of a token refresh on its own worker threads, so a hung auth server
+ * can never block the scheduler which the rest of the listener relies on.
+ * <p>
+ * Each attempt is given a timeout, after which it is cancelled and counts as failed.
+ * Cancelling can't interrupt a blocked burp request, so an attempt must claim its outcome with
+ * the commit check before it publishes anything, and a timed out attempt is never allowed to.
+ * Failed attempts are retried with exponential backoff and jitter, and once enough refreshes
+ * have failed in a row the circuit opens and refreshes are skipped for a while,
+ * rather than hammering an auth endpoint which is down.
+ * <p>
+ * Attempts send their requests through {@link #sending}, which marks them until they return,
+ * so the HTTP listener can tell their responses apart from the same request sent by anything else.
+ * <p>
+ * Everything which happens is published as a RefreshEvent to the listeners.
+ * The executor expects the RefreshCoordinator to only run one refresh at a time.
+ */
+class RefreshExecutor {
+    /**
+     * Thrown by an attempt to show it failed and may be retried.
+     * An attempt which has nothing to do, e.g. because the token was set manually, returns empty instead.
+     */
+    static final class RefreshFailedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        RefreshFailedException(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    /**
+     * One blocking refresh attempt.
+     */
+    interface Attempt {
+        /**
+         * @param commit claims the outcome of the attempt, it must be called right before the attempt
+         *               publishes a new token, which it must then discard if this returns false because
+         *               the attempt has timed out. Once it returns true the attempt can no longer time out.
+         * @return the new token, or empty if there was nothing to do
+         * @throws RefreshFailedException if the attempt failed and may be retried
+         */
+        Optional<String> run(@NotNull BooleanSupplier commit);
+    }
+
+    private static final Duration INITIAL_BACKOFF = Duration.ofMillis(500);
+    private static final Duration MAX_BACKOFF = Duration.ofSeconds(8);
+
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService workers;
+    private final Attempt attempt;
+    private final List<Consumer<RefreshEvent>> listeners = new CopyOnWriteArrayList<>();
+
+    // the raw requests attempts are sending, counted as a timed out attempt may still be sending the same request
+    private final Map<ByteBuffer, Integer> sendingRequests = new ConcurrentHashMap<>();
+
+    private final int maxAttempts;
+    private final int failureThreshold;
+    private final Duration openDuration;
+
+    private volatile Duration attemptTimeout;
+
+    // guarded by this
+    private int consecutiveFailures;
+    private long openUntilNanos;
+
+    /**
+     * @param scheduler        the executor used for timeouts and retry delays, never blocked
+     * @param attempt          performs one blocking attempt, see Attempt
+     * @param attemptTimeout   how long each attempt may take before it is cancelled
+     * @param maxAttempts      the number of attempts per refresh, including the first
+     * @param failureThreshold the number of failed refreshes in a row which opens the circuit
+     * @param openDuration     how long the circuit stays open
+     */
+    RefreshExecutor(
+            @NotNull ScheduledExecutorService scheduler,
+            @NotNull Attempt attempt,
+            @NotNull Duration attemptTimeout,
+            int maxAttempts,
+            int failureThreshold,
+            @NotNull Duration openDuration
+    ) {
+        this.scheduler = scheduler;
+        this.workers = newWorkerPool();
+        this.attempt = attempt;
+        this.attemptTimeout = attemptTimeout;
+        this.maxAttempts = maxAttempts;
+        this.failureThreshold = failureThreshold;
+        this.openDuration = openDuration;
+    }
+
+    /**
+     * Helper method to create the pool the attempts run on, using virtual threads when the runtime has them.
+     * The extension is built for Java 11, so they can only be found reflectively.
+     */
+    private static ExecutorService newWorkerPool() {
+        try {
+            var factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException _e) {
+            return Executors.newCachedThreadPool(r -> {
+                var thread = new Thread(r, "jwt-reauth-refresh");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    void addListener(@NotNull Consumer<RefreshEvent> listener) {
+        listeners.add(listener);
+    }
+
+    void setAttemptTimeout(@NotNull Duration attemptTimeout) {
+        this.attemptTimeout = attemptTimeout;
+    }
+
+    /**
+     * Start a refresh, this never blocks.
+     *
+     * @return a future which completes with the parsed token, or empty if the refresh failed or was skipped
+     */
+    CompletableFuture<Optional<String>> refresh() {
+        var result = new CompletableFuture<Optional<String>>();
+        var startedAt = System.nanoTime();
+
+        synchronized (this) {
+            if (consecutiveFailures >= failureThreshold && startedAt - openUntilNanos < 0) {
+                publish(RefreshEvent.Type.CIRCUIT_REJECTED, 0, startedAt, null, null);
+                result.complete(Optional.empty());
+                return result;
+            }
+        }
+
+        runAttempt(1, startedAt, result);
+
+        return result;
+    }
+
+    /**
+     * Send one of an attempt's requests, marking it as our own until the send returns.
+     * <p>
+     * Burp passes the response to the HTTP listeners before the send returns, so the mark covers the response
+     * even if it arrives after the attempt has timed out.
+     *
+     * @param request the raw request being sent
+     * @param send    sends the request and blocks until its response arrives
+     * @return the result of the send
+     */
+    <T> T sending(@NotNull byte[] request, @NotNull Supplier<T> send) {
+        var key = ByteBuffer.wrap(request);
+        sendingRequests.merge(key, 1, Integer::sum);
+
+        try {
+            return send.get();
+        } finally {
+            sendingRequests.computeIfPresent(key, (k, count) -> count == 1 ? null : count - 1);
+        }
+    }
+
+    /**
+     * @param request a raw request
+     * @return whether an attempt is sending this request right now
+     */
+    boolean isSending(@NotNull byte[] request) {
+        return !sendingRequests.isEmpty() && sendingRequests.containsKey(ByteBuffer.wrap(request));
+    }
+
+    void shutdown() {
+        workers.shutdownNow();
+    }
+
+    /**
+     * Helper method to run one attempt on a worker, with a timeout run on the scheduler.
+     */
+    private void runAttempt(int number, long startedAt, CompletableFuture<Optional<String>> result) {
+        publish(RefreshEvent.Type.ATTEMPT_STARTED, number, startedAt, null, null);
+
+        var outcome = new CompletableFuture<Optional<String>>();
+        // set by whichever of the attempt committing or the timeout happens first
+        var settled = new AtomicBoolean(false);
+
+        final Future<?> task;
+        try {
+            task = workers.submit(() -> {
+                try {
+                    outcome.complete(attempt.run(() -> settled.compareAndSet(false, true)));
+                } catch (Throwable t) {
+                    outcome.completeExceptionally(t);
+                }
+            });
+        } catch (RuntimeException e) {
+            // the workers have been shut down
+            result.complete(Optional.empty());
+            return;
+        }
+
+        var timeout = attemptTimeout;
+        var timer = scheduler.schedule(() -> {
+            // an attempt which has committed is publishing its token, so it is left to finish
+            if (settled.compareAndSet(false, true)
+                    && outcome.completeExceptionally(new TimeoutException("Attempt timed out after " + timeout.toMillis() + "ms"))) {
+                task.cancel(true);
+            }
+        }, timeout.toMillis(), TimeUnit.MILLISECONDS);
+
+        outcome.whenComplete((token, error) -> {
+            timer.cancel(false);
+
+            if (error == null && token.isPresent()) {
+                succeeded(number, startedAt, token, result);
+            } else if (error == null) {
+                // nothing to refresh, which says nothing about the health of the auth server
+                result.complete(Optional.empty());
+            } else {
+                failed(number, startedAt, error, result);
+            }
+        });
+    }
+
+    private void succeeded(int number, long startedAt, Optional<String> token, CompletableFuture<Optional<String>> result) {
+        boolean wasOpen;
+        synchronized (this) {
+            wasOpen = consecutiveFailures >= failureThreshold;
+            consecutiveFailures = 0;
+        }
+
+        publish(RefreshEvent.Type.SUCCEEDED, number, startedAt, null, null);
+        if (wasOpen) publish(RefreshEvent.Type.CIRCUIT_CLOSED, number, startedAt, null, null);
+
+        result.complete(token);
+    }
+
+    private void failed(int number, long startedAt, Throwable error, CompletableFuture<Optional<String>> result) {
+        publish(RefreshEvent.Type.ATTEMPT_FAILED, number, startedAt, null, error);
+
+        if (number < maxAttempts && !scheduler.isShutdown()) {
+            var delay = backoff(number);
+            publish(RefreshEvent.Type.RETRY_SCHEDULED, number, startedAt, delay, null);
+
+            scheduler.schedule(() -> runAttempt(number + 1, startedAt, result), delay.toMillis(), TimeUnit.MILLISECONDS);
+            return;
+        }
+
+        boolean opened;
+        synchronized (this) {
+            consecutiveFailures++;
+            // the circuit opens when the threshold is reached, and again after each failed trial refresh
+            opened = consecutiveFailures >= failureThreshold;
+            if (opened) openUntilNanos = System.nanoTime() + openDuration.toNanos();
+        }
+
+        publish(RefreshEvent.Type.FAILED, number, startedAt, null, null);
+        if (opened) publish(RefreshEvent.Type.CIRCUIT_OPENED, number, startedAt, openDuration, null);
+
+        result.complete(Optional.empty());
+    }
+
+    /**
+     * Helper method to pick the delay before the next attempt, doubling each time up to the maximum.
+     * The delay is picked at random from its upper half, so clients which failed together don't retry together.
+     */
+    private static Duration backoff(int failedAttempts) {
+        var ceiling = INITIAL_BACKOFF.multipliedBy(1L << Math.min(failedAttempts - 1, 16));
+        if (ceiling.compareTo(MAX_BACKOFF) > 0) ceiling = MAX_BACKOFF;
+
+        var half = ceiling.toMillis() / 2;
+        return Duration.ofMillis(half + ThreadLocalRandom.current().nextLong(half + 1));
+    }
+
+    private void publish(RefreshEvent.Type type, int number, long startedAt, Duration delay, Throwable cause) {
+        var event = new RefreshEvent(type, number, Duration.ofNanos(System.nanoTime() - startedAt), delay, cause);
+
+        for (var listener : listeners) {
+            listener.accept(event);
+        }
+    }
+}
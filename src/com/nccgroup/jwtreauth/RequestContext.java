@@ -0,0 +1,111 @@
+/*
+Copyright 2022 NCC Group
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    https://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.nccgroup.jwtreauth;
+
+import burp.IExtensionHelpers;
+import burp.IHttpRequestResponse;
+import burp.IRequestInfo;
+import javax.validation.constraints.NotNull;
+
+import java.net.URL;
+
+/**
+ * Per-message view of a request passing through the listener.
+ * <p>
+ * The raw bytes and the analyzed request are fetched lazily and at most once,
+ * so the scope check, the auth URL check and the header rewrite can all share them.
+ * Instances are confined to the thread handling the message and are not thread safe.
+ */
+class RequestContext {
+    private final IExtensionHelpers helpers;
+    private final IHttpRequestResponse message;
+
+    private byte[] request;
+    private IRequestInfo requestInfo;
+
+    RequestContext(@NotNull IExtensionHelpers helpers, @NotNull IHttpRequestResponse message) {
+        this.helpers = helpers;
+        this.message = message;
+    }
+
+    @NotNull
+    IHttpRequestResponse getMessage() {
+        return message;
+    }
+
+    /**
+     * @return the raw bytes of the request, fetched from burp on first use
+     */
+    @NotNull
+    byte[] getRequest() {
+        if (request == null) {
+            request = message.getRequest();
+        }
+
+        return request;
+    }
+
+    /**
+     * @return the analyzed request, parsed on first use
+     */
+    @NotNull
+    IRequestInfo getRequestInfo() {
+        if (requestInfo == null) {
+            requestInfo = helpers.analyzeRequest(message.getHttpService(), getRequest());
+        }
+
+        return requestInfo;
+    }
+
+    @NotNull
+    URL getUrl() {
+        return getRequestInfo().getUrl();
+    }
+
+    /**
+     * Describe the message for the log without forcing it to be analyzed,
+     * giving the full URL if it is already known and just the service otherwise.
+     *
+     * @return a description of where the message is going
+     */
+    @NotNull
+    String describe() {
+        if (requestInfo != null) return requestInfo.getUrl().toString();
+
+        var service = message.getHttpService();
+        if (service == null) return "<unknown service>";
+
+        return service.getProtocol() + "://" + service.getHost() + ":" + service.getPort();
+    }
+
+    /**
+     * Cheap pre-check that the message is going to the same protocol, host and port as url,
+     * using only the http service so the request doesn't need to be analyzed.
+     *
+     * @param url the URL to check against
+     * @return false if the message definitely can't be for url
+     */
+    boolean mayMatch(@NotNull URL url) {
+        var service = message.getHttpService();
+
+        // without a service we can't tell, so let the full comparison decide
+        if (service == null) return true;
+
+        var port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+
+        return service.getPort() == port
+                && service.getProtocol().equalsIgnoreCase(url.getProtocol())
+                && service.getHost().equalsIgnoreCase(url.getHost());
+    }
+}
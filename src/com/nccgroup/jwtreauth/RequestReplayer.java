@@ -0,0 +1,165 @@
+/*
+Copyright 2022 NCC Group
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    https://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.nccgroup.jwtreauth;
+
+import burp.IBurpExtenderCallbacks;
+import burp.IHttpRequestResponse;
+import burp.IHttpService;
+import javax.validation.constraints.NotNull;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+/**
+ * Replays requests which failed because their token was rejected, once a new token is available.
+ * <p>
+ * Replays run on a small bounded pool, if it is full the request is simply not replayed.
+ * Identical failed requests which arrive while one of them is being replayed share the same replay,
+ * so a burst of the same failure, e.g. from a repeated Intruder payload, only costs one request.
+ */
+class RequestReplayer {
+    private static final int REPLAY_THREADS = 4;
+    private static final int MAX_QUEUED_REPLAYS = 64;
+
+    private final IBurpExtenderCallbacks callbacks;
+    private final ThreadPoolExecutor pool;
+    private final Map<ReplayKey, CompletableFuture<IHttpRequestResponse>> inFlight = new ConcurrentHashMap<>();
+
+    private volatile Duration timeout;
+
+    /**
+     * @param callbacks the burp callbacks used to send the replays
+     * @param timeout   how long the thread handling a failed response waits for its replay
+     */
+    RequestReplayer(@NotNull IBurpExtenderCallbacks callbacks, @NotNull Duration timeout) {
+        this.callbacks = callbacks;
+        this.timeout = timeout;
+
+        this.pool = new ThreadPoolExecutor(
+                REPLAY_THREADS, REPLAY_THREADS,
+                30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(MAX_QUEUED_REPLAYS)
+        );
+        this.pool.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @return how long the thread handling a failed response waits for its replay
+     */
+    Duration getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Set how long the thread handling a failed response waits for its replay, this applies from the next replay.
+     */
+    void setTimeout(@NotNull Duration timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Replay a failed request and wait for the result.
+     * <p>
+     * This blocks the calling thread, i.e. one of burp's threads handling the failed response, for up to the timeout.
+     *
+     * @param failed  the request which failed
+     * @param rebuild called on the pool to build the request to send, e.g. after waiting for a new token,
+     *                may return null to give up
+     * @return the replayed request and its response, or null if it couldn't be replayed in time
+     */
+    IHttpRequestResponse replay(@NotNull IHttpRequestResponse failed, @NotNull Supplier<byte[]> rebuild) {
+        var service = failed.getHttpService();
+        var key = new ReplayKey(service, failed.getRequest());
+
+        var future = new CompletableFuture<IHttpRequestResponse>();
+        var existing = inFlight.putIfAbsent(key, future);
+
+        if (existing != null) {
+            future = existing;
+        } else {
+            final var owned = future;
+
+            try {
+                pool.execute(() -> {
+                    try {
+                        var request = rebuild.get();
+                        owned.complete(request == null ? null : callbacks.makeHttpRequest(service, request));
+                    } catch (RuntimeException e) {
+                        owned.completeExceptionally(e);
+                    } finally {
+                        inFlight.remove(key, owned);
+                    }
+                });
+            } catch (RejectedExecutionException _e) {
+                inFlight.remove(key, owned);
+                return null;
+            }
+        }
+
+        try {
+            return future.get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException _e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException | TimeoutException _e) {
+            return null;
+        }
+    }
+
+    void shutdown() {
+        pool.shutdownNow();
+    }
+
+    /**
+     * Identifies identical requests by their service and raw bytes.
+     */
+    private static final class ReplayKey {
+        private final String service;
+        private final ByteBuffer request;
+        private final int hash;
+
+        private ReplayKey(IHttpService service, byte[] request) {
+            this.service = service == null
+                    ? ""
+                    : service.getProtocol() + "://" + service.getHost() + ":" + service.getPort();
+            this.request = ByteBuffer.wrap(request);
+            this.hash = Objects.hash(this.service, this.request);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof ReplayKey)) return false;
+
+            var other = (ReplayKey) o;
+            return hash == other.hash && service.equals(other.service) && request.equals(other.request);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,480 @@
+/*
+Copyright 2022 NCC Group
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    https://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.nccgroup.jwtreauth;
+
+import com.nccgroup.jwtreauth.utils.HeaderTemplate;
+import javax.validation.constraints.NotNull;
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Applies the auth header and every injection rule to a request in a single pass.
+ * <p>
+ * The request line and header block are scanned once, and each change is recorded as an edit of a byte range:
+ * old auth headers and headers named by a rule are removed, cookies and query parameters are replaced or added,
+ * and JSON values in the body are replaced in place. New headers are inserted at the end of the header block,
+ * unless the request already has the exact header line, in which case it is left where it is.
+ * The edits are then applied while copying the request into a single new array, so however many rules there
+ * are the request is only copied once, and Content-Length is corrected for any change to the body.
+ */
+final class RequestRewriter {
+    /**
+     * Replace the bytes [start, end) of the request with bytes, an empty range inserts them.
+     */
+    private static final class Edit {
+        private final int start;
+        private final int end;
+        private final byte[] bytes;
+
+        private Edit(int start, int end, byte[] bytes) {
+            this.start = start;
+            this.end = end;
+            this.bytes = bytes;
+        }
+    }
+
+    private RequestRewriter() {
+    }
+
+    /**
+     * Rewrite a request with the auth header and the injection rules.
+     *
+     * @param request  the raw request
+     * @param template the auth header
+     * @param rules    the injection rules
+     * @param values   the value of each rule, in rule order, null values are skipped
+     * @return the rewritten request, the original array if nothing changed,
+     * or null if the request doesn't have a complete header block
+     */
+    static byte[] rewrite(
+            final @NotNull byte[] request,
+            final @NotNull HeaderTemplate template,
+            final @NotNull InjectionRules rules,
+            final @NotNull String[] values
+    ) {
+        var ruleList = rules.getRules();
+        var edits = new ArrayList<Edit>();
+
+        var requestLineEnd = nextLineStart(request, 0);
+        if (requestLineEnd == -1) return null;
+
+        rewriteQuery(request, requestLineEnd, ruleList, values, edits);
+
+        // the cookies which still need adding once the existing Cookie headers have been updated
+        var cookiesPending = new boolean[values.length];
+        var anyCookies = false;
+        for (int i = 0; i < values.length; i++) {
+            cookiesPending[i] = values[i] != null && ruleList.get(i).getTarget() == InjectionRules.Target.Cookie;
+            anyCookies |= cookiesPending[i];
+        }
+
+        // whether the auth header and each header rule is already in the request with the right value
+        var authKept = false;
+        var headerKept = new boolean[values.length];
+
+        var cookieHeaderSeen = false;
+        var contentLengthStart = -1;
+        var contentLengthEnd = -1;
+
+        var lineStart = requestLineEnd;
+        while (true) {
+            var next = nextLineStart(request, lineStart);
+            if (next == -1) return null;
+
+            if (next - lineStart <= 2 && isBlankLine(request, lineStart)) break;
+
+            var contentEnd = lineContentEnd(request, lineStart, next);
+
+            if (template.matchesLine(request, lineStart, next)) {
+                if (!authKept && rangeEquals(request, lineStart, contentEnd, template.getLineBytes())) {
+                    authKept = true;
+                } else {
+                    edits.add(new Edit(lineStart, next, new byte[0]));
+                }
+            } else if (isRuleHeader(request, lineStart, contentEnd, ruleList, values, headerKept)) {
+                edits.add(new Edit(lineStart, next, new byte[0]));
+            } else if (anyCookies && nameEquals(request, lineStart, contentEnd, "cookie")) {
+                var updated = rewriteCookies(request, valueStart(request, lineStart, contentEnd), contentEnd,
+                        ruleList, values, cookiesPending, !cookieHeaderSeen);
+
+                if (updated != null) edits.add(updated);
+                cookieHeaderSeen = true;
+            } else if (nameEquals(request, lineStart, contentEnd, "content-length")) {
+                contentLengthStart = valueStart(request, lineStart, contentEnd);
+                contentLengthEnd = contentEnd;
+            }
+
+            lineStart = next;
+        }
+
+        var headerEnd = lineStart;
+        var bodyOffset = nextLineStart(request, headerEnd);
+
+        var newHeaders = new StringBuilder();
+        if (!authKept) newHeaders.append(template.getLine()).append("\r\n");
+
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null && !headerKept[i] && ruleList.get(i).getTarget() == InjectionRules.Target.Header) {
+                newHeaders.append(ruleList.get(i).getName()).append(": ").append(values[i]).append("\r\n");
+            }
+        }
+
+        if (!cookieHeaderSeen && anyCookies) {
+            var cookies = new StringBuilder();
+            appendPendingCookies(cookies, ruleList, values, cookiesPending);
+            newHeaders.append("Cookie: ").append(cookies).append("\r\n");
+        }
+
+        if (newHeaders.length() > 0) edits.add(new Edit(headerEnd, headerEnd, encode(newHeaders.toString())));
+
+        var bodyDelta = rewriteJson(request, bodyOffset, ruleList, values, edits);
+
+        if (bodyDelta != 0 && contentLengthStart != -1) {
+            try {
+                var length = Long.parseLong(new String(request, contentLengthStart,
+                        contentLengthEnd - contentLengthStart, StandardCharsets.ISO_8859_1).trim());
+
+                edits.add(new Edit(contentLengthStart, contentLengthEnd, encode(Long.toString(length + bodyDelta))));
+            } catch (NumberFormatException _e) {
+                // leave a header we can't parse alone
+            }
+        }
+
+        return apply(request, edits);
+    }
+
+    /**
+     * Helper method to replace or add the query parameters named by the rules in the request target.
+     */
+    private static void rewriteQuery(
+            byte[] request, int requestLineEnd, List<InjectionRules.Rule> rules, String[] values, List<Edit> edits
+    ) {
+        var any = false;
+        for (int i = 0; i < values.length; i++) {
+            any |= values[i] != null && rules.get(i).getTarget() == InjectionRules.Target.Query;
+        }
+        if (!any) return;
+
+        var lineEnd = lineContentEnd(request, 0, requestLineEnd);
+
+        // the request target is between the first and last spaces of the request line
+        var targetStart = indexOf(request, (byte) ' ', 0, lineEnd);
+        var targetEnd = lastIndexOf(request, (byte) ' ', lineEnd);
+        if (targetStart == -1 || targetEnd <= targetStart) return;
+        targetStart++;
+
+        var target = new String(request, targetStart, targetEnd - targetStart, StandardCharsets.ISO_8859_1);
+        var question = target.indexOf('?');
+
+        var path = question == -1 ? target : target.substring(0, question);
+        var params = new ArrayList<String>();
+        if (question != -1 && question + 1 < target.length()) {
+            params.addAll(List.of(target.substring(question + 1).split("&", -1)));
+        }
+
+        for (int i = 0; i < values.length; i++) {
+            var rule = rules.get(i);
+            if (values[i] == null || rule.getTarget() != InjectionRules.Target.Query) continue;
+
+            var name = urlEncode(rule.getName());
+            var param = name + "=" + urlEncode(values[i]);
+
+            var replaced = false;
+            for (int j = 0; j < params.size(); j++) {
+                var existing = params.get(j);
+                var equals = existing.indexOf('=');
+
+                if ((equals == -1 ? existing : existing.substring(0, equals)).equals(name)) {
+                    params.set(j, param);
+                    replaced = true;
+                }
+            }
+
+            if (!replaced) params.add(param);
+        }
+
+        var updated = path + "?" + String.join("&", params);
+        if (!updated.equals(target)) {
+            edits.add(new Edit(targetStart, targetEnd, encode(updated)));
+        }
+    }
+
+    /**
+     * Helper method to replace the cookies named by the rules in the value of a Cookie header,
+     * the first Cookie header also gets any cookies which weren't already there.
+     *
+     * @return the edit to the header value, or null if it didn't change
+     */
+    private static Edit rewriteCookies(
+            byte[] request, int start, int end, List<InjectionRules.Rule> rules, String[] values,
+            boolean[] pending, boolean first
+    ) {
+        var original = new String(request, start, end - start, StandardCharsets.ISO_8859_1);
+        var cookies = new StringBuilder();
+
+        for (var cookie : original.split(";")) {
+            var trimmed = cookie.trim();
+            if (trimmed.isEmpty()) continue;
+
+            var equals = trimmed.indexOf('=');
+            var name = equals == -1 ? trimmed : trimmed.substring(0, equals).trim();
+
+            if (cookies.length() > 0) cookies.append("; ");
+
+            var index = findCookieRule(rules, values, name);
+            if (index == -1) {
+                cookies.append(trimmed);
+            } else {
+                cookies.append(name).append('=').append(values[index]);
+                pending[index] = false;
+            }
+        }
+
+        if (first) appendPendingCookies(cookies, rules, values, pending);
+
+        var updated = cookies.toString();
+        return updated.equals(original) ? null : new Edit(start, end, encode(updated));
+    }
+
+    private static int findCookieRule(List<InjectionRules.Rule> rules, String[] values, String name) {
+        for (int i = 0; i < values.length; i++) {
+            var rule = rules.get(i);
+            if (values[i] != null && rule.getTarget() == InjectionRules.Target.Cookie && rule.getName().equals(name)) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    private static void appendPendingCookies(
+            StringBuilder cookies, List<InjectionRules.Rule> rules, String[] values, boolean[] pending
+    ) {
+        for (int i = 0; i < values.length; i++) {
+            if (!pending[i]) continue;
+
+            if (cookies.length() > 0) cookies.append("; ");
+            cookies.append(rules.get(i).getName()).append('=').append(values[i]);
+            pending[i] = false;
+        }
+    }
+
+    /**
+     * Helper method to replace the JSON values named by the rules in the body.
+     * Values which overlap one already being replaced, e.g. a member of a replaced object, are skipped.
+     *
+     * @return the change in the length of the body
+     */
+    private static int rewriteJson(
+            byte[] request, int bodyOffset, List<InjectionRules.Rule> rules, String[] values, List<Edit> edits
+    ) {
+        if (bodyOffset == -1 || bodyOffset >= request.length) return 0;
+
+        var spans = new ArrayList<Edit>();
+        var delta = 0;
+
+        for (int i = 0; i < values.length; i++) {
+            var rule = rules.get(i);
+            if (values[i] == null || rule.getTarget() != InjectionRules.Target.Json) continue;
+
+            var span = rule.getTargetPath().locate(request, bodyOffset, request.length - bodyOffset);
+            if (span == null || overlaps(spans, span[0], span[1])) continue;
+
+            var literal = jsonString(values[i]);
+            if (rangeEquals(request, span[0], span[1], literal)) continue;
+
+            spans.add(new Edit(span[0], span[1], literal));
+            delta += literal.length - (span[1] - span[0]);
+        }
+
+        edits.addAll(spans);
+        return delta;
+    }
+
+    private static boolean overlaps(List<Edit> spans, int start, int end) {
+        for (var span : spans) {
+            if (start < span.end && span.start < end) return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Helper method to copy the request into a new array, applying the edits on the way.
+     *
+     * @return the new request, or the original array if there are no edits
+     */
+    private static byte[] apply(byte[] request, List<Edit> edits) {
+        // every edit changes something, so no edits means the request is already correct
+        if (edits.isEmpty()) return request;
+
+        // edits never overlap, and a removal ending where an insertion starts must come first
+        edits.sort(Comparator.<Edit>comparingInt(e -> e.start).thenComparingInt(e -> e.end));
+
+        var length = request.length;
+        for (var edit : edits) length += edit.bytes.length - (edit.end - edit.start);
+
+        var out = new byte[length];
+        var read = 0;
+        var write = 0;
+
+        for (var edit : edits) {
+            System.arraycopy(request, read, out, write, edit.start - read);
+            write += edit.start - read;
+
+            System.arraycopy(edit.bytes, 0, out, write, edit.bytes.length);
+            write += edit.bytes.length;
+
+            read = edit.end;
+        }
+
+        System.arraycopy(request, read, out, write, request.length - read);
+
+        return out;
+    }
+
+    private static boolean rangeEquals(byte[] request, int start, int end, byte[] bytes) {
+        if (end - start != bytes.length) return false;
+
+        for (int i = 0; i < bytes.length; i++) {
+            if (request[start + i] != bytes[i]) return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Helper method to check whether a header line is named by a header rule and should be removed.
+     * The first line which already has exactly the right value is kept instead, and marked in kept.
+     */
+    private static boolean isRuleHeader(
+            byte[] request, int start, int end, List<InjectionRules.Rule> rules, String[] values, boolean[] kept
+    ) {
+        for (int i = 0; i < values.length; i++) {
+            var rule = rules.get(i);
+
+            if (values[i] != null && rule.getTarget() == InjectionRules.Target.Header
+                    && nameEquals(request, start, end, rule.getName())) {
+                if (!kept[i] && rangeEquals(request, start, end, encode(rule.getName() + ": " + values[i]))) {
+                    kept[i] = true;
+                    return false;
+                }
+
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Helper method to check whether the line starting at start has the given header name, ignoring case.
+     */
+    private static boolean nameEquals(byte[] request, int start, int end, String name) {
+        var colon = start + name.length();
+        if (colon >= end || request[colon] != ':') return false;
+
+        for (int i = 0; i < name.length(); i++) {
+            if (Character.toLowerCase((char) (request[start + i] & 0xff)) != Character.toLowerCase(name.charAt(i))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Helper method to find the start of the value of a header, after the colon and any whitespace.
+     */
+    private static int valueStart(byte[] request, int start, int end) {
+        var i = indexOf(request, (byte) ':', start, end) + 1;
+        while (i < end && (request[i] == ' ' || request[i] == '\t')) i++;
+
+        return i;
+    }
+
+    /**
+     * @return the offset after the line terminator of the line starting at offset, or -1 if it is unterminated
+     */
+    private static int nextLineStart(byte[] request, int offset) {
+        var lf = indexOf(request, (byte) '\n', offset, request.length);
+        return lf == -1 ? -1 : lf + 1;
+    }
+
+    /**
+     * @return the offset of the line terminator of the line [start, next)
+     */
+    private static int lineContentEnd(byte[] request, int start, int next) {
+        var end = next - 1;
+        if (end > start && request[end - 1] == '\r') end--;
+
+        return end;
+    }
+
+    private static boolean isBlankLine(byte[] request, int offset) {
+        return request[offset] == '\n' || (request[offset] == '\r' && offset + 1 < request.length && request[offset + 1] == '\n');
+    }
+
+    private static int indexOf(byte[] bytes, byte b, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (bytes[i] == b) return i;
+        }
+
+        return -1;
+    }
+
+    private static int lastIndexOf(byte[] bytes, byte b, int end) {
+        for (int i = end - 1; i >= 0; i--) {
+            if (bytes[i] == b) return i;
+        }
+
+        return -1;
+    }
+
+    private static String urlEncode(String s) {
+        return URLEncoder.encode(s, StandardCharsets.UTF_8).replace("+", "%20");
+    }
+
+    /**
+     * Helper method to encode a value as a JSON string literal in UTF-8.
+     */
+    private static byte[] jsonString(String value) {
+        var sb = new StringBuilder(value.length() + 2).append('"');
+
+        for (int i = 0; i < value.length(); i++) {
+            var c = value.charAt(i);
+
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+
+        return sb.append('"').toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Encode header text the same way the burp helpers do, one byte per char.
+     */
+    private static byte[] encode(String s) {
+        return s.getBytes(StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,150 @@
+/*
+Copyright 2022 NCC Group
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    https://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.nccgroup.jwtreauth;
+
+import burp.IBurpExtenderCallbacks;
+import javax.validation.constraints.NotNull;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.prefs.Preferences;
+
+/**
+ * Keeps a set of values, e.g. the current token or the auth settings, across reloads of the extension.
+ * <p>
+ * The values are stored as one of the extension's burp settings, encrypted with AES-GCM.
+ * The key is kept separately in the user's java preferences, so the stored settings alone,
+ * e.g. in a copy of the burp config, don't reveal the token.
+ * Each cache is stored under its own name, which is bound into the encryption,
+ * so one cache's values can't be passed off as another's.
+ */
+class TokenCache {
+    private static final String KEY_NAME = "tokenCacheKey";
+    private static final String ASSOCIATED_DATA_PREFIX = "jwt-reauth token cache v1 ";
+    private static final int IV_LENGTH = 12;
+    private static final int TAG_LENGTH_BITS = 128;
+
+    private final IBurpExtenderCallbacks callbacks;
+    private final String settingName;
+    private final byte[] associatedData;
+    private final SecureRandom random = new SecureRandom();
+
+    // loaded on first use, guarded by this
+    private SecretKey key;
+
+    /**
+     * @param callbacks   the burp callbacks used to store the values
+     * @param settingName the name of the burp setting the values are stored as
+     */
+    TokenCache(@NotNull IBurpExtenderCallbacks callbacks, @NotNull String settingName) {
+        this.callbacks = callbacks;
+        this.settingName = settingName;
+        this.associatedData = (ASSOCIATED_DATA_PREFIX + settingName).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Encrypt and store the values, replacing any stored before.
+     *
+     * @throws IllegalStateException if the values couldn't be encrypted
+     */
+    void save(@NotNull Properties values) {
+        try {
+            var plaintext = new StringWriter();
+            values.store(plaintext, null);
+
+            var iv = new byte[IV_LENGTH];
+            random.nextBytes(iv);
+
+            var cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, getKey(), new GCMParameterSpec(TAG_LENGTH_BITS, iv));
+            cipher.updateAAD(associatedData);
+            var ciphertext = cipher.doFinal(plaintext.toString().getBytes(StandardCharsets.UTF_8));
+
+            var stored = ByteBuffer.allocate(iv.length + ciphertext.length).put(iv).put(ciphertext).array();
+            callbacks.saveExtensionSetting(settingName, Base64.getEncoder().encodeToString(stored));
+        } catch (IOException | GeneralSecurityException e) {
+            throw new IllegalStateException("Failed to encrypt " + settingName, e);
+        }
+    }
+
+    /**
+     * Load and decrypt the stored values.
+     *
+     * @return the values, or empty if nothing is stored
+     * @throws IllegalStateException if the stored values couldn't be decrypted, e.g. because the key was lost
+     */
+    Optional<Properties> load() {
+        var stored = callbacks.loadExtensionSetting(settingName);
+        if (stored == null || stored.isEmpty()) return Optional.empty();
+
+        try {
+            var bytes = Base64.getDecoder().decode(stored);
+            if (bytes.length <= IV_LENGTH) throw new IllegalStateException("The stored " + settingName + " is truncated");
+
+            var cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, getKey(), new GCMParameterSpec(TAG_LENGTH_BITS, bytes, 0, IV_LENGTH));
+            cipher.updateAAD(associatedData);
+            var plaintext = cipher.doFinal(bytes, IV_LENGTH, bytes.length - IV_LENGTH);
+
+            var values = new Properties();
+            values.load(new StringReader(new String(plaintext, StandardCharsets.UTF_8)));
+
+            return Optional.of(values);
+        } catch (IllegalArgumentException | IOException | GeneralSecurityException e) {
+            throw new IllegalStateException("Failed to decrypt " + settingName, e);
+        }
+    }
+
+    /**
+     * Remove any stored values.
+     */
+    void clear() {
+        // burp removes a setting when it is set to null
+        callbacks.saveExtensionSetting(settingName, null);
+    }
+
+    /**
+     * Helper method to load the key from the java preferences, creating it the first time.
+     */
+    private synchronized SecretKey getKey() throws GeneralSecurityException {
+        if (key != null) return key;
+
+        var preferences = Preferences.userNodeForPackage(TokenCache.class);
+        var encoded = preferences.getByteArray(KEY_NAME, null);
+
+        if (encoded == null) {
+            var generator = KeyGenerator.getInstance("AES");
+            generator.init(256, random);
+            encoded = generator.generateKey().getEncoded();
+
+            preferences.putByteArray(KEY_NAME, encoded);
+        }
+
+        key = new SecretKeySpec(encoded, "AES");
+        return key;
+    }
+}
@@ -0,0 +1,24 @@
+/*
+Copyright 2022 NCC Group
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    https://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.nccgroup.jwtreauth;
+
+/**
+ * Enum describing how the token is added to in scope requests
+ */
+public enum TokenDelivery {
+    // each in scope request is rewritten with the auth header and any injection rules
+    Header,
+    // the token is pushed into burp's cookie jar on each refresh, for burp's session handling rules to apply
+    CookieJar,
+}
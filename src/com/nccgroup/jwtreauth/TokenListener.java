@@ -15,82 +15,245 @@ package com.nccgroup.jwtreauth;
 
 import burp.*;
 import com.nccgroup.jwtreauth.ui.logging.LogController;
+import com.nccgroup.jwtreauth.ui.logging.LogLevel;
 import com.nccgroup.jwtreauth.ui.scope.ScopeController;
 import com.nccgroup.jwtreauth.ui.settings.SettingsController;
 import com.nccgroup.jwtreauth.ui.state.TokenListenerStatePanel;
+import com.nccgroup.jwtreauth.utils.ByteCharSequence;
+import com.nccgroup.jwtreauth.utils.HeaderSplicer;
+import com.nccgroup.jwtreauth.utils.JsonPathExtractor;
+import com.nccgroup.jwtreauth.utils.JwtAlgorithm;
+import com.nccgroup.jwtreauth.utils.JwtClaims;
+import com.nccgroup.jwtreauth.utils.JwtMinter;
 import com.nccgroup.jwtreauth.utils.UrlComparison;
 import javax.validation.constraints.NotNull;
 
-import javax.swing.*;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
 import java.util.Optional;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+import java.util.function.UnaryOperator;
 import java.util.regex.Pattern;
 
 public class TokenListener implements IHttpListener, IExtensionStateListener {
     public static final String DEFAULT_AUTH_URL = "https://domain.sld.tld:443/path";
     public static final int DEFAULT_AUTH_REQ_DELAY = 300;
+    public static final int DEFAULT_REFRESH_MARGIN = 30;
+    public static final int DEFAULT_TOKEN_GRACE_PERIOD = 60;
+    public static final int DEFAULT_REFRESH_DEBOUNCE_DELAY = 2000;
+    public static final int DEFAULT_MAX_HOLD_TIME = 0;
+    public static final int MAX_HELD_REQUESTS = 64;
+    public static final int DEFAULT_REFRESH_ATTEMPT_TIMEOUT = 10;
+    public static final int DEFAULT_REPLAY_TIMEOUT = 2000;
+    private static final int REFRESH_MAX_ATTEMPTS = 3;
+    private static final int REFRESH_FAILURE_THRESHOLD = 3;
+    private static final Duration REFRESH_CIRCUIT_OPEN_DURATION = Duration.ofSeconds(60);
+    private static final Duration MIN_EXPIRY_REFRESH_DELAY = Duration.ofSeconds(5);
+    // a server which rejects every new token would otherwise be sent a refresh for each rejected response
+    private static final Duration MIN_REJECTED_REFRESH_INTERVAL = Duration.ofSeconds(10);
     public static final String DEFAULT_HEADER_NAME = "Authorization";
     public static final String DEFAULT_HEADER_VALUE_PREFIX = "Bearer ";
     public static final String DEFAULT_TOKEN_REGEX = "\"access_token\":\\s?\"([^\"]*)\"";
+    public static final TokenExtractionMode DEFAULT_TOKEN_EXTRACTION_MODE = TokenExtractionMode.Regex;
+    public static final String DEFAULT_TOKEN_JSON_PATH = "$.access_token";
+    public static final TokenSource DEFAULT_TOKEN_SOURCE = TokenSource.AuthRequest;
+    public static final String DEFAULT_OAUTH_CLIENT_ID = "";
+    public static final String DEFAULT_OAUTH_CLIENT_SECRET = "";
+    public static final String DEFAULT_OAUTH_SCOPE = "";
+    public static final JwtAlgorithm DEFAULT_JWT_ALGORITHM = JwtAlgorithm.HS256;
+    public static final String DEFAULT_JWT_SIGNING_KEY = "";
+    public static final String DEFAULT_JWT_CLAIMS_TEMPLATE = "{\"sub\": \"burp\"}";
+    public static final int DEFAULT_JWT_LIFETIME = 300;
+    // the names of the burp settings the token and the auth settings are saved as
+    private static final String TOKEN_CACHE_SETTING = "tokenCache";
+    private static final String SETTINGS_CACHE_SETTING = "settingsCache";
+    // the names of the values saved in the token and settings caches
+    private static final String CACHE_TOKEN = "token";
+    private static final String CACHE_TOKEN_EXPIRES_AT = "tokenExpiresAt";
+    private static final String CACHE_REFRESH_TOKEN = "refreshToken";
+    private static final String CACHE_IS_LISTENING = "isListening";
+    private static final String CACHE_AUTH_URL = "authURL";
+    private static final String CACHE_PERSIST_AUTH_REQUEST = "persistAuthRequest";
+    private static final String CACHE_AUTH_REQUEST = "authRequest";
+    private static final String CACHE_AUTH_REQUEST_HOST = "authRequestHost";
+    private static final String CACHE_AUTH_REQUEST_PORT = "authRequestPort";
+    private static final String CACHE_AUTH_REQUEST_PROTOCOL = "authRequestProtocol";
+    private static final String CACHE_HEADER_NAME = "headerName";
+    private static final String CACHE_HEADER_VALUE_PREFIX = "headerValuePrefix";
+    private static final String CACHE_TOKEN_EXTRACTION_MODE = "tokenExtractionMode";
+    private static final String CACHE_TOKEN_REGEX = "tokenRegex";
+    private static final String CACHE_TOKEN_JSON_PATH = "tokenJsonPath";
+    private static final String CACHE_TOKEN_SOURCE = "tokenSource";
+    private static final String CACHE_INJECTION_RULES = "injectionRules";
+    private static final String CACHE_TOKEN_DELIVERY = "tokenDelivery";
+    private static final String CACHE_COOKIE_NAME = "cookieName";
+    // followed by the name of the tool
+    private static final String CACHE_TOOL_ENABLED = "toolEnabled.";
+    private static final String CACHE_TOOL_LOG_LEVEL = "toolLogLevel.";
+    private static final JsonPathExtractor REFRESH_TOKEN_PATH = JsonPathExtractor.compile("$.refresh_token");
     public static final String DEFAULT_TOKEN_MISSING = "<no token found yet>";
     public static final String DEFAULT_HEADER_MISSING = "<no header made yet>";
     public static final boolean DEFAULT_IS_LISTENING = false;
+    public static final int DEFAULT_MAX_TOKEN_SCAN_LENGTH = 1024 * 1024;
+    public static final String DEFAULT_INJECTION_RULES = "";
+    public static final String DEFAULT_FAILURE_STATUSES = "401";
+    public static final String DEFAULT_FAILURE_BODY_REGEX = "";
+    public static final boolean DEFAULT_REPLAY_FAILED_REQUESTS = false;
+    public static final boolean DEFAULT_PERSIST_AUTHORIZE_REQUEST = false;
+    public static final TokenDelivery DEFAULT_TOKEN_DELIVERY = TokenDelivery.Header;
+    public static final boolean DEFAULT_HTTP_LISTENER_ENABLED = true;
+    public static final String DEFAULT_COOKIE_NAME = "token";
 
-    private final AtomicInteger lastRefreshStamp = new AtomicInteger(0);
     private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    private final RefreshExecutor refreshExecutor = new RefreshExecutor(
+            executor,
+            this::refreshToken,
+            Duration.ofSeconds(DEFAULT_REFRESH_ATTEMPT_TIMEOUT),
+            REFRESH_MAX_ATTEMPTS,
+            REFRESH_FAILURE_THRESHOLD,
+            REFRESH_CIRCUIT_OPEN_DURATION
+    );
+    private final RefreshCoordinator refreshCoordinator = new RefreshCoordinator(
+            executor,
+            refreshExecutor::refresh,
+            Duration.ofMillis(DEFAULT_REFRESH_DEBOUNCE_DELAY),
+            Duration.ofMillis(DEFAULT_MAX_HOLD_TIME),
+            MAX_HELD_REQUESTS
+    );
+
+    // the refresh scheduled shortly before the current token expires, if it is a JWT with an exp claim
+    private final AtomicReference<ScheduledFuture<?>> expiryRefresh = new AtomicReference<>();
+
+    // the System.nanoTime() of the last refresh started by a rejected token, so they are rate limited
+    private final AtomicLong lastRejectedRefresh = new AtomicLong(System.nanoTime() - MIN_REJECTED_REFRESH_INTERVAL.toNanos());
 
     private final IBurpExtenderCallbacks callbacks;
     private final IExtensionHelpers helpers;
     private final LogController logController;
     private final ScopeController scopeController;
+    private final RequestReplayer requestReplayer;
+    private final TokenCache tokenCache;
+    private final TokenCache settingsCache;
+    private final CookieJarSync cookieJarSync;
 
     private final TokenListenerStatePanel tokenListenerStatePanel;
 
     private SettingsController settingsController;
 
-    private URL authorizeURL;
-    private String headerName;
-    private String headerValuePrefix;
-    private Pattern tokenPattern;
-    private boolean isListening;
-    private boolean tokenSetManually;
-    private Optional<String> token;
-    private Optional<String> header;
-    private Optional<IHttpRequestResponse> authorizeRequest;
+    // whether this is registered as a burp HTTP listener, guarded by this
+    private boolean httpListenerRegistered;
+
+    // set until the token and settings saved by the last session have been restored on the EDT, so that
+    // the setters they go through don't overwrite or clear the caches before everything has been restored
+    private volatile boolean restoringCaches = true;
+
+    // read by burp's HTTP threads, the refresh executor and the EDT, always replaced as a whole
+    private final AtomicReference<AuthState> authState = new AtomicReference<>();
 
     public TokenListener(JWTReauth jwtReauth) {
         callbacks = jwtReauth.getCallbacks();
         helpers = callbacks.getHelpers();
         logController = jwtReauth.getLogController();
         scopeController = jwtReauth.getScopeController();
+        requestReplayer = new RequestReplayer(callbacks, Duration.ofMillis(DEFAULT_REPLAY_TIMEOUT));
+        tokenCache = new TokenCache(callbacks, TOKEN_CACHE_SETTING);
+        settingsCache = new TokenCache(callbacks, SETTINGS_CACHE_SETTING);
+        cookieJarSync = new CookieJarSync(callbacks, scopeController);
+        refreshExecutor.addListener(this::logRefreshEvent);
 
         this.initDefaults();
 
+        // the cookie jar holds the token for every in scope domain, so it must follow the scope too
+        scopeController.addScopeChangeListener(this::syncCookieJar);
+
         tokenListenerStatePanel = new TokenListenerStatePanel(this);
     }
 
     private void initDefaults() {
+        final URL authorizeURL;
         try {
             authorizeURL = new URL(DEFAULT_AUTH_URL);
         } catch (MalformedURLException e) {
             throw new RuntimeException(e);
         }
 
-        isListening = DEFAULT_IS_LISTENING;
-        headerName = DEFAULT_HEADER_NAME;
-        headerValuePrefix = DEFAULT_HEADER_VALUE_PREFIX;
+        authState.set(AuthState.initial(
+                authorizeURL,
+                DEFAULT_HEADER_NAME,
+                DEFAULT_HEADER_VALUE_PREFIX,
+                DEFAULT_TOKEN_EXTRACTION_MODE,
+                Pattern.compile(DEFAULT_TOKEN_REGEX),
+                JsonPathExtractor.compile(DEFAULT_TOKEN_JSON_PATH),
+                DEFAULT_MAX_TOKEN_SCAN_LENGTH,
+                Duration.ofSeconds(DEFAULT_REFRESH_MARGIN),
+                Duration.ofSeconds(DEFAULT_TOKEN_GRACE_PERIOD),
+                DEFAULT_TOKEN_SOURCE,
+                OAuthGrant.of(authorizeURL, DEFAULT_OAUTH_CLIENT_ID, DEFAULT_OAUTH_CLIENT_SECRET, DEFAULT_OAUTH_SCOPE),
+                JwtMinter.of(
+                        DEFAULT_JWT_ALGORITHM,
+                        DEFAULT_JWT_SIGNING_KEY,
+                        DEFAULT_JWT_CLAIMS_TEMPLATE,
+                        Duration.ofSeconds(DEFAULT_JWT_LIFETIME)
+                ),
+                FailureSignature.parse(DEFAULT_FAILURE_STATUSES, DEFAULT_FAILURE_BODY_REGEX),
+                DEFAULT_REPLAY_FAILED_REQUESTS,
+                DEFAULT_TOKEN_DELIVERY,
+                DEFAULT_COOKIE_NAME,
+                DEFAULT_IS_LISTENING
+        ));
+    }
+
+    /**
+     * Helper method to atomically replace the current state.
+     *
+     * @param update the copy-on-write update to apply, may be retried under contention
+     * @return the state before the update was applied
+     */
+    private AuthState updateState(UnaryOperator<AuthState> update) {
+        var previous = authState.getAndUpdate(update);
+        var current = authState.get();
+
+        // only the cookie jar mode, or leaving it, needs anything done outside the state
+        if (previous.getTokenDelivery() == TokenDelivery.CookieJar
+                || current.getTokenDelivery() == TokenDelivery.CookieJar) {
+            syncCookieJar();
+        }
 
-        tokenPattern = Pattern.compile(DEFAULT_TOKEN_REGEX);
-        token = Optional.empty();
+        // every setter goes through here, so this saves the settings whenever one of them changes
+        if (!restoringCaches && !savedSettings(previous).equals(savedSettings(current))) {
+            persistSettings();
+        }
 
-        authorizeRequest = Optional.empty();
+        return previous;
+    }
+
+    /**
+     * Helper method to bring the cookie jar in step with the current state, see CookieJarSync.
+     */
+    private void syncCookieJar() {
+        var changed = cookieJarSync.sync(authState.get());
+
+        if (changed > 0) {
+            logController.debug("Updated %d cookies in the cookie jar.", changed);
+        }
     }
 
     public TokenListenerStatePanel getTokenListenerStatePanel() {
@@ -99,38 +262,288 @@ public class TokenListener implements IHttpListener, IExtensionStateListener {
 
     @Override
     public void processHttpMessage(int toolFlag, boolean messageIsRequest, IHttpRequestResponse currentRequest) {
+        // take a single snapshot so the whole message is handled with consistent settings
+        var state = authState.get();
+        var toolRouting = state.getToolRouting();
+
+        // requests from disabled tools are dropped before anything else is looked at, their responses
+        // are still checked for a new token, so e.g. a login in the browser updates it with Proxy disabled
+        var toolEnabled = toolRouting.isEnabled(toolFlag);
+        if (!toolEnabled && messageIsRequest) return;
+
         // if we aren't listening, return immediately
-        if (!isListening) return;
+        if (!state.isListening()) return;
+
+        var toolLogLevel = toolRouting.getLogLevel(toolFlag);
+        if (toolLogLevel == null) {
+            processMessage(state, toolFlag, toolEnabled, messageIsRequest, currentRequest);
+            return;
+        }
+
+        var previousLogLevel = logController.setThreadLogLevel(toolLogLevel);
+        try {
+            processMessage(state, toolFlag, toolEnabled, messageIsRequest, currentRequest);
+        } finally {
+            logController.setThreadLogLevel(previousLogLevel);
+        }
+    }
 
-        var requestInfo = helpers.analyzeRequest(currentRequest);
-        var URLIsAuthorizeURL = UrlComparison.compareEqual(requestInfo.getUrl(), authorizeURL);
+    /**
+     * Helper method to handle a message while listening. Only responses from the auth URL
+     * are handled for disabled tools, the token is never injected and failures aren't checked.
+     *
+     * @param state            the snapshot of the state to handle the message with
+     * @param toolFlag         the tool which sent the message
+     * @param toolEnabled      whether the tool is enabled in the tool routing
+     * @param messageIsRequest whether the message is a request, or otherwise a response
+     * @param currentRequest   the message
+     */
+    private void processMessage(
+            @NotNull AuthState state,
+            int toolFlag,
+            boolean toolEnabled,
+            boolean messageIsRequest,
+            @NotNull IHttpRequestResponse currentRequest
+    ) {
+        // burp's session handling adds the token from the cookie jar, so requests need nothing from us
+        if (messageIsRequest && state.getTokenDelivery() == TokenDelivery.CookieJar) return;
+
+        // the request is only analyzed if and when one of the checks below needs it
+        var context = new RequestContext(helpers, currentRequest);
+        var URLIsAuthorizeURL = isAuthorizeURL(state, context);
 
         if (messageIsRequest && !URLIsAuthorizeURL) {
             // if we have a valid token, the request URL is not equal to the authentication URL
-            // and the URL is in scope, then we should attach the headers
+            // and the URL is in scope, then we should attach the headers.
+            // a retired token is still valid until its grace period ends or it is replaced.
+            // the service is checked first so most out of scope requests are never analyzed
 
-            if (token.isPresent() && scopeController.inScope(requestInfo.getUrl())) {
+            if ((state.hasUsableToken() || refreshCoordinator.isHoldingEnabled())
+                    && scopeController.mayBeInScope(currentRequest.getHttpService())
+                    && scopeController.inScope(context.getUrl())) {
                 logController.debug(
                         "URL: %s matches scope, adding header.%n",
-                        requestInfo.getUrl()
+                        context.getUrl()
                 );
 
-                var updatedRequest = replaceHeaders(currentRequest);
-
-                currentRequest.setRequest(updatedRequest);
-            } else {
+                injectToken(state, context, currentRequest);
+            } else if (logController.isDebugEnabled()) {
+                // describing the request builds a string, so only do it if it will be logged
                 logController.debug(
                         "Request URL: %s does not match scope, ignoring.%n",
-                        requestInfo.getUrl()
+                        context.describe()
                 );
             }
         } else if (!messageIsRequest && URLIsAuthorizeURL) {
+            // the refresh parses its own response, so don't parse the same token twice,
+            // this includes late responses to attempts which have timed out and must not publish a token
+            if (toolFlag == IBurpExtenderCallbacks.TOOL_EXTENDER && refreshExecutor.isSending(currentRequest.getRequest())) {
+                logController.debug("Response to authorization URL is from a refresh, leaving it to the refresh.");
+                return;
+            }
+
             logController.debug(
                     "Request URL: %s matches authorization URL: %s, attempting to parse token from response.%n",
-                    requestInfo.getUrl(), authorizeURL
+                    context.getUrl(), state.getAuthorizeURL()
             );
             processAuthResponse(currentRequest);
+        } else if (!messageIsRequest && toolEnabled && toolFlag != IBurpExtenderCallbacks.TOOL_EXTENDER
+                && state.getFailureSignature().isEnabled()) {
+            // responses to requests from extensions, including our own replays, never trigger a refresh
+            processFailedResponse(state, context, currentRequest);
+        }
+    }
+
+    /**
+     * Run as a burp session handling action, adding the token to a request which burp's session handling
+     * rules have already matched, so the scope table isn't checked. Any macro responses from the auth URL
+     * are parsed for a new token first, letting a login macro drive refreshes.
+     * <p>
+     * Session handling actions only see requests, so rejected tokens can't be detected this way,
+     * refreshes come from the token expiry, the macros, or the global HTTP listener if it is enabled.
+     *
+     * @param currentRequest the request to add the token to
+     * @param macroItems     the results of any macros run by the rule before this action, may be null
+     */
+    public void performSessionAction(@NotNull IHttpRequestResponse currentRequest, IHttpRequestResponse[] macroItems) {
+        var state = authState.get();
+        if (!state.isListening()) return;
+
+        if (macroItems != null) {
+            for (var item : macroItems) {
+                if (item.getResponse() != null && isAuthorizeURL(state, new RequestContext(helpers, item))) {
+                    logController.debug("Macro made a request to the authorization URL, attempting to parse token from response.");
+                    processAuthResponse(item);
+                    state = authState.get();
+                }
+            }
+        }
+
+        // the token is already in the cookie jar, which burp's session handling applies itself
+        if (state.getTokenDelivery() == TokenDelivery.CookieJar) return;
+
+        var context = new RequestContext(helpers, currentRequest);
+        if (isAuthorizeURL(state, context)) return;
+
+        logController.debug("Session handling action adding header to URL: %s.", context.getUrl());
+
+        injectToken(state, context, currentRequest);
+    }
+
+    /**
+     * Helper method to add the token to a request which should have it, holding the request
+     * until a refresh completes if there is no valid token.
+     *
+     * @param state          the state the message is being handled with
+     * @param context        the request to add the token to
+     * @param currentRequest the request, which is updated if the token is added
+     */
+    private void injectToken(
+            @NotNull AuthState state,
+            @NotNull RequestContext context,
+            @NotNull IHttpRequestResponse currentRequest
+    ) {
+        if (!state.hasUsableToken() || state.isTokenExpired()) {
+            // hold the request until a refresh completes, rather than sending it just to get a 401
+            logController.debug("No valid token for URL: %s, holding request for refresh.", context.getUrl());
+
+            if (refreshCoordinator.awaitRefresh()) state = authState.get();
+
+            if (!state.hasUsableToken()) {
+                logController.debug("No token available for URL: %s, sending without header.", context.getUrl());
+                return;
+            }
+        }
+
+        var updatedRequest = replaceHeaders(state, context);
+
+        // the splicer hands back the original array if the header was already correct
+        if (updatedRequest != context.getRequest()) {
+            currentRequest.setRequest(updatedRequest);
+        }
+    }
+
+    /**
+     * Helper method to check whether a response shows the token was rejected, and if so refresh the token
+     * and optionally replay the request with the new one.
+     * <p>
+     * The token is only refreshed if the request was sent with the current token, a request sent with an older
+     * token, or without one, failing says nothing about the current one. Even then refreshes are at least
+     * {@link #MIN_REJECTED_REFRESH_INTERVAL} apart, so a server which rejects every token can't cause a refresh loop.
+     *
+     * @param state          the state the message is being handled with
+     * @param context        the request which got the response
+     * @param currentRequest the request and its response
+     */
+    private void processFailedResponse(
+            @NotNull AuthState state,
+            @NotNull RequestContext context,
+            @NotNull IHttpRequestResponse currentRequest
+    ) {
+        var response = currentRequest.getResponse();
+        if (response == null || !state.getFailureSignature().matches(response)) return;
+
+        // the signature is checked first as it is much cheaper than the scope
+        if (!scopeController.mayBeInScope(currentRequest.getHttpService())
+                || !scopeController.inScope(context.getUrl())) return;
+
+        CompletableFuture<Optional<String>> refreshed;
+        if (!sentCurrentToken(state, context.getRequest()) || state.isTokenSetManually()) {
+            refreshed = CompletableFuture.completedFuture(Optional.empty());
+        } else if (!claimRejectedRefresh()) {
+            logController.debug(
+                    "Response to URL: %s shows the token was rejected, but a refresh was started too recently.",
+                    context.getUrl()
+            );
+            refreshed = CompletableFuture.completedFuture(Optional.empty());
+        } else {
+            logController.info("Response to URL: %s shows the token was rejected, refreshing.", context.getUrl());
+            refreshed = refreshCoordinator.requestRefresh(true);
+        }
+
+        if (!state.isReplayFailedRequests()) return;
+
+        // the cookie jar is only applied by burp's session handling rules, which a replay doesn't go through
+        if (state.getTokenDelivery() == TokenDelivery.CookieJar) return;
+
+        // burp's thread handling this response is held until the replay finishes or the replay timeout passes,
+        // the wait for the new token is part of the same time as the replay can't be sent without it
+        var replayed = requestReplayer.replay(currentRequest, () -> {
+            try {
+                refreshed.get(requestReplayer.getTimeout().toMillis(), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException _e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (ExecutionException | TimeoutException _e) {
+                return null;
+            }
+
+            var refreshedState = authState.get();
+            if (!refreshedState.hasUsableToken()) return null;
+
+            return replaceHeaders(refreshedState, new RequestContext(helpers, currentRequest));
+        });
+
+        if (replayed == null || replayed.getResponse() == null) {
+            logController.debug("Failed to replay request to URL: %s.", context.getUrl());
+            return;
+        }
+
+        logController.debug("Replayed request to URL: %s with the new token.", context.getUrl());
+
+        // the tool sees the replayed request and response in place of the failed one
+        currentRequest.setRequest(replayed.getRequest());
+        currentRequest.setResponse(replayed.getResponse());
+    }
+
+    /**
+     * Helper method to check whether a request was sent with the current token, in the way it is delivered.
+     *
+     * @param state   the state the message is being handled with
+     * @param request the raw request
+     * @return whether the request carried the current token
+     */
+    private static boolean sentCurrentToken(@NotNull AuthState state, @NotNull byte[] request) {
+        var token = state.getToken();
+        if (token.isEmpty()) return false;
+
+        if (state.getTokenDelivery() == TokenDelivery.CookieJar) {
+            var cookies = HeaderSplicer.findHeaderValue(request, "Cookie");
+            if (cookies == null) return false;
+
+            var expected = state.getCookieName() + "=" + token.get();
+            return Arrays.stream(cookies.split(";")).map(String::trim).anyMatch(expected::equals);
         }
+
+        var sentValue = HeaderSplicer.findHeaderValue(request, state.getHeaderName());
+        return sentValue != null && (state.getHeaderValuePrefix() + token.get()).trim().equals(sentValue);
+    }
+
+    /**
+     * Helper method to rate limit the refreshes started by rejected tokens.
+     *
+     * @return whether a refresh may be started now, if so the next one must wait for the minimum interval
+     */
+    private boolean claimRejectedRefresh() {
+        var now = System.nanoTime();
+        var last = lastRejectedRefresh.get();
+
+        return now - last >= MIN_REJECTED_REFRESH_INTERVAL.toNanos() && lastRejectedRefresh.compareAndSet(last, now);
+    }
+
+    /**
+     * Check whether the message is going to the authorization URL.
+     * The http service is compared first so that messages to other hosts
+     * never need to be analyzed.
+     *
+     * @param state   the state to check against
+     * @param context the message to check
+     * @return whether the URL of the message is equal to the authorization URL
+     */
+    private boolean isAuthorizeURL(@NotNull AuthState state, @NotNull RequestContext context) {
+        var url = state.getAuthorizeURL();
+
+        return context.mayMatch(url) && UrlComparison.compareEqual(context.getUrl(), url);
     }
 
     /**
@@ -148,169 +561,703 @@ public class TokenListener implements IHttpListener, IExtensionStateListener {
      * @param currentRequest the current request to the auth URL
      */
     public void processAuthResponse(@NotNull IHttpRequestResponse currentRequest, boolean fromContextMenu) {
+        parseAuthResponse(currentRequest, fromContextMenu, () -> true);
+    }
+
+    /**
+     * Helper method to extract the token from a response and update the state with it.
+     *
+     * @param currentRequest  the current request to the auth URL
+     * @param fromContextMenu whether the response was sent from the context menu, overriding a manual token
+     * @param commit          checked right before the token is published, see RefreshExecutor.Attempt
+     * @return the parsed token, or empty if there was no token, the token was set manually,
+     * or the commit check failed
+     */
+    private Optional<String> parseAuthResponse(
+            @NotNull IHttpRequestResponse currentRequest,
+            boolean fromContextMenu,
+            @NotNull BooleanSupplier commit
+    ) {
         // if the current token is being set from the context menu then it overrides the manual one
-        if (fromContextMenu) {
-            tokenSetManually = false;
-        }
+        var state = fromContextMenu
+                ? authState.updateAndGet(s -> s.withTokenSetManually(false))
+                : authState.get();
 
         // if the current token was set manually don't attempt to process a new one
-        if (tokenSetManually) {
+        if (state.isTokenSetManually()) {
             logController.debug("Token set manually, ignoring auth response.");
-            return;
+            return Optional.empty();
         }
 
-        // create a matcher over the entire response
-        var m = tokenPattern.matcher(
-                helpers.bytesToString(currentRequest.getResponse())
-        );
+        var receivedAt = Instant.now();
+        var response = currentRequest.getResponse();
+        var token = findToken(state, response);
 
-        if (m.find()) {
-            var token = m.group(1);
-            updateToken(token);
+        if (token != null && !commit.getAsBoolean()) {
+            logController.info("Discarding token from a refresh attempt which timed out.");
+            return Optional.empty();
+        }
+
+        if (token != null) {
+            var rules = state.getInjectionRules();
+            UnaryOperator<AuthState> withValues = UnaryOperator.identity();
+            if (!rules.isEmpty()) {
+                var values = rules.extract(response, state.getMaxTokenScanLength());
+
+                // the rules may have been changed while the response was parsed
+                withValues = s -> s.getInjectionRules() == rules ? s.withExtractedValues(values) : s;
+            }
+
+            var expiry = localExpiry(token, response, receivedAt);
+            var refreshToken = state.getTokenSource() == TokenSource.RefreshToken
+                    ? findRefreshToken(state, response)
+                    : Optional.<String>empty();
+
+            // the values are published with the token, so a request never gets the new token with old values
+            updateToken(token, expiry, refreshToken, withValues);
 
             logController.info(
                     "Parsed token \"%s\" from response to authorization URL.", token
             );
-        } else {
-            logController.info("Failed to parse token from response to authorization URL.");
+
+            expiry.ifPresent(e -> scheduleExpiryRefresh(state, token, e));
+
+            return Optional.of(token);
         }
+
+        logController.info("Failed to parse token from response to authorization URL.");
+        return Optional.empty();
+    }
+
+    /**
+     * Helper method to search an auth response for the token without copying it into a String.
+     * <p>
+     * In regex mode the body is searched first, up to the configured maximum scan length,
+     * and only if the token isn't there are the headers searched, e.g. for a Set-Cookie header.
+     * In JSON path mode only the body is searched.
+     *
+     * @param state    the state holding the token pattern
+     * @param response the raw response, may be null if the request failed
+     * @return the first group of the first match, or null if there is no match
+     */
+    private String findToken(@NotNull AuthState state, byte[] response) {
+        if (response == null) return null;
+
+        var bodyOffset = HeaderSplicer.findBodyOffset(response);
+
+        // without a blank line we can't tell where the body is, so treat it all as the body
+        if (bodyOffset == -1) bodyOffset = 0;
+
+        var bodyLength = Math.min(response.length - bodyOffset, state.getMaxTokenScanLength());
+
+        if (state.getTokenExtractionMode() == TokenExtractionMode.JsonPath) {
+            return state.getTokenJsonPath().extract(response, bodyOffset, bodyLength);
+        }
+
+        var m = state.getTokenPattern().matcher(new ByteCharSequence(response, bodyOffset, bodyLength));
+
+        if (m.find()) return m.group(1);
+        if (bodyOffset == 0) return null;
+
+        m = state.getTokenPattern().matcher(new ByteCharSequence(response, 0, bodyOffset));
+
+        return m.find() ? m.group(1) : null;
+    }
+
+    /**
+     * Helper method to read the OAuth2 refresh token from the body of an auth response.
+     *
+     * @param state    the state holding the maximum scan length
+     * @param response the raw response
+     * @return the refresh token, or empty if the response doesn't have one
+     */
+    private Optional<String> findRefreshToken(@NotNull AuthState state, @NotNull byte[] response) {
+        var bodyOffset = HeaderSplicer.findBodyOffset(response);
+        if (bodyOffset == -1) bodyOffset = 0;
+
+        var bodyLength = Math.min(response.length - bodyOffset, state.getMaxTokenScanLength());
+
+        return Optional.ofNullable(REFRESH_TOKEN_PATH.extract(response, bodyOffset, bodyLength));
+    }
+
+    /**
+     * Helper method to work out when a token expires according to our clock.
+     * <p>
+     * The exp claim is in the issuer's time, so it is corrected by the difference between our clock
+     * and the Date header of the auth response, or the iat claim if the response has no Date header.
+     *
+     * @param token      the token parsed from the response
+     * @param response   the raw auth response
+     * @param receivedAt when we received the response
+     * @return the local time the token expires, or empty for opaque tokens and JWTs without an exp claim
+     */
+    private Optional<Instant> localExpiry(@NotNull String token, byte[] response, @NotNull Instant receivedAt) {
+        var claims = JwtClaims.parse(token);
+        var expiresAt = claims.flatMap(JwtClaims::getExpiresAt);
+        if (expiresAt.isEmpty()) return Optional.empty();
+
+        var serverNow = Optional.ofNullable(response)
+                .map(r -> HeaderSplicer.findHeaderValue(r, "Date"))
+                .flatMap(TokenListener::parseHttpDate)
+                .or(() -> claims.flatMap(JwtClaims::getIssuedAt));
+
+        var skew = serverNow.map(n -> Duration.between(n, receivedAt)).orElse(Duration.ZERO);
+
+        return Optional.of(expiresAt.get().plus(skew));
+    }
+
+    private static Optional<Instant> parseHttpDate(@NotNull String date) {
+        try {
+            return Optional.of(ZonedDateTime.parse(date, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant());
+        } catch (DateTimeParseException _e) {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Helper method to schedule a refresh the configured margin before the token expires.
+     * <p>
+     * The margin is capped at half the lifetime of the token, so short lived tokens are still used for a while.
+     *
+     * @param state       the state the token was parsed with, holding the refresh margin
+     * @param token       the new token
+     * @param localExpiry when the token expires according to our clock
+     */
+    private void scheduleExpiryRefresh(@NotNull AuthState state, @NotNull String token, @NotNull Instant localExpiry) {
+        var now = Instant.now();
+        var margin = state.getRefreshMargin();
+
+        var lifetime = JwtClaims.parse(token)
+                .flatMap(c -> c.getIssuedAt().flatMap(iat -> c.getExpiresAt().map(exp -> Duration.between(iat, exp))));
+        if (lifetime.isPresent() && !lifetime.get().isNegative() && margin.compareTo(lifetime.get().dividedBy(2)) > 0) {
+            margin = lifetime.get().dividedBy(2);
+        }
+
+        // never refresh immediately, or a server handing out expired tokens would be asked for a new one in a loop
+        var delay = Duration.between(now, localExpiry.minus(margin));
+        if (delay.compareTo(MIN_EXPIRY_REFRESH_DELAY) < 0) {
+            logController.info("Token expires at %s, which is within the refresh margin.", localExpiry);
+            delay = MIN_EXPIRY_REFRESH_DELAY;
+        }
+
+        var future = executor.schedule(this::refreshBeforeExpiry, delay.toMillis(), TimeUnit.MILLISECONDS);
+        cancelExpiryRefresh(future);
+
+        logController.debug(
+                "Token expires at %s, refresh scheduled in %d seconds.", localExpiry, delay.toSeconds()
+        );
+    }
+
+    /**
+     * Helper method to replace the scheduled expiry refresh, cancelling the old one.
+     *
+     * @param replacement the new refresh, or null to just cancel
+     */
+    private void cancelExpiryRefresh(ScheduledFuture<?> replacement) {
+        var previous = expiryRefresh.getAndSet(replacement);
+        if (previous != null) previous.cancel(false);
+    }
+
+    private void refreshBeforeExpiry() {
+        if (!isListening() || isTokenSetManually()) return;
+
+        logController.debug("Token is about to expire - refreshing.");
+        scheduleTokenRefresh();
     }
 
     /**
      * Schedules an attempt to refresh the token.
      * <p>
-     * we increment stamp atomically and get the result, if the stamp hasn't
-     * changed by the time we are called two seconds later, then we refresh the token.
+     * The refresh happens after the debounce delay, and scheduling another refresh before then pushes it back,
+     * so a burst of calls results in a single refresh. Calls while a refresh is in flight join it.
      */
     public void scheduleTokenRefresh() {
         logController.debug("Token refresh scheduled.");
-        var stamp = this.lastRefreshStamp.incrementAndGet();
 
-        executor.schedule(
-                () -> {
-                    int currStamp = this.lastRefreshStamp.get();
-                    if (stamp == currStamp) {
-                        logController.debug("Stamps match - refreshing token.");
-                        this.refreshToken();
-                    } else {
-                        logController.debug("Stamps don't match - ignoring refresh.");
-                    }
-                },
-                2,
-                TimeUnit.SECONDS);
+        refreshCoordinator.requestRefresh(false);
     }
 
     /**
      * Attempt the refresh the current token, either by using a request sent to
      * the extension, or by creating a simple HTTP GET request to the auth URL.
+     * <p>
+     * Note: only called by the refresh executor, on one of its worker threads
+     *
+     * @param commit claims the attempt before its token is published, see RefreshExecutor.Attempt
+     * @return the parsed token, or empty if there is nothing to refresh
+     * @throws RefreshExecutor.RefreshFailedException if no token could be parsed, so the attempt can be retried
      */
-    private void refreshToken() {
-        IHttpRequestResponse resp = null;
-        try {
-            if (this.authorizeRequest.isPresent()) {
-                var req = this.authorizeRequest.get();
+    private Optional<String> refreshToken(@NotNull BooleanSupplier commit) {
+        var state = authState.get();
+        var authorizeURL = state.getAuthorizeURL();
 
-                // the listener will automatically pick up on the response and parse the token
-                resp = callbacks.makeHttpRequest(
-                        req.getHttpService(), req.getRequest()
+        if (state.isTokenSetManually()) return Optional.empty();
+
+        if (state.getTokenSource() == TokenSource.LocalJwt) return mintToken(state, commit);
+
+        // don't make requests to the default URL
+        if (!state.hasAuthorizeRequest() && authorizeURL.toString().equals(TokenListener.DEFAULT_AUTH_URL)) {
+            return Optional.empty();
+        }
+
+        var grant = state.getOAuthGrant();
+        var usedRefreshToken = state.getTokenSource() == TokenSource.RefreshToken && state.getRefreshToken().isPresent();
+
+        IHttpService service;
+        byte[] request;
+        if (state.getTokenSource() == TokenSource.ClientCredentials) {
+            service = grant.getService();
+            request = grant.clientCredentialsRequest();
+        } else if (usedRefreshToken) {
+            service = grant.getService();
+            request = grant.refreshTokenRequest(state.getRefreshToken().get());
+        } else if (state.hasAuthorizeRequest()) {
+            // this is also how the first refresh token is fetched
+            service = state.getAuthorizeService();
+            request = state.getAuthorizeRequest();
+        } else {
+            service = helpers.buildHttpService(
+                    authorizeURL.getHost(),
+                    authorizeURL.getPort(),
+                    authorizeURL.getProtocol()
+            );
+
+            request = helpers.buildHttpRequest(authorizeURL);
+        }
+
+        var resp = refreshExecutor.sending(request, () -> callbacks.makeHttpRequest(service, request));
+
+        if (resp == null || resp.getResponse() == null) {
+            throw new RefreshExecutor.RefreshFailedException("No response from authorization URL");
+        }
+
+        // the listener skips responses to refreshes, so the token is only parsed once
+        var token = parseAuthResponse(resp, false, commit);
+
+        // the token may have been set manually while the request was in flight
+        if (token.isEmpty() && !isTokenSetManually()) {
+            // the refresh token has probably expired or been revoked, so log in again on the next attempt,
+            // unless this attempt has timed out and a newer one may have replaced it already
+            if (usedRefreshToken && commit.getAsBoolean()) updateState(s -> s.withRefreshToken(Optional.empty()));
+
+            throw new RefreshExecutor.RefreshFailedException("Failed to parse token from response");
+        }
+
+        return token;
+    }
+
+    /**
+     * Helper method to mint a new token locally, in place of a refresh request.
+     *
+     * @param state  the state holding the minter
+     * @param commit claims the attempt before its token is published, see RefreshExecutor.Attempt
+     * @return the minted token, or empty if the minter settings can't be used or the attempt timed out
+     */
+    private Optional<String> mintToken(@NotNull AuthState state, @NotNull BooleanSupplier commit) {
+        var minter = state.getJwtMinter();
+
+        if (minter.getError().isPresent()) {
+            logController.error("Can't mint a token: %s", minter.getError().get());
+            return Optional.empty();
+        }
+
+        var token = minter.mint(Instant.now());
+        if (!commit.getAsBoolean()) return Optional.empty();
+
+        // the token was issued by our own clock, so there is no skew to correct
+        var expiry = JwtClaims.parse(token).flatMap(JwtClaims::getExpiresAt);
+        updateToken(token, expiry, Optional.empty());
+
+        logController.info("Minted new token \"%s\".", token);
+
+        expiry.ifPresent(e -> scheduleExpiryRefresh(state, token, e));
+
+        return Optional.of(token);
+    }
+
+    /**
+     * Helper method to log the progress of a refresh.
+     */
+    private void logRefreshEvent(@NotNull RefreshEvent event) {
+        switch (event.getType()) {
+            case ATTEMPT_FAILED:
+                logController.info(
+                        "Token refresh attempt %d failed after %dms: %s",
+                        event.getAttempt(), event.getElapsed().toMillis(),
+                        event.getCause().map(Throwable::toString).orElse("unknown cause")
                 );
-            } else {
-                // don't make requests to the default URL
-                if (this.authorizeURL.toString().equals(TokenListener.DEFAULT_AUTH_URL)) return;
-
-                var service = helpers.buildHttpService(
-                        this.authorizeURL.getHost(),
-                        this.authorizeURL.getPort(),
-                        this.authorizeURL.getProtocol()
+                break;
+            case FAILED:
+                logController.error("Token refresh failed after %d attempts.", event.getAttempt());
+                break;
+            case CIRCUIT_OPENED:
+                logController.error(
+                        "Too many token refreshes failed in a row, not refreshing for %d seconds.",
+                        event.getDelay().map(Duration::toSeconds).orElse(0L)
                 );
+                break;
+            case CIRCUIT_CLOSED:
+                logController.info("Token refresh succeeded again, refreshes have resumed.");
+                break;
+            default:
+                logController.debug("Token refresh event: %s", event);
+                break;
+        }
+    }
 
-                var request = helpers.buildHttpRequest(this.authorizeURL);
+    /**
+     * Helper method to replace the authentication headers on a given request.
+     * It splices the raw request bytes directly, dropping any header lines with our
+     * header name, in any case, whose value starts with the header value prefix,
+     * then adding our pre-encoded auth header as the last header.
+     * If there are injection rules, the request is rewritten with those in the same pass instead.
+     * <p>
+     * Falls back to rebuilding the request with the burpsuite helpers
+     * if the request doesn't have a well formed header block.
+     *
+     * @param state   the state holding the header to add, which must have a token
+     * @param context the request to replace the headers on
+     * @return the new request with its headers replaced, or the original bytes if they were already up to date
+     */
+    private byte[] replaceHeaders(AuthState state, RequestContext context) {
+        var request = context.getRequest();
+        var template = state.getHeaderTemplate();
+
+        if (state.getInjectionRules().isEmpty()) {
+            var spliced = HeaderSplicer.replaceHeader(request, template);
+            if (spliced != null) return spliced;
+        } else {
+            var rewritten = RequestRewriter.rewrite(request, template, state.getInjectionRules(), state.getInjectionValues());
+            if (rewritten != null) return rewritten;
+        }
+
+        var requestInfo = context.getRequestInfo();
+
+        // Remove the old auth header and add a new one with the correct token
+        var headers = (ArrayList<String>) requestInfo.getHeaders();
+        headers.removeIf(template::matchesLine);
+        headers.add(template.getLine());
+
+        // Replace the current request with a new request with the updated headers
+        return helpers.buildHttpMessage(headers,
+                Arrays.copyOfRange(request,
+                        requestInfo.getBodyOffset(),
+                        request.length));
+    }
+
+    /**
+     * Helper method to replace the cached request after the auth URL changed.
+     * <p>
+     * Note: can update the GUI
+     */
+    private void replaceCachedRequest() {
+        updateState(s -> s.withoutAuthorizeRequest().withRefreshToken(Optional.empty()));
 
-                // the listener will automatically pick up on the response and parse the token
-                resp = callbacks.makeHttpRequest(service, request);
+        this.retireCachedToken();
+    }
+
+    /**
+     * Helper method to replace the cached token after a setting used to fetch or parse it changed.
+     * <p>
+     * While listening, the current token keeps being injected for up to the grace period
+     * and a new one is fetched in the background, which replaces it as soon as it is parsed.
+     * This means in scope requests never go out without a header while the token is rotated.
+     * Otherwise, or if the grace period is zero, the token is invalidated straight away.
+     * <p>
+     * Note: can update the GUI
+     */
+    private void retireCachedToken() {
+        var state = authState.get();
+        var gracePeriod = state.getTokenGracePeriod();
+
+        if (!state.isListening() || state.getToken().isEmpty() || state.isTokenSetManually() || gracePeriod.isZero()) {
+            this.invalidateCachedToken();
+            return;
+        }
+
+        var deadline = System.currentTimeMillis() + gracePeriod.toMillis();
+        updateState(s -> s.withTokenRetired(deadline));
+
+        // the old token's expiry no longer matters, the refresh below replaces it
+        cancelExpiryRefresh(null);
+        executor.schedule(() -> dropRetiredToken(deadline), gracePeriod.toMillis(), TimeUnit.MILLISECONDS);
+
+        logController.info(
+                "Token settings changed, using the current token for up to %d seconds while a new one is fetched.",
+                gracePeriod.toSeconds()
+        );
+
+        this.scheduleTokenRefresh();
+    }
+
+    /**
+     * Helper method to drop a retired token once its grace period is over, unless it was already replaced.
+     * <p>
+     * Note: can update the GUI
+     *
+     * @param deadline the deadline the token was retired with
+     */
+    private void dropRetiredToken(long deadline) {
+        var previous = updateState(s -> s.getTokenGraceDeadline() == deadline ? s.withoutToken() : s);
+        if (previous.getTokenGraceDeadline() != deadline) return;
+
+        logController.error("No new token was parsed within the grace period, the old token has been dropped.");
+        persistTokenCache();
+
+        tokenListenerStatePanel.setHeaderFieldText(DEFAULT_HEADER_MISSING);
+        tokenListenerStatePanel.updateToken(DEFAULT_TOKEN_MISSING, false);
+    }
+
+    /**
+     * Helper method to invalidate the cached token.
+     * <p>
+     * Note: can update the GUI
+     */
+    private void invalidateCachedToken() {
+        // stop listening whenever we invalidate the token
+        setIsListening(false);
+
+        updateState(AuthState::withoutToken);
+        cancelExpiryRefresh(null);
+        persistTokenCache();
+
+        // update the GUI
+        tokenListenerStatePanel.setHeaderFieldText(DEFAULT_HEADER_MISSING);
+        tokenListenerStatePanel.updateToken(DEFAULT_TOKEN_MISSING, false);
+    }
+
+    /**
+     * Helper method to save the current token to the token cache, or clear it if there is nothing to save.
+     * <p>
+     * Only tokens with a known expiry are saved, as there is no way to tell whether any other token
+     * is still valid when it is restored. Manual tokens aren't saved either.
+     * Clearing the token leaves the saved settings alone, they are kept in their own cache.
+     * The cache is written on the executor, so saves and clears happen in the order they were made.
+     */
+    private void persistTokenCache() {
+        if (restoringCaches) return;
+
+        var state = authState.get();
+
+        executor.execute(() -> {
+            try {
+                if (state.getToken().isEmpty() || state.isTokenSetManually() || state.getTokenExpiresAt() == 0) {
+                    tokenCache.clear();
+                    return;
+                }
+
+                var values = new Properties();
+                values.setProperty(CACHE_TOKEN, state.getToken().get());
+                values.setProperty(CACHE_TOKEN_EXPIRES_AT, Long.toString(state.getTokenExpiresAt()));
+                state.getRefreshToken().ifPresent(t -> values.setProperty(CACHE_REFRESH_TOKEN, t));
+
+                tokenCache.save(values);
+            } catch (RuntimeException e) {
+                logController.error("Failed to save the token cache: %s", e);
             }
-        } catch (RuntimeException e) {
-            SwingUtilities.invokeLater(
-                    () -> logController.error(
-                            "Caught exception while refreshing token: %s", e
-                    )
-            );
+        });
+    }
+
+    /**
+     * Helper method to save the current auth settings to the settings cache.
+     * <p>
+     * The settings are read when the save is queued rather than when it runs, and the cache is written
+     * on the executor, so the last save always holds the latest settings.
+     */
+    private void persistSettings() {
+        var values = savedSettings(authState.get());
+
+        executor.execute(() -> {
+            try {
+                settingsCache.save(values);
+            } catch (RuntimeException e) {
+                logController.error("Failed to save the settings cache: %s", e);
+            }
+        });
+    }
+
+    /**
+     * Helper method to pick out the settings which are saved across reloads.
+     * <p>
+     * The authorization request may hold credentials, so it is only saved if the user has asked for it.
+     *
+     * @param state the state to read the settings from
+     * @return the values to save
+     */
+    private static Properties savedSettings(@NotNull AuthState state) {
+        var values = new Properties();
+        values.setProperty(CACHE_IS_LISTENING, Boolean.toString(state.isListening()));
+        values.setProperty(CACHE_AUTH_URL, state.getAuthorizeURL().toString());
+        values.setProperty(CACHE_PERSIST_AUTH_REQUEST, Boolean.toString(state.isPersistAuthorizeRequest()));
+        if (state.isPersistAuthorizeRequest() && state.hasAuthorizeRequest()) {
+            var service = state.getAuthorizeService();
+            values.setProperty(CACHE_AUTH_REQUEST_HOST, service.getHost());
+            values.setProperty(CACHE_AUTH_REQUEST_PORT, Integer.toString(service.getPort()));
+            values.setProperty(CACHE_AUTH_REQUEST_PROTOCOL, service.getProtocol());
+            values.setProperty(CACHE_AUTH_REQUEST, Base64.getEncoder().encodeToString(state.getAuthorizeRequest()));
+        }
+        values.setProperty(CACHE_HEADER_NAME, state.getHeaderName());
+        values.setProperty(CACHE_HEADER_VALUE_PREFIX, state.getHeaderValuePrefix());
+        values.setProperty(CACHE_TOKEN_EXTRACTION_MODE, state.getTokenExtractionMode().name());
+        values.setProperty(CACHE_TOKEN_REGEX, state.getTokenPattern().pattern());
+        values.setProperty(CACHE_TOKEN_JSON_PATH, state.getTokenJsonPath().toString());
+        values.setProperty(CACHE_TOKEN_SOURCE, state.getTokenSource().name());
+        values.setProperty(CACHE_INJECTION_RULES, state.getInjectionRules().getText());
+        values.setProperty(CACHE_TOKEN_DELIVERY, state.getTokenDelivery().name());
+        values.setProperty(CACHE_COOKIE_NAME, state.getCookieName());
+
+        var toolRouting = state.getToolRouting();
+        for (var tool : BurpTool.values()) {
+            values.setProperty(CACHE_TOOL_ENABLED + tool, Boolean.toString(toolRouting.isEnabled(tool.getFlag())));
+
+            var level = toolRouting.getLogLevel(tool.getFlag());
+            if (level != null) values.setProperty(CACHE_TOOL_LOG_LEVEL + tool, level.name());
+        }
+
+        return values;
+    }
+
+    /**
+     * Restore the auth settings and the token saved by the last session.
+     * <p>
+     * The settings are always restored, but the token is only used if it hasn't expired.
+     * Changing the settings would normally save them or clear the token, that is held off until
+     * everything is restored, so an expired token doesn't take the saved settings with it.
+     * The authorization request set from the context menu is restored too if it was saved, so refreshes keep using it.
+     * If we were listening when the token was saved then listening starts again straight away,
+     * so the restored token is injected while a new one is fetched in the background.
+     * <p>
+     * Note: always updates the GUI, must be called on the EDT once the settings controller is set
+     */
+    public void restoreTokenCache() {
+        final Optional<Properties> settings;
+        final Optional<Properties> token;
+        try {
+            settings = loadCache(settingsCache, "settings");
+            token = loadCache(tokenCache, "token");
+
+            settings.ifPresent(this::restoreSettings);
+        } finally {
+            restoringCaches = false;
+        }
+
+        if (token.isEmpty()) return;
+
+        var values = token.get();
+        var cachedToken = values.getProperty(CACHE_TOKEN);
+        final long expiresAt;
+        try {
+            expiresAt = Long.parseLong(values.getProperty(CACHE_TOKEN_EXPIRES_AT, "0"));
+        } catch (NumberFormatException _e) {
+            return;
         }
 
-        // if we are already listening then it will get processed with the rest of the tokens
-        if (resp != null && !isListening) {
-            processAuthResponse(resp);
+        var expiry = Instant.ofEpochMilli(expiresAt);
+        if (cachedToken == null || Instant.now().plus(MIN_EXPIRY_REFRESH_DELAY).isAfter(expiry)) {
+            logController.info("Cached token has expired, a new one will be fetched when listening starts.");
+            return;
         }
+
+        updateToken(cachedToken, Optional.of(expiry), Optional.ofNullable(values.getProperty(CACHE_REFRESH_TOKEN)));
+        scheduleExpiryRefresh(authState.get(), cachedToken, expiry);
+
+        logController.info("Restored cached token, which expires at %s.", expiry);
+
+        var wasListening = settings.map(s -> Boolean.parseBoolean(s.getProperty(CACHE_IS_LISTENING))).orElse(false);
+        if (wasListening) setIsListening(true);
     }
 
     /**
-     * Helper method to replace the authentication headers on a given request.
-     * It gets the headers from the burpsuite helpers then filters out any which
-     * start with the same header prefix as our authentication header.
-     * Then finally adds out auth header back in and rebuilds the request.
+     * Helper method to load one of the caches, clearing it if it can't be read.
      *
-     * @param currentRequest the request to replace the headers on
-     * @return the new request with its headers replaced
+     * @return the cached values, or empty if there are none
      */
-    private byte[] replaceHeaders(IHttpRequestResponse currentRequest) {
-        var requestInfo = helpers.analyzeRequest(currentRequest);
-
-        // Remove the old auth header and add a new one with the correct token
-        var headers = (ArrayList<String>) requestInfo.getHeaders();
-        headers.removeIf(header -> header.startsWith(this.makeHeaderPrefix()));
-        headers.add(this.makeHeader());
-
-        // Replace the current request with a new request with the updated headers
-        return helpers.buildHttpMessage(headers,
-                Arrays.copyOfRange(currentRequest.getRequest(),
-                        requestInfo.getBodyOffset(),
-                        currentRequest.getRequest().length));
+    private Optional<Properties> loadCache(TokenCache cache, String description) {
+        try {
+            return cache.load();
+        } catch (IllegalStateException e) {
+            logController.error("Failed to restore the %s cache, it has been cleared: %s", description, e);
+            cache.clear();
+            return Optional.empty();
+        }
     }
 
     /**
-     * Helper method to invalidate the cached authorization request.
+     * Helper method to restore the settings saved in the settings cache.
+     * <p>
+     * Restoring the settings through their rows keeps the GUI and the state in step.
      */
-    private void invalidateCachedRequest() {
-        // stop listening whenever we invalidate something
-        setIsListening(false);
+    private void restoreSettings(Properties values) {
+        restoreRow(values, CACHE_AUTH_URL, "authURL");
+        restoreRow(values, CACHE_HEADER_NAME, "headerName");
+        restoreRow(values, CACHE_HEADER_VALUE_PREFIX, "headerValuePrefix");
+        restoreRow(values, CACHE_TOKEN_REGEX, "tokenRegex");
+        restoreRow(values, CACHE_TOKEN_JSON_PATH, "tokenJsonPath");
+        restoreRow(values, CACHE_INJECTION_RULES, "injectionRules");
+        restoreRow(values, CACHE_COOKIE_NAME, "cookieName");
+
+        try {
+            settingsController.updateRow(
+                    "tokenExtractionMode",
+                    TokenExtractionMode.valueOf(values.getProperty(CACHE_TOKEN_EXTRACTION_MODE))
+            );
+            settingsController.updateRow("tokenSource", TokenSource.valueOf(values.getProperty(CACHE_TOKEN_SOURCE)));
+            settingsController.updateRow("tokenDelivery", TokenDelivery.valueOf(values.getProperty(CACHE_TOKEN_DELIVERY)));
+            settingsController.updateRow(
+                    "persistAuthorizeRequest",
+                    Boolean.parseBoolean(values.getProperty(CACHE_PERSIST_AUTH_REQUEST))
+            );
+
+            for (var tool : BurpTool.values()) {
+                var enabled = values.getProperty(CACHE_TOOL_ENABLED + tool);
+                if (enabled != null) settingsController.updateRow(CACHE_TOOL_ENABLED + tool, Boolean.parseBoolean(enabled));
 
-        // invalidate the request
-        this.authorizeRequest = Optional.empty();
+                var level = values.getProperty(CACHE_TOOL_LOG_LEVEL + tool);
+                if (level != null) settingsController.updateRow(CACHE_TOOL_LOG_LEVEL + tool, LogLevel.valueOf(level));
+            }
+        } catch (IllegalArgumentException | NullPointerException _e) {
+            logController.info("Settings cache was saved by a different version, some settings weren't restored.");
+        }
 
-        // invalidate the token
-        this.invalidateCachedToken();
+        // the auth URL row replaces the authorization request, so it is restored afterwards
+        restoreAuthorizeRequest(values);
     }
 
     /**
-     * Helper method to invalidate the cached token.
-     * <p>
-     * Note: can update the GUI
+     * Helper method to restore the authorization request saved with the settings, if there is one.
      */
-    private void invalidateCachedToken() {
-        // stop listening whenever we invalidate the token
-        setIsListening(false);
+    private void restoreAuthorizeRequest(Properties values) {
+        var request = values.getProperty(CACHE_AUTH_REQUEST);
+        if (request == null) return;
 
-        this.token = Optional.empty();
+        try {
+            var service = helpers.buildHttpService(
+                    values.getProperty(CACHE_AUTH_REQUEST_HOST),
+                    Integer.parseInt(values.getProperty(CACHE_AUTH_REQUEST_PORT)),
+                    values.getProperty(CACHE_AUTH_REQUEST_PROTOCOL)
+            );
+            var bytes = Base64.getDecoder().decode(request);
 
-        this.invalidateCachedHeader(false);
+            updateState(s -> s.withAuthorizeRequest(service, bytes));
+        } catch (IllegalArgumentException | NullPointerException _e) {
+            logController.info("Settings cache was saved by a different version, the authorization request wasn't restored.");
+        }
+    }
 
-        // update the GUI
-        tokenListenerStatePanel.updateToken(DEFAULT_TOKEN_MISSING, false);
+    private void restoreRow(Properties values, String name, String rowID) {
+        var value = values.getProperty(name);
+        if (value != null) settingsController.updateRow(rowID, value);
     }
 
     /**
-     * Helper method to invalidate the cached header.
+     * Helper method to update the GUI with the header built from the current state.
      * <p>
      * Note: can update the GUI
      */
-    private void invalidateCachedHeader(boolean setIsListening) {
-        if (setIsListening) setIsListening(false);
-
-        // invalidate the header
-        this.header = Optional.empty();
-
-        // update the GUI
-        tokenListenerStatePanel.setHeaderFieldText(DEFAULT_HEADER_MISSING);
+    private void updateHeaderField() {
+        tokenListenerStatePanel.setHeaderFieldText(
+                authState.get().getHeader().orElse(DEFAULT_HEADER_MISSING)
+        );
     }
 
     /**
@@ -318,64 +1265,71 @@ public class TokenListener implements IHttpListener, IExtensionStateListener {
      * <p>
      * Note: can update the GUI
      *
-     * @param newToken the token value that we just parsed from a request
+     * @param newToken        the token value that we just parsed from a request
+     * @param localExpiry     when the token expires, if it is known
+     * @param newRefreshToken the refresh token from the same response, the previous one is kept if empty
      */
-    private void updateToken(@NotNull String newToken) {
-        this.invalidateCachedHeader(false);
-
-        this.token = Optional.of(newToken);
-
-        // update the GUI with the new token
-        tokenListenerStatePanel.updateToken(newToken, false);
+    private void updateToken(
+            @NotNull String newToken,
+            @NotNull Optional<Instant> localExpiry,
+            @NotNull Optional<String> newRefreshToken
+    ) {
+        updateToken(newToken, localExpiry, newRefreshToken, UnaryOperator.identity());
     }
 
     /**
-     * Helper method to handle all of the logic for when the token is set manually.
+     * Helper method to handle all of the logic for when the token is updated, along with
+     * any other state from the same response, which is applied in the same state update.
      * <p>
      * Note: can update the GUI
      *
-     * @param newToken the token set by the user
+     * @param newToken        the token value that we just parsed from a request
+     * @param localExpiry     when the token expires, if it is known
+     * @param newRefreshToken the refresh token from the same response, the previous one is kept if empty
+     * @param alsoApply       any other changes to make to the state along with the token
      */
-    public void setTokenManual(@NotNull String newToken) {
-        this.invalidateCachedHeader(false);
-
-        this.token = Optional.of(newToken);
-        this.tokenSetManually = true;
-
-        logController.debug("Token set manually: token = \"%s\"", this.token);
+    private void updateToken(
+            @NotNull String newToken,
+            @NotNull Optional<Instant> localExpiry,
+            @NotNull Optional<String> newRefreshToken,
+            @NotNull UnaryOperator<AuthState> alsoApply
+    ) {
+        var expiresAt = localExpiry.map(Instant::toEpochMilli).orElse(0L);
+        updateState(s -> {
+            var updated = alsoApply.apply(s).withToken(newToken, false).withTokenExpiry(expiresAt);
+
+            // servers which don't rotate refresh tokens leave them out of the response
+            return newRefreshToken.isPresent() ? updated.withRefreshToken(newRefreshToken) : updated;
+        });
+
+        // tokens which don't say when they expire are refreshed by the GUI timer instead
+        if (localExpiry.isEmpty()) cancelExpiryRefresh(null);
 
         // update the GUI with the new token
-        tokenListenerStatePanel.updateToken(newToken, true);
-    }
+        updateHeaderField();
+        tokenListenerStatePanel.updateToken(newToken, false, localExpiry.isEmpty());
 
-    /**
-     * Helper method to have a uniform way to create the header prefix.
-     *
-     * @return the prefix used to create the header value
-     */
-    @NotNull
-    private String makeHeaderPrefix() {
-        // there is no point caching this, it's very cheap to update and doesn't have a GUI component
-        return headerName + ": " + headerValuePrefix;
+        persistTokenCache();
     }
 
     /**
-     * Helper method to handle caching the header value.
+     * Helper method to handle all of the logic for when the token is set manually.
      * <p>
      * Note: can update the GUI
      *
-     * @return the most recently used header, creating it if it doesn't exist.
+     * @param newToken the token set by the user
      */
-    @NotNull
-    private String makeHeader() {
-        if (this.header.isEmpty()) {
-            this.header = Optional.of(this.makeHeaderPrefix() + token.orElse("<no token>"));
+    public void setTokenManual(@NotNull String newToken) {
+        updateState(s -> s.withToken(newToken, true));
+        cancelExpiryRefresh(null);
 
-            // update the GUI with the created header
-            tokenListenerStatePanel.setHeaderFieldText(this.header.get());
-        }
+        logController.debug("Token set manually: token = \"%s\"", newToken);
 
-        return this.header.get();
+        // update the GUI with the new token
+        updateHeaderField();
+        tokenListenerStatePanel.updateToken(newToken, true);
+
+        persistTokenCache();
     }
 
     /**
@@ -385,10 +1339,13 @@ public class TokenListener implements IHttpListener, IExtensionStateListener {
      * attempts to request a token from the authorization URL
      */
     public void setAuthorizeURL(@NotNull URL newAuthorizeURL) {
-        if (!UrlComparison.compareEqual(authorizeURL, newAuthorizeURL)) {
-            this.invalidateCachedRequest();
+        if (!UrlComparison.compareEqual(authState.get().getAuthorizeURL(), newAuthorizeURL)) {
+            this.replaceCachedRequest();
 
-            this.authorizeURL = newAuthorizeURL;
+            updateState(s -> s
+                    .withAuthorizeURL(newAuthorizeURL)
+                    .withOAuthGrant(s.getOAuthGrant().withTokenEndpoint(newAuthorizeURL))
+            );
 
             logController.debug(
                     "Set new Authorization URL: %s", newAuthorizeURL
@@ -405,16 +1362,21 @@ public class TokenListener implements IHttpListener, IExtensionStateListener {
      * attempts to request a token from the authorization URL
      */
     public void setAuthorizeRequest(IHttpRequestResponse authorizeRequest) {
-        // note: we always invalidate the cache here because the request
+        // note: we always replace the cache here because the request
         //       may have the same URL but different parameters.
-        invalidateCachedRequest();
+        replaceCachedRequest();
 
-        authorizeURL = helpers.analyzeRequest(authorizeRequest).getUrl();
-        settingsController.updateRow("authURL", this.authorizeURL.toString());
+        var newAuthorizeURL = helpers.analyzeRequest(authorizeRequest).getUrl();
 
         // setting the authentication request overrides a manual token
-        this.tokenSetManually = false;
-        this.authorizeRequest = Optional.of(authorizeRequest);
+        updateState(s -> s
+                .withAuthorizeURL(newAuthorizeURL)
+                .withOAuthGrant(s.getOAuthGrant().withTokenEndpoint(newAuthorizeURL))
+                .withTokenSetManually(false)
+                .withAuthorizeRequest(authorizeRequest.getHttpService(), authorizeRequest.getRequest())
+        );
+
+        settingsController.updateRow("authURL", newAuthorizeURL.toString());
 
         logController.debug("Set new Authorization Requst.");
 
@@ -427,10 +1389,11 @@ public class TokenListener implements IHttpListener, IExtensionStateListener {
      * Note: can update the GUI
      */
     public void setHeaderName(String newHeaderName) {
-        if (!this.headerName.equals(newHeaderName)) {
-            this.invalidateCachedHeader(true);
+        if (!authState.get().getHeaderName().equals(newHeaderName)) {
+            setIsListening(false);
 
-            this.headerName = newHeaderName;
+            updateState(s -> s.withHeaderName(newHeaderName));
+            updateHeaderField();
 
             logController.debug(
                     "Set new Header Name: %s", newHeaderName
@@ -444,10 +1407,11 @@ public class TokenListener implements IHttpListener, IExtensionStateListener {
      * Note: can update the GUI
      */
     public void setHeaderValuePrefix(String newHeaderValuePrefix) {
-        if (!this.headerValuePrefix.equals(newHeaderValuePrefix)) {
-            this.invalidateCachedHeader(true);
+        if (!authState.get().getHeaderValuePrefix().equals(newHeaderValuePrefix)) {
+            setIsListening(false);
 
-            this.headerValuePrefix = newHeaderValuePrefix;
+            updateState(s -> s.withHeaderValuePrefix(newHeaderValuePrefix));
+            updateHeaderField();
 
             logController.debug(
                     "Set new Header Value Prefix: %s", newHeaderValuePrefix
@@ -461,10 +1425,10 @@ public class TokenListener implements IHttpListener, IExtensionStateListener {
      * Note: can update the GUI
      */
     public void setTokenPattern(Pattern newTokenPattern) {
-        if (!this.tokenPattern.equals(newTokenPattern)) {
-            this.invalidateCachedToken();
+        if (!authState.get().getTokenPattern().equals(newTokenPattern)) {
+            this.retireCachedToken();
 
-            this.tokenPattern = newTokenPattern;
+            updateState(s -> s.withTokenPattern(newTokenPattern));
 
             logController.debug(
                     "Set new Token Regex: %s", newTokenPattern
@@ -472,6 +1436,353 @@ public class TokenListener implements IHttpListener, IExtensionStateListener {
         }
     }
 
+    /**
+     * Setter method for the tokenExtractionMode property.
+     * <p>
+     * Note: can update the GUI
+     */
+    public void setTokenExtractionMode(TokenExtractionMode newTokenExtractionMode) {
+        if (authState.get().getTokenExtractionMode() != newTokenExtractionMode) {
+            this.retireCachedToken();
+
+            updateState(s -> s.withTokenExtractionMode(newTokenExtractionMode));
+
+            logController.debug(
+                    "Set new Token Extraction Mode: %s", newTokenExtractionMode
+            );
+        }
+    }
+
+    /**
+     * Setter method for the tokenJsonPath property.
+     * <p>
+     * Note: can update the GUI
+     */
+    public void setTokenJsonPath(JsonPathExtractor newTokenJsonPath) {
+        if (!authState.get().getTokenJsonPath().toString().equals(newTokenJsonPath.toString())) {
+            this.retireCachedToken();
+
+            updateState(s -> s.withTokenJsonPath(newTokenJsonPath));
+
+            logController.debug(
+                    "Set new Token JSON Path: %s", newTokenJsonPath
+            );
+        }
+    }
+
+    /**
+     * Setter method for the tokenSource property.
+     * <p>
+     * The current token is kept, and a new one is fetched with the new source if we are listening.
+     */
+    public void setTokenSource(@NotNull TokenSource newTokenSource) {
+        var previous = updateState(s -> s.withTokenSource(newTokenSource));
+        if (previous.getTokenSource() == newTokenSource) return;
+
+        logController.debug(
+                "Set new Token Source: %s", newTokenSource
+        );
+
+        if (previous.isListening()) this.scheduleTokenRefresh();
+    }
+
+    /**
+     * Setter method for the OAuth2 client id.
+     */
+    public void setOAuthClientId(@NotNull String newClientId) {
+        updateState(s -> s.withOAuthGrant(s.getOAuthGrant().withClientId(newClientId)));
+
+        logController.debug(
+                "Set new OAuth Client ID: %s", newClientId
+        );
+    }
+
+    /**
+     * Setter method for the OAuth2 client secret, which is never logged.
+     */
+    public void setOAuthClientSecret(@NotNull String newClientSecret) {
+        updateState(s -> s.withOAuthGrant(s.getOAuthGrant().withClientSecret(newClientSecret)));
+
+        logController.debug("Set new OAuth Client Secret.");
+    }
+
+    /**
+     * Setter method for the OAuth2 scope.
+     */
+    public void setOAuthScope(@NotNull String newScope) {
+        updateState(s -> s.withOAuthGrant(s.getOAuthGrant().withScope(newScope)));
+
+        logController.debug(
+                "Set new OAuth Scope: %s", newScope
+        );
+    }
+
+    /**
+     * Setter method for the algorithm used to sign minted tokens.
+     */
+    public void setJwtAlgorithm(@NotNull JwtAlgorithm newAlgorithm) {
+        updateState(s -> s.withJwtMinter(s.getJwtMinter().withAlgorithm(newAlgorithm)));
+
+        logController.debug(
+                "Set new JWT Algorithm: %s", newAlgorithm
+        );
+    }
+
+    /**
+     * Setter method for the key used to sign minted tokens, which is never logged.
+     */
+    public void setJwtSigningKey(@NotNull String newSigningKey) {
+        updateState(s -> s.withJwtMinter(s.getJwtMinter().withKey(newSigningKey)));
+
+        logController.debug("Set new JWT Signing Key.");
+    }
+
+    /**
+     * Setter method for the claims template of minted tokens.
+     */
+    public void setJwtClaimsTemplate(@NotNull String newClaimsTemplate) {
+        updateState(s -> s.withJwtMinter(s.getJwtMinter().withClaimsTemplate(newClaimsTemplate)));
+
+        logController.debug(
+                "Set new JWT Claims Template: %s", newClaimsTemplate
+        );
+    }
+
+    /**
+     * Setter method for the lifetime of minted tokens, this applies from the next token minted.
+     */
+    public void setJwtLifetime(@NotNull Duration newLifetime) {
+        updateState(s -> s.withJwtMinter(s.getJwtMinter().withLifetime(newLifetime)));
+
+        logController.debug(
+                "Set new JWT Lifetime: %s", newLifetime
+        );
+    }
+
+    /**
+     * @return why tokens can't be minted with the current settings, or empty if they can
+     */
+    public Optional<String> getJwtMinterError() {
+        return authState.get().getJwtMinter().getError();
+    }
+
+    /**
+     * Setter method for the refreshMargin property, this applies from the next token parsed.
+     */
+    public void setRefreshMargin(@NotNull Duration newRefreshMargin) {
+        updateState(s -> s.withRefreshMargin(newRefreshMargin));
+
+        logController.debug(
+                "Set new Refresh Margin: %s", newRefreshMargin
+        );
+    }
+
+    /**
+     * Setter method for the tokenGracePeriod property, this applies from the next time the token is replaced.
+     */
+    public void setTokenGracePeriod(@NotNull Duration newTokenGracePeriod) {
+        updateState(s -> s.withTokenGracePeriod(newTokenGracePeriod));
+
+        logController.debug(
+                "Set new Token Grace Period: %s", newTokenGracePeriod
+        );
+    }
+
+    /**
+     * Setter method for the refreshDebounceDelay property.
+     */
+    public void setRefreshDebounceDelay(@NotNull Duration newRefreshDebounceDelay) {
+        refreshCoordinator.setDebounceDelay(newRefreshDebounceDelay);
+
+        logController.debug(
+                "Set new Refresh Debounce Delay: %s", newRefreshDebounceDelay
+        );
+    }
+
+    /**
+     * Setter method for the refreshAttemptTimeout property, this applies from the next attempt.
+     */
+    public void setRefreshAttemptTimeout(@NotNull Duration newRefreshAttemptTimeout) {
+        refreshExecutor.setAttemptTimeout(newRefreshAttemptTimeout);
+
+        logController.debug(
+                "Set new Refresh Attempt Timeout: %s", newRefreshAttemptTimeout
+        );
+    }
+
+    /**
+     * Setter method for the replayTimeout property, this applies from the next replay.
+     */
+    public void setReplayTimeout(@NotNull Duration newReplayTimeout) {
+        requestReplayer.setTimeout(newReplayTimeout);
+
+        logController.debug(
+                "Set new Replay Timeout: %s", newReplayTimeout
+        );
+    }
+
+    /**
+     * Setter method for the maxHoldTime property, zero disables holding requests while there is no token.
+     */
+    public void setMaxHoldTime(@NotNull Duration newMaxHoldTime) {
+        refreshCoordinator.setMaxHoldTime(newMaxHoldTime);
+
+        logController.debug(
+                "Set new Max Hold Time: %s", newMaxHoldTime
+        );
+    }
+
+    /**
+     * Setter method for the maxTokenScanLength property.
+     */
+    public void setMaxTokenScanLength(int newMaxTokenScanLength) {
+        updateState(s -> s.withMaxTokenScanLength(newMaxTokenScanLength));
+
+        logController.debug(
+                "Set new Max Token Scan Length: %d", newMaxTokenScanLength
+        );
+    }
+
+    /**
+     * Setter method for the status codes which show the token was rejected.
+     *
+     * @param newFailureStatuses a comma separated list of status codes, blank to not check the status
+     * @throws IllegalArgumentException if a status isn't a number
+     */
+    public void setFailureStatuses(@NotNull String newFailureStatuses) {
+        var signature = authState.get().getFailureSignature().withStatuses(newFailureStatuses);
+        updateState(s -> s.withFailureSignature(signature));
+
+        logController.debug(
+                "Set new Failure Statuses: %s", newFailureStatuses
+        );
+    }
+
+    /**
+     * Setter method for the regex which shows the token was rejected when it is found in a response body.
+     *
+     * @param newFailureBodyRegex the regex, blank to not check the body
+     * @throws IllegalArgumentException if the regex is invalid
+     */
+    public void setFailureBodyRegex(@NotNull String newFailureBodyRegex) {
+        var signature = authState.get().getFailureSignature().withBodyPattern(newFailureBodyRegex);
+        updateState(s -> s.withFailureSignature(signature));
+
+        logController.debug(
+                "Set new Failure Body Regex: %s", newFailureBodyRegex
+        );
+    }
+
+    /**
+     * Setter method for the rules injecting extra values alongside the auth header.
+     * <p>
+     * The values for the old rules are discarded, so if we are listening a new token is fetched
+     * to extract the values for the new rules from its response.
+     *
+     * @param newInjectionRules the rules, one per line, see InjectionRules
+     * @throws IllegalArgumentException naming the line of the first rule which can't be parsed
+     */
+    public void setInjectionRules(@NotNull String newInjectionRules) {
+        var rules = InjectionRules.parse(newInjectionRules);
+        var previous = updateState(s -> s.withInjectionRules(rules));
+        if (previous.getInjectionRules().getText().equals(newInjectionRules)) return;
+
+        logController.debug(
+                "Set %d new Injection Rules.", rules.size()
+        );
+
+        if (previous.isListening() && !rules.isEmpty()) this.scheduleTokenRefresh();
+    }
+
+    /**
+     * Setter method for how the token is added to in scope requests.
+     * Switching to or from the cookie jar adds or removes the token cookie straight away.
+     */
+    public void setTokenDelivery(@NotNull TokenDelivery newTokenDelivery) {
+        updateState(s -> s.withTokenDelivery(newTokenDelivery));
+
+        logController.debug(
+                "Set new Token Delivery: %s", newTokenDelivery
+        );
+    }
+
+    /**
+     * Setter method for the name of the cookie the token is pushed into the cookie jar as.
+     */
+    public void setCookieName(@NotNull String newCookieName) {
+        updateState(s -> s.withCookieName(newCookieName));
+
+        logController.debug(
+                "Set new Cookie Name: %s", newCookieName
+        );
+    }
+
+    /**
+     * Register or remove this as a global burp HTTP listener. Without it, the token is only added by
+     * the session handling action, for the tools and URLs chosen in burp's session handling rules.
+     */
+    public synchronized void setHttpListenerEnabled(boolean enabled) {
+        if (enabled == httpListenerRegistered) return;
+
+        if (enabled) {
+            callbacks.registerHttpListener(this);
+        } else {
+            callbacks.removeHttpListener(this);
+        }
+
+        httpListenerRegistered = enabled;
+
+        logController.debug(
+                "Set HTTP Listener Enabled: %b", enabled
+        );
+    }
+
+    /**
+     * Setter method for whether messages from a tool are handled by the HTTP listener.
+     */
+    public void setToolEnabled(@NotNull BurpTool tool, boolean enabled) {
+        updateState(s -> s.withToolRouting(s.getToolRouting().withEnabled(tool, enabled)));
+
+        logController.debug(
+                "Set %s Enabled: %b", tool, enabled
+        );
+    }
+
+    /**
+     * Setter method for the log level used while handling messages from a tool.
+     *
+     * @param level the log level, or null to use the global log level
+     */
+    public void setToolLogLevel(@NotNull BurpTool tool, LogLevel level) {
+        updateState(s -> s.withToolRouting(s.getToolRouting().withLogLevel(tool, level)));
+
+        logController.debug(
+                "Set %s Log Level: %s", tool, level == null ? "global" : level
+        );
+    }
+
+    /**
+     * Setter method for the replayFailedRequests property.
+     */
+    public void setReplayFailedRequests(boolean newReplayFailedRequests) {
+        updateState(s -> s.withReplayFailedRequests(newReplayFailedRequests));
+
+        logController.debug(
+                "Set new Replay Failed Requests: %s", newReplayFailedRequests
+        );
+    }
+
+    /**
+     * Setter method for the persistAuthorizeRequest property, turning it off removes the saved request.
+     */
+    public void setPersistAuthorizeRequest(boolean newPersistAuthorizeRequest) {
+        updateState(s -> s.withPersistAuthorizeRequest(newPersistAuthorizeRequest));
+
+        logController.debug(
+                "Set new Persist Authorization Request: %s", newPersistAuthorizeRequest
+        );
+    }
+
     /**
      * Setter method for the isListening property.
      * If isListening is false the plugin should not modify any requests,
@@ -484,13 +1795,14 @@ public class TokenListener implements IHttpListener, IExtensionStateListener {
      * Note: can update the GUI
      */
     public void setIsListening(boolean isListening) {
+        var previous = updateState(s -> s.withListening(isListening));
+
         // setting it to the same value is a nop
-        if (this.isListening == isListening) return;
+        if (previous.isListening() == isListening) return;
 
-        this.isListening = isListening;
         settingsController.updateRow("isListening", isListening);
 
-        if (this.isListening) {
+        if (isListening) {
             // if we are starting to listen again, attempt to fetch a fresh token
             this.scheduleTokenRefresh();
         } else {
@@ -505,7 +1817,7 @@ public class TokenListener implements IHttpListener, IExtensionStateListener {
      * @return the current value of isListening.
      */
     public boolean isListening() {
-        return this.isListening;
+        return authState.get().isListening();
     }
 
     /**
@@ -514,7 +1826,7 @@ public class TokenListener implements IHttpListener, IExtensionStateListener {
      * @return the current value of tokenSetManually.
      */
     public boolean isTokenSetManually() {
-        return this.tokenSetManually;
+        return authState.get().isTokenSetManually();
     }
 
     /**
@@ -532,5 +1844,11 @@ public class TokenListener implements IHttpListener, IExtensionStateListener {
 
         // Cancel currently executing tasks
         executor.shutdownNow();
+
+        refreshExecutor.shutdown();
+        requestReplayer.shutdown();
+
+        // don't leave a token in the cookie jar which nothing will refresh
+        cookieJarSync.sync(authState.get().withListening(false));
     }
 }
@@ -0,0 +1,28 @@
+/*
+Copyright 2022 NCC Group
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    https://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.nccgroup.jwtreauth;
+
+/**
+ * Enum describing how a new token is fetched when it is refreshed
+ */
+public enum TokenSource {
+    // replay the captured authorization request, or send a GET to the auth URL
+    AuthRequest,
+    // an OAuth2 client_credentials grant sent to the auth URL
+    ClientCredentials,
+    // an OAuth2 refresh_token grant sent to the auth URL, using the refresh token from the last auth response
+    RefreshToken,
+    // a JWT minted and signed locally from the claims template, without any request
+    LocalJwt,
+}
@@ -0,0 +1,72 @@
+/*
+Copyright 2022 NCC Group
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    https://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.nccgroup.jwtreauth;
+
+import com.nccgroup.jwtreauth.ui.logging.LogLevel;
+import javax.validation.constraints.NotNull;
+
+/**
+ * Which burp tools the listener handles messages from, and the log level to use for each.
+ * <p>
+ * The enabled tools are kept as a mask of the tool flags, so checking a message is a single AND
+ * with the flag burp passes in. Flags for tools which aren't in BurpTool, e.g. from a newer burp,
+ * are always enabled. Instances are immutable and thread safe.
+ */
+final class ToolRouting {
+    // every tool enabled and using the global log level
+    static final ToolRouting ALL = new ToolRouting(-1, new LogLevel[Integer.SIZE]);
+
+    private final int enabledMask;
+    // indexed by the bit position of the tool flag, null to use the global log level
+    private final LogLevel[] logLevels;
+
+    private ToolRouting(int enabledMask, LogLevel[] logLevels) {
+        this.enabledMask = enabledMask;
+        this.logLevels = logLevels;
+    }
+
+    /**
+     * @param toolFlag the flag of the tool which sent a message
+     * @return whether messages from the tool should be handled
+     */
+    boolean isEnabled(int toolFlag) {
+        return (enabledMask & toolFlag) != 0;
+    }
+
+    /**
+     * @param toolFlag the flag of the tool which sent a message
+     * @return the log level for messages from the tool, or null to use the global log level
+     */
+    LogLevel getLogLevel(int toolFlag) {
+        // a flag is a single bit, anything else can't have a level of its own
+        if (Integer.bitCount(toolFlag) != 1) return null;
+
+        return logLevels[Integer.numberOfTrailingZeros(toolFlag)];
+    }
+
+    ToolRouting withEnabled(@NotNull BurpTool tool, boolean enabled) {
+        var mask = enabled ? enabledMask | tool.getFlag() : enabledMask & ~tool.getFlag();
+        return new ToolRouting(mask, logLevels);
+    }
+
+    /**
+     * @param level the log level for the tool, or null to use the global log level
+     */
+    ToolRouting withLogLevel(@NotNull BurpTool tool, LogLevel level) {
+        var levels = logLevels.clone();
+        levels[Integer.numberOfTrailingZeros(tool.getFlag())] = level;
+
+        return new ToolRouting(enabledMask, levels);
+    }
+}
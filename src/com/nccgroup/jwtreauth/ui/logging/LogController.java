@@ -13,15 +13,38 @@ limitations under the License.
 
 package com.nccgroup.jwtreauth.ui.logging;
 
-public class LogController {
+import burp.IExtensionStateListener;
+
+import javax.swing.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class LogController implements IExtensionStateListener {
+    public static final int DEFAULT_LOG_BUFFER_SIZE = 8192;
+
     private final LogTableModel logTableModel;
     private final LogTable logTable;
     private final LogViewPanel logViewPanel;
 
+    // entries are queued here by any thread, then drained into the table on the EDT
+    private final LogRingBuffer logBuffer;
+    private final AtomicBoolean drainScheduled;
+    private final AtomicLong totalDropped;
+
+    // a log level which overrides the global one for messages logged by the current thread
+    private final ThreadLocal<LogLevel> threadLogLevel;
+
     public LogController() {
         this.logTable = new LogTable();
         this.logTableModel = (LogTableModel) logTable.getModel();
         this.logViewPanel = new LogViewPanel(this);
+
+        this.logBuffer = new LogRingBuffer(DEFAULT_LOG_BUFFER_SIZE);
+        this.drainScheduled = new AtomicBoolean(false);
+        this.totalDropped = new AtomicLong(0);
+        this.threadLogLevel = new ThreadLocal<>();
     }
 
     public LogViewPanel getLogViewPanel() {
@@ -36,10 +59,85 @@ public class LogController {
         logTableModel.setLogLevel(newLevel);
     }
 
+    /**
+     * Override the log level for messages logged by the current thread, e.g. while handling a message
+     * from a tool with its own log level. The caller should restore the previous level when it is done.
+     *
+     * @param newLevel the level to use, or null to use the global log level
+     * @return the previous override, or null if there wasn't one
+     */
+    public LogLevel setThreadLogLevel(LogLevel newLevel) {
+        var previous = threadLogLevel.get();
+
+        if (newLevel == null) {
+            threadLogLevel.remove();
+        } else {
+            threadLogLevel.set(newLevel);
+        }
+
+        return previous;
+    }
+
     public void setMaxLogLength(int newLength) {
         logTableModel.setMaxLogLength(newLength);
     }
 
+    /**
+     * Check whether messages at the given level would be added to the log.
+     * Hot call sites can use this to skip building expensive arguments.
+     *
+     * @param level the level to check
+     * @return whether a message at level would be kept
+     */
+    public boolean isEnabled(LogLevel level) {
+        var override = threadLogLevel.get();
+        if (override != null) return level.compareTo(override) >= 0;
+
+        return logTableModel.isLoggable(level);
+    }
+
+    public boolean isDebugEnabled() {
+        return isEnabled(LogLevel.Debug);
+    }
+
+    /**
+     * Add a debug message with no arguments to the log.
+     * <p>
+     * The fixed arity overloads avoid allocating a varargs array when debug logging is off.
+     *
+     * @param format the format for the debug message
+     */
+    public void debug(String format) {
+        if (!isDebugEnabled()) return;
+
+        log(LogLevel.Debug, format, new Object[0]);
+    }
+
+    /**
+     * Add a debug message with a single argument to the log.
+     *
+     * @param format the format for the debug message
+     * @param arg    the item to format
+     */
+    public void debug(String format, Object arg) {
+        if (!isDebugEnabled()) return;
+
+        log(LogLevel.Debug, format, new Object[]{arg});
+    }
+
+    /**
+     * Add a debug message with two arguments to the log.
+     *
+     * @param format the format for the debug message
+     * @param arg1   the first item to format
+     * @param arg2   the second item to format
+     */
+    public void debug(String format, Object arg1, Object arg2) {
+        if (!isDebugEnabled()) return;
+
+        log(LogLevel.Debug, format, new Object[]{arg1, arg2});
+    }
+
     /**
      * Add a formatted debug message to the log
      *
@@ -47,7 +145,7 @@ public class LogController {
      * @param args   the items to format
      */
     public void debug(String format, Object... args) {
-        logTableModel.log(LogLevel.Debug, format, args);
+        log(LogLevel.Debug, format, args);
     }
 
     /**
@@ -57,7 +155,7 @@ public class LogController {
      * @param args   the items to format
      */
     public void info(String format, Object... args) {
-        logTableModel.log(LogLevel.Info, format, args);
+        log(LogLevel.Info, format, args);
     }
 
     /**
@@ -67,6 +165,79 @@ public class LogController {
      * @param args   the items to format
      */
     public void error(String format, Object... args) {
-        logTableModel.log(LogLevel.Error, format, args);
+        log(LogLevel.Error, format, args);
+    }
+
+    /**
+     * @return the total number of log entries dropped because the buffer was full
+     */
+    public long getDroppedCount() {
+        return totalDropped.get();
+    }
+
+    /**
+     * Queue a message to be added to the log, this never blocks and is safe to call from any thread.
+     * The message is stored unformatted, so the arguments should be immutable.
+     *
+     * @param level  the level of the message
+     * @param format the format of the message
+     * @param args   the items to format
+     */
+    private void log(LogLevel level, String format, Object[] args) {
+        // if the item to be logged is below the log level, don't add it to the log
+        if (!isEnabled(level)) return;
+
+        logBuffer.offer(new LogEntry(nowEpochNanos(), level, format, args));
+
+        scheduleDrain();
+    }
+
+    /**
+     * The log only shows times to the second, so millisecond precision is plenty
+     * and this avoids allocating an Instant for every message.
+     */
+    private static long nowEpochNanos() {
+        return System.currentTimeMillis() * 1_000_000L;
+    }
+
+    /**
+     * Helper method to make sure there is exactly one drain pending on the EDT.
+     */
+    private void scheduleDrain() {
+        if (drainScheduled.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(this::drain);
+        }
+    }
+
+    /**
+     * Move everything queued so far into the table as a single batch.
+     * <p>
+     * Note: must be called on the EDT
+     */
+    private void drain() {
+        // clear the flag first, anything queued after this point schedules another drain
+        drainScheduled.set(false);
+
+        List<LogEntry> batch = new ArrayList<>();
+        logBuffer.drainTo(batch);
+
+        var dropped = logBuffer.takeDroppedCount();
+        if (dropped > 0) {
+            totalDropped.addAndGet(dropped);
+
+            batch.add(new LogEntry(
+                    nowEpochNanos(),
+                    LogLevel.Error,
+                    "Dropped %d log entries because the log buffer was full (%d dropped in total).",
+                    new Object[]{dropped, totalDropped.get()}
+            ));
+        }
+
+        logTableModel.append(batch);
+    }
+
+    @Override
+    public void extensionUnloaded() {
+        logTable.extensionUnloaded();
     }
 }
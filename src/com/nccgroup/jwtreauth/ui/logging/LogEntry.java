@@ -0,0 +1,72 @@
+/*
+Copyright 2022 NCC Group
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    https://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.nccgroup.jwtreauth.ui.logging;
+
+import javax.validation.constraints.NotNull;
+
+/**
+ * A single log event, holding the format and arguments rather than the formatted message.
+ * The message is only rendered the first time something reads it, e.g. when its table cell
+ * is painted, so entries which are never looked at are never formatted.
+ * Once it has been rendered the format and arguments are dropped, so the entry no longer keeps
+ * the arguments, e.g. whole requests, reachable.
+ */
+final class LogEntry {
+    private final long epochNanos;
+    private final LogLevel level;
+    // guarded by this, cleared once the message is rendered
+    private String format;
+    private Object[] args;
+
+    // cached rendering of the message, guarded by this
+    private String message;
+
+    LogEntry(long epochNanos, @NotNull LogLevel level, @NotNull String format, Object[] args) {
+        this.epochNanos = epochNanos;
+        this.level = level;
+        this.format = format;
+        this.args = args;
+    }
+
+    long getEpochNanos() {
+        return epochNanos;
+    }
+
+    LogLevel getLevel() {
+        return level;
+    }
+
+    /**
+     * Render the message on first use.
+     * <p>
+     * Note: the search index reads messages off the EDT, so this is synchronized to stop the
+     * arguments being cleared while another thread is still formatting them
+     *
+     * @return the formatted message
+     */
+    synchronized String getMessage() {
+        if (message == null) {
+            message = String.format(format, args);
+            format = null;
+            args = null;
+        }
+
+        return message;
+    }
+
+    @Override
+    public String toString() {
+        return getMessage();
+    }
+}
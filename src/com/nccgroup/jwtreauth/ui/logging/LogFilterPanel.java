@@ -20,6 +20,9 @@ import javax.swing.*;
 import java.awt.*;
 
 class LogFilterPanel extends JPanel {
+    // how long typing has to pause before the search runs, each search rebuilds the filtered rows
+    private static final int SEARCH_DEBOUNCE_DELAY = 250;
+
     public LogFilterPanel(LogTable logTable) {
         super(new GridLayout(0, 1));
 
@@ -55,11 +58,12 @@ class LogFilterPanel extends JPanel {
         // create the search label
         var searchLabel = new JLabel("Search: ");
 
-        // create a new text field and give it a keyRelease listener
+        // create a new text field and give it a keyRelease listener,
+        // which restarts the timer so only the last of a burst of keystrokes runs a search
         var filterSearchField = new JTextField();
-        filterSearchField.addKeyListener(new KeyReleasedListener(
-                e -> logTable.setRegexFilter(filterSearchField.getText())
-        ));
+        var searchTimer = new Timer(SEARCH_DEBOUNCE_DELAY, _event -> logTable.setRegexFilter(filterSearchField.getText()));
+        searchTimer.setRepeats(false);
+        filterSearchField.addKeyListener(new KeyReleasedListener(e -> searchTimer.restart()));
 
         // create a new panel to hold the search box
         var filterSearchPanel = new JPanel(new GridBagLayout());
@@ -0,0 +1,111 @@
+/*
+Copyright 2022 NCC Group
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    https://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.nccgroup.jwtreauth.ui.logging;
+
+import javax.validation.constraints.NotNull;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free queue with many producers and a single consumer.
+ * <p>
+ * Producers claim a slot by advancing tail with a CAS, then publish their entry into it.
+ * The consumer (the EDT) takes entries in order until it reaches a slot which is still
+ * empty, clears each slot it takes and finally publishes the new head.
+ * When the buffer is full new entries are dropped and counted rather than blocking the producer.
+ */
+class LogRingBuffer {
+    private final AtomicReferenceArray<LogEntry> slots;
+    private final int mask;
+
+    // the next position a producer will claim
+    private final AtomicLong tail = new AtomicLong();
+    // the next position the consumer will read, only written by the consumer
+    private volatile long head = 0;
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * @param capacity the number of entries the buffer can hold, must be a power of two
+     */
+    LogRingBuffer(int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+        }
+
+        slots = new AtomicReferenceArray<>(capacity);
+        mask = capacity - 1;
+    }
+
+    /**
+     * Add an entry to the buffer, safe to call from any thread.
+     *
+     * @param entry the entry to add
+     * @return false if the buffer was full and the entry was dropped
+     */
+    boolean offer(@NotNull LogEntry entry) {
+        while (true) {
+            var t = tail.get();
+
+            if (t - head > mask) {
+                dropped.incrementAndGet();
+                return false;
+            }
+
+            if (tail.compareAndSet(t, t + 1)) {
+                slots.set((int) (t & mask), entry);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Move every entry which has been published so far into out.
+     * Must only be called by the single consumer.
+     *
+     * @param out the list to add the entries to
+     * @return the number of entries taken
+     */
+    int drainTo(@NotNull List<LogEntry> out) {
+        var h = head;
+        var taken = 0;
+
+        while (true) {
+            var index = (int) (h & mask);
+            var entry = slots.get(index);
+
+            // either the buffer is empty or a producer has claimed this slot but not yet filled it
+            if (entry == null) break;
+
+            slots.lazySet(index, null);
+            out.add(entry);
+            h++;
+            taken++;
+        }
+
+        // publishing head releases the cleared slots back to the producers
+        head = h;
+
+        return taken;
+    }
+
+    /**
+     * @return the number of entries dropped since the last call, resetting the count
+     */
+    long takeDroppedCount() {
+        return dropped.getAndSet(0);
+    }
+}
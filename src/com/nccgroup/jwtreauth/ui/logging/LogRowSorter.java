@@ -0,0 +1,423 @@
+/*
+Copyright 2022 NCC Group
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    https://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.nccgroup.jwtreauth.ui.logging;
+
+import javax.validation.constraints.NotNull;
+
+import javax.swing.*;
+import java.text.Collator;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * RowSorter specialised for the append-only log.
+ * <p>
+ * The view is stored as the sequence numbers of the visible entries (see LogTableModel.getFirstSequence),
+ * so removing the oldest entries from the model doesn't require renumbering the view.
+ * When rows are appended only the new rows are filtered, and in the default order, oldest first,
+ * they are simply added to the end of the view.
+ * The whole view is only rebuilt when the user changes the sort order or one of the filters.
+ * <p>
+ * Note: like all RowSorters this must only be used on the EDT
+ */
+class LogRowSorter extends RowSorter<LogTableModel> {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /**
+     * Comparison of two entries by sequence number, this avoids boxing when merging.
+     */
+    private interface SequenceComparator {
+        int compare(long a, long b);
+    }
+
+    private final LogTableModel model;
+    private final TypeFilter typeFilter;
+    private final Collator collator;
+
+    // the current search, rows with a sequence number below searchCoveredUpTo are looked up in the
+    // background search results, newer rows are checked against the pattern directly
+    private Pattern searchPattern;
+    private long[] searchMatches;
+    private long searchCoveredUpTo;
+
+    private List<SortKey> sortKeys;
+
+    // view[viewStart, viewEnd) holds the sequence numbers of the visible rows in view order
+    private long[] view;
+    private int viewStart;
+    private int viewEnd;
+
+    // lazily built inverse of the view, only needed for a non-default sort order
+    private int[] modelToView;
+
+    LogRowSorter(@NotNull LogTableModel model, @NotNull TypeFilter typeFilter) {
+        this.model = model;
+        this.typeFilter = typeFilter;
+        this.collator = Collator.getInstance();
+
+        this.searchPattern = null;
+        this.searchMatches = null;
+        this.searchCoveredUpTo = 0;
+        this.sortKeys = List.of();
+
+        this.view = new long[INITIAL_CAPACITY];
+
+        rebuild();
+    }
+
+    /**
+     * Show only the rows found by a search of the log.
+     *
+     * @param result the result of the search
+     */
+    void setSearchResult(@NotNull LogSearchIndex.SearchResult result) {
+        this.searchPattern = result.getPattern();
+        this.searchMatches = result.getMatches();
+        this.searchCoveredUpTo = result.getCoveredUpTo();
+
+        refilter();
+    }
+
+    /**
+     * Stop filtering on a search and show all rows again.
+     */
+    void clearSearch() {
+        this.searchPattern = null;
+        this.searchMatches = null;
+
+        refilter();
+    }
+
+    /**
+     * Rebuild the whole view after one of the filters changed, notifying the table.
+     */
+    void refilter() {
+        var previous = snapshotViewToModel();
+
+        rebuild();
+
+        fireRowSorterChanged(previous);
+    }
+
+    @Override
+    public LogTableModel getModel() {
+        return model;
+    }
+
+    @Override
+    public void toggleSortOrder(int column) {
+        SortKey newKey;
+
+        if (!sortKeys.isEmpty() && sortKeys.get(0).getColumn() == column) {
+            var order = sortKeys.get(0).getSortOrder() == SortOrder.ASCENDING
+                    ? SortOrder.DESCENDING
+                    : SortOrder.ASCENDING;
+
+            newKey = new SortKey(column, order);
+        } else {
+            newKey = new SortKey(column, SortOrder.ASCENDING);
+        }
+
+        setSortKeys(List.of(newKey));
+    }
+
+    @Override
+    public void setSortKeys(List<? extends SortKey> keys) {
+        var newKeys = keys == null ? List.<SortKey>of() : List.<SortKey>copyOf(keys);
+        if (newKeys.equals(sortKeys)) return;
+
+        sortKeys = newKeys;
+        fireSortOrderChanged();
+
+        refilter();
+    }
+
+    @Override
+    public List<? extends SortKey> getSortKeys() {
+        return sortKeys;
+    }
+
+    @Override
+    public int convertRowIndexToModel(int index) {
+        if (index < 0 || index >= getViewRowCount()) {
+            throw new IndexOutOfBoundsException("Invalid view index: " + index);
+        }
+
+        return (int) (view[viewStart + index] - model.getFirstSequence());
+    }
+
+    @Override
+    public int convertRowIndexToView(int index) {
+        if (index < 0 || index >= model.getRowCount()) {
+            throw new IndexOutOfBoundsException("Invalid model index: " + index);
+        }
+
+        var sequence = model.getFirstSequence() + index;
+
+        if (isDefaultOrder()) {
+            // the view is in sequence order, so it can be searched directly
+            var i = Arrays.binarySearch(view, viewStart, viewEnd, sequence);
+            return i < 0 ? -1 : i - viewStart;
+        }
+
+        if (modelToView == null) {
+            modelToView = new int[model.getRowCount()];
+            Arrays.fill(modelToView, -1);
+
+            for (int i = viewStart; i < viewEnd; i++) {
+                modelToView[(int) (view[i] - model.getFirstSequence())] = i - viewStart;
+            }
+        }
+
+        return modelToView[index];
+    }
+
+    @Override
+    public int getViewRowCount() {
+        return viewEnd - viewStart;
+    }
+
+    @Override
+    public int getModelRowCount() {
+        return model.getRowCount();
+    }
+
+    @Override
+    public void modelStructureChanged() {
+        rebuild();
+    }
+
+    @Override
+    public void allRowsChanged() {
+        rebuild();
+    }
+
+    @Override
+    public void rowsInserted(int firstRow, int endRow) {
+        modelToView = null;
+
+        // the model only ever appends, but fall back to a rebuild if that changes
+        if (endRow != model.getRowCount() - 1) {
+            rebuild();
+            return;
+        }
+
+        var base = model.getFirstSequence();
+        var added = new long[endRow - firstRow + 1];
+        var count = 0;
+
+        for (int row = firstRow; row <= endRow; row++) {
+            if (include(row)) {
+                added[count++] = base + row;
+            }
+        }
+
+        if (count == 0) return;
+
+        if (isDefaultOrder()) {
+            ensureCapacity(count);
+            System.arraycopy(added, 0, view, viewEnd, count);
+            viewEnd += count;
+        } else {
+            mergeIntoView(Arrays.copyOf(added, count));
+        }
+    }
+
+    @Override
+    public void rowsDeleted(int firstRow, int endRow) {
+        modelToView = null;
+
+        // the model only ever removes its oldest rows, but fall back to a rebuild if that changes
+        if (firstRow != 0) {
+            rebuild();
+            return;
+        }
+
+        // the model has already dropped the rows, so anything before its first sequence number has gone
+        var base = model.getFirstSequence();
+
+        if (isDefaultOrder()) {
+            while (viewStart < viewEnd && view[viewStart] < base) viewStart++;
+        } else {
+            var write = viewStart;
+            for (int i = viewStart; i < viewEnd; i++) {
+                if (view[i] >= base) view[write++] = view[i];
+            }
+            viewEnd = write;
+        }
+    }
+
+    @Override
+    public void rowsUpdated(int firstRow, int endRow) {
+        // log entries never change once they are added
+    }
+
+    @Override
+    public void rowsUpdated(int firstRow, int endRow, int column) {
+        // log entries never change once they are added
+    }
+
+    /**
+     * @return whether the view is in sequence order, i.e. unsorted or sorted by ascending time
+     */
+    private boolean isDefaultOrder() {
+        if (sortKeys.isEmpty()) return true;
+
+        // entries are appended in the order they are logged, so ascending time is sequence order
+        var key = sortKeys.get(0);
+        return key.getColumn() == LogTableModel.TIME_COL && key.getSortOrder() == SortOrder.ASCENDING;
+    }
+
+    /**
+     * Helper method to check a single model row against the filters.
+     */
+    private boolean include(int row) {
+        var level = model.getLevel(row);
+        if (!typeFilter.includes(level)) return false;
+
+        if (searchPattern == null) return true;
+
+        var sequence = model.getFirstSequence() + row;
+        if (sequence < searchCoveredUpTo) {
+            return Arrays.binarySearch(searchMatches, sequence) >= 0;
+        }
+
+        return LogSearchIndex.matches(searchPattern, model.getEpochNanos(row), level, model.getMessage(row));
+    }
+
+    /**
+     * Helper method to filter and sort every row in the model.
+     */
+    private void rebuild() {
+        modelToView = null;
+
+        var rows = model.getRowCount();
+        var base = model.getFirstSequence();
+
+        if (view.length < rows) {
+            view = new long[Math.max(rows, INITIAL_CAPACITY)];
+        }
+
+        viewStart = 0;
+        viewEnd = 0;
+
+        for (int row = 0; row < rows; row++) {
+            if (include(row)) {
+                view[viewEnd++] = base + row;
+            }
+        }
+
+        if (!isDefaultOrder()) {
+            var comparator = makeComparator();
+            var boxed = new Long[viewEnd];
+
+            for (int i = 0; i < viewEnd; i++) boxed[i] = view[i];
+            Arrays.sort(boxed, comparator::compare);
+            for (int i = 0; i < viewEnd; i++) view[i] = boxed[i];
+        }
+    }
+
+    /**
+     * Helper method to merge a batch of new rows into a view which isn't in sequence order.
+     */
+    private void mergeIntoView(long[] added) {
+        var comparator = makeComparator();
+
+        var boxed = new Long[added.length];
+        for (int i = 0; i < added.length; i++) boxed[i] = added[i];
+        Arrays.sort(boxed, comparator::compare);
+
+        var merged = new long[Math.max(view.length, getViewRowCount() + added.length)];
+        int i = viewStart, j = 0, k = 0;
+
+        while (i < viewEnd && j < boxed.length) {
+            merged[k++] = comparator.compare(view[i], boxed[j]) <= 0 ? view[i++] : boxed[j++];
+        }
+        while (i < viewEnd) merged[k++] = view[i++];
+        while (j < boxed.length) merged[k++] = boxed[j++];
+
+        view = merged;
+        viewStart = 0;
+        viewEnd = k;
+    }
+
+    /**
+     * Helper method to make room for count more rows at the end of the view,
+     * reclaiming the space left at the start by removed rows where possible.
+     */
+    private void ensureCapacity(int count) {
+        if (viewEnd + count <= view.length) return;
+
+        var rows = getViewRowCount();
+        var target = view.length;
+
+        // only grow if compacting wouldn't free up at least half of the array
+        while (rows + count > target / 2) target *= 2;
+
+        var newView = target == view.length ? view : new long[target];
+        System.arraycopy(view, viewStart, newView, 0, rows);
+
+        view = newView;
+        viewStart = 0;
+        viewEnd = rows;
+    }
+
+    /**
+     * Helper method to build a comparator for the current sort key, falling back to sequence order for ties.
+     */
+    private SequenceComparator makeComparator() {
+        var key = sortKeys.get(0);
+        var descending = key.getSortOrder() == SortOrder.DESCENDING;
+        var column = key.getColumn();
+
+        return (a, b) -> {
+            var base = model.getFirstSequence();
+            var rowA = (int) (a - base);
+            var rowB = (int) (b - base);
+
+            int result;
+            switch (column) {
+                case LogTableModel.TIME_COL:
+                    result = Long.compare(model.getEpochNanos(rowA), model.getEpochNanos(rowB));
+                    break;
+                case LogTableModel.TYPE_COL:
+                    result = model.getLevel(rowA).compareTo(model.getLevel(rowB));
+                    break;
+                default:
+                    result = collator.compare(model.getMessage(rowA), model.getMessage(rowB));
+                    break;
+            }
+
+            if (descending) result = -result;
+
+            return result != 0 ? result : Long.compare(a, b);
+        };
+    }
+
+    /**
+     * Helper method to record the current view in terms of model indices, so the table
+     * can restore its selection after the view is rebuilt.
+     */
+    private int[] snapshotViewToModel() {
+        var base = model.getFirstSequence();
+        var snapshot = new int[getViewRowCount()];
+
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = (int) (view[viewStart + i] - base);
+        }
+
+        return snapshot;
+    }
+}
@@ -0,0 +1,593 @@
+/*
+Copyright 2022 NCC Group
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    https://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.nccgroup.jwtreauth.ui.logging;
+
+import com.nccgroup.jwtreauth.ui.misc.InstantRenderer;
+import javax.validation.constraints.NotNull;
+
+import javax.swing.*;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+/**
+ * Trigram index over the log messages, used to answer searches without blocking the EDT.
+ * <p>
+ * Every message is split into its overlapping three character sequences, and for each one
+ * the index keeps the sequence numbers of the entries containing it. A search first works out
+ * which trigrams any match must contain, intersects their lists to find the candidate entries,
+ * and only runs the regex on those. Searches which don't require any trigrams, e.g. very short
+ * or complex regexes, fall back to checking every entry, but still off the EDT.
+ * <p>
+ * All of the index state is owned by a single background thread. The EDT only submits appends,
+ * evictions and searches, which are applied in the order they were submitted, so a search always
+ * sees every entry that was appended before it. Search results are published back on the EDT.
+ * <p>
+ * The index is only kept while a search is active. Indexing formats every message, which would undo
+ * the lazy formatting of the log entries, so the index is started by a search and dropped again
+ * when the search box is cleared. While a search is active the filter formats every new message anyway.
+ */
+class LogSearchIndex {
+    /**
+     * The outcome of a search, the matches cover every entry with a sequence number below coveredUpTo,
+     * anything newer was appended after the search ran and needs to be checked directly.
+     */
+    static final class SearchResult {
+        private final Pattern pattern;
+        private final long[] matches;
+        private final long coveredUpTo;
+
+        private SearchResult(Pattern pattern, long[] matches, long coveredUpTo) {
+            this.pattern = pattern;
+            this.matches = matches;
+            this.coveredUpTo = coveredUpTo;
+        }
+
+        Pattern getPattern() {
+            return pattern;
+        }
+
+        /**
+         * @return the sequence numbers of the matching entries in ascending order
+         */
+        long[] getMatches() {
+            return matches;
+        }
+
+        long getCoveredUpTo() {
+            return coveredUpTo;
+        }
+    }
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    // incremented for every search, so that stale searches can give up early
+    private final AtomicInteger searchGeneration = new AtomicInteger();
+
+    // only accessed on the EDT
+    private boolean started = false;
+
+    // everything below is only accessed on the executor thread
+
+    // the live entries, entries[start] has sequence number startSeq
+    private LogEntry[] entries = new LogEntry[INITIAL_CAPACITY];
+    private int start = 0;
+    private int end = 0;
+    private long startSeq = 0;
+
+    // postings hold ids relative to idBase so they fit in an int
+    private final Map<Long, Postings> postings = new HashMap<>();
+    private long idBase = 0;
+    private long evictedSinceCompaction = 0;
+
+    /**
+     * @return whether the index has been started and is tracking the log
+     * <p>
+     * Note: must be called on the EDT
+     */
+    boolean isStarted() {
+        return started;
+    }
+
+    /**
+     * Start indexing the log from its current contents.
+     * <p>
+     * Note: must be called on the EDT
+     *
+     * @param firstSeq the sequence number of the first entry
+     * @param current  the entries currently in the log
+     */
+    void start(long firstSeq, @NotNull List<LogEntry> current) {
+        if (started) return;
+        started = true;
+
+        executor.execute(() -> {
+            startSeq = firstSeq;
+            idBase = firstSeq;
+            addEntries(firstSeq, current);
+        });
+    }
+
+    /**
+     * Queue newly logged entries to be indexed.
+     * <p>
+     * Note: must be called on the EDT
+     *
+     * @param firstSeq the sequence number of the first new entry
+     * @param added    the new entries, in order
+     */
+    void append(long firstSeq, @NotNull List<LogEntry> added) {
+        if (!started || added.isEmpty()) return;
+
+        executor.execute(() -> addEntries(firstSeq, added));
+    }
+
+    /**
+     * Queue the removal of every entry before the given sequence number.
+     * <p>
+     * Note: must be called on the EDT
+     *
+     * @param seq the sequence number of the oldest entry still in the log
+     */
+    void evictBefore(long seq) {
+        if (!started) return;
+
+        executor.execute(() -> removeEntriesBefore(seq));
+    }
+
+    /**
+     * Abandon any running search and drop the index, so new entries are no longer indexed
+     * until the index is started again.
+     * <p>
+     * Note: must be called on the EDT
+     */
+    void stop() {
+        if (!started) return;
+        started = false;
+
+        cancelSearch();
+        executor.execute(() -> {
+            entries = new LogEntry[INITIAL_CAPACITY];
+            start = 0;
+            end = 0;
+            startSeq = 0;
+
+            postings.clear();
+            idBase = 0;
+            evictedSinceCompaction = 0;
+        });
+    }
+
+    /**
+     * Search the log in the background, any previous search which hasn't finished yet is abandoned.
+     * <p>
+     * Note: must be called on the EDT
+     *
+     * @param pattern  the pattern to search for
+     * @param onResult called on the EDT with the result, unless another search is started first
+     */
+    void search(@NotNull Pattern pattern, @NotNull Consumer<SearchResult> onResult) {
+        var generation = searchGeneration.incrementAndGet();
+        var trigrams = requiredTrigrams(pattern.pattern());
+
+        executor.execute(() -> {
+            var result = runSearch(generation, pattern, trigrams);
+            if (result == null) return;
+
+            SwingUtilities.invokeLater(() -> {
+                if (generation == searchGeneration.get()) onResult.accept(result);
+            });
+        });
+    }
+
+    /**
+     * Abandon any search which is still running, e.g. because the search box was cleared.
+     */
+    void cancelSearch() {
+        searchGeneration.incrementAndGet();
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Check whether an entry matches a search, using the same rules as RowFilter.regexFilter,
+     * i.e. whether the pattern is found in any of the columns.
+     * The message is checked first, so the time is only formatted when nothing else matches.
+     */
+    static boolean matches(@NotNull Pattern pattern, long epochNanos, @NotNull LogLevel level, @NotNull String message) {
+        return pattern.matcher(message).find()
+                || pattern.matcher(level.toString()).find()
+                || pattern.matcher(formatTime(epochNanos)).find();
+    }
+
+    private static String formatTime(long epochNanos) {
+        return InstantRenderer.FORMAT.format(Instant.ofEpochSecond(0, epochNanos));
+    }
+
+    /**
+     * Work out a set of trigrams which any string matching the regex must contain.
+     * <p>
+     * This is deliberately conservative: only runs of plain literal characters are used,
+     * and regexes with alternation, groups, character classes or quoted sections don't require
+     * anything, so the search falls back to checking every entry. Escapes like \d or \x41 end
+     * the current run along with their whole argument, as we don't work out what they match.
+     *
+     * @param regex the regex being searched for
+     * @return the required trigrams, possibly empty
+     */
+    static long[] requiredTrigrams(@NotNull String regex) {
+        if (regex.indexOf('|') != -1 || regex.indexOf('(') != -1 || regex.indexOf('[') != -1) {
+            return new long[0];
+        }
+
+        var runs = new ArrayList<String>();
+        var run = new StringBuilder();
+
+        for (int i = 0; i < regex.length(); i++) {
+            var c = regex.charAt(i);
+
+            switch (c) {
+                case '\\':
+                    if (i + 1 < regex.length() && !Character.isLetterOrDigit(regex.charAt(i + 1))) {
+                        // an escaped metacharacter is just a literal
+                        run.append(regex.charAt(++i));
+                    } else {
+                        i = escapeEnd(regex, i);
+                        if (i < 0) return new long[0];
+
+                        runs.add(run.toString());
+                        run.setLength(0);
+                    }
+                    break;
+
+                case '?':
+                case '*':
+                case '{':
+                    // the previous character is optional, so it can't be part of a required run
+                    if (run.length() > 0) run.setLength(run.length() - 1);
+                    runs.add(run.toString());
+                    run.setLength(0);
+
+                    if (c == '{') {
+                        while (i < regex.length() && regex.charAt(i) != '}') i++;
+                    }
+                    break;
+
+                case '+':
+                case '.':
+                case '^':
+                case '$':
+                    runs.add(run.toString());
+                    run.setLength(0);
+                    break;
+
+                default:
+                    run.append(c);
+                    break;
+            }
+        }
+
+        runs.add(run.toString());
+
+        return runs.stream()
+                .flatMapToLong(r -> Arrays.stream(trigramsOf(r)))
+                .distinct()
+                .toArray();
+    }
+
+    /**
+     * Helper method to find the end of an alphanumeric escape, including any argument it takes.
+     *
+     * @param regex the regex being searched for
+     * @param i     the index of the backslash
+     * @return the index of the last char of the escape, or -1 if the regex can't be handled
+     */
+    private static int escapeEnd(String regex, int i) {
+        var length = regex.length();
+        if (i + 1 >= length) return i;
+
+        var j = i + 1;
+        switch (regex.charAt(j)) {
+            case 'Q':
+                // a quoted section, which may contain anything
+                return -1;
+
+            case 'x':
+                // \xhh or \x{h...h}
+                return j + 1 < length && regex.charAt(j + 1) == '{' ? regex.indexOf('}', j + 1) : Math.min(j + 2, length - 1);
+
+            case 'u':
+                // a unicode escape, with four hex digits
+                return Math.min(j + 4, length - 1);
+
+            case '0':
+                // \0n, \0nn or \0mnn, up to three octal digits
+                var end = j;
+                while (end + 1 < length && end - j < 3 && regex.charAt(end + 1) >= '0' && regex.charAt(end + 1) <= '7') end++;
+                return end;
+
+            case 'c':
+                // \cx, a control character
+                return Math.min(j + 1, length - 1);
+
+            case 'k':
+                // \k<name>
+                return regex.indexOf('>', j + 1);
+
+            case 'p':
+            case 'P':
+            case 'N':
+                // \p{name}, \pL or \N{name}
+                return j + 1 < length && regex.charAt(j + 1) == '{' ? regex.indexOf('}', j + 1) : Math.min(j + 1, length - 1);
+
+            default:
+                // a back reference like \12, or an escape without an argument like \d or \b
+                while (Character.isDigit(regex.charAt(j)) && j + 1 < length && Character.isDigit(regex.charAt(j + 1))) j++;
+                return j;
+        }
+    }
+
+    private static long[] trigramsOf(String s) {
+        if (s.length() < 3) return new long[0];
+
+        var result = new long[s.length() - 2];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = trigram(s, i);
+        }
+
+        return result;
+    }
+
+    private static long trigram(CharSequence s, int i) {
+        return ((long) s.charAt(i) << 32) | ((long) s.charAt(i + 1) << 16) | s.charAt(i + 2);
+    }
+
+    /**
+     * Helper method to add entries to the index, runs on the executor thread.
+     */
+    private void addEntries(long firstSeq, List<LogEntry> added) {
+        // ids are stored as ints, so start again if the log has been running long enough to overflow them
+        if (firstSeq + added.size() - idBase >= Integer.MAX_VALUE) {
+            reindex();
+        }
+
+        for (int i = 0; i < added.size(); i++) {
+            var seq = firstSeq + i;
+
+            // the first batch may overlap with entries appended while the index was starting
+            if (seq < startSeq + (end - start)) continue;
+
+            var entry = added.get(i);
+            ensureCapacity();
+            entries[end++] = entry;
+
+            indexEntry((int) (seq - idBase), entry);
+        }
+    }
+
+    private void indexEntry(int id, LogEntry entry) {
+        var message = entry.getMessage();
+
+        for (int i = 0; i + 2 < message.length(); i++) {
+            postings.computeIfAbsent(trigram(message, i), _k -> new Postings()).add(id);
+        }
+    }
+
+    /**
+     * Helper method to remove old entries from the index, runs on the executor thread.
+     */
+    private void removeEntriesBefore(long seq) {
+        var count = (int) Math.min(Math.max(seq - startSeq, 0), end - start);
+        if (count == 0) return;
+
+        Arrays.fill(entries, start, start + count, null);
+        start += count;
+        startSeq += count;
+        evictedSinceCompaction += count;
+
+        // stale ids are skipped when searching, so only tidy up the postings once they make up most of the index
+        if (evictedSinceCompaction > end - start) {
+            var firstId = (int) (startSeq - idBase);
+
+            postings.values().removeIf(p -> p.trimBefore(firstId));
+            evictedSinceCompaction = 0;
+        }
+    }
+
+    /**
+     * Helper method to rebuild the postings from the live entries with a new id base.
+     */
+    private void reindex() {
+        postings.clear();
+        idBase = startSeq;
+        evictedSinceCompaction = 0;
+
+        for (int i = start; i < end; i++) {
+            indexEntry(i - start, entries[i]);
+        }
+    }
+
+    private void ensureCapacity() {
+        if (end < entries.length) return;
+
+        var size = end - start;
+        var newEntries = size < entries.length / 2 ? entries : new LogEntry[entries.length * 2];
+
+        System.arraycopy(entries, start, newEntries, 0, size);
+        if (newEntries == entries) Arrays.fill(entries, size, end, null);
+
+        entries = newEntries;
+        start = 0;
+        end = size;
+    }
+
+    /**
+     * Helper method to run a search over the live entries, runs on the executor thread.
+     *
+     * @return the result, or null if the search was abandoned
+     */
+    private SearchResult runSearch(int generation, Pattern pattern, long[] trigrams) {
+        var firstId = (int) (startSeq - idBase);
+        var candidates = trigrams.length == 0 ? null : candidates(trigrams, firstId);
+
+        // the level and time columns are checked separately as they aren't indexed,
+        // there are only a handful of levels and consecutive entries usually share the same second
+        var levelMatches = new boolean[LogLevel.values().length];
+        for (var level : LogLevel.values()) {
+            levelMatches[level.ordinal()] = pattern.matcher(level.toString()).find();
+        }
+
+        long lastSecond = Long.MIN_VALUE;
+        boolean lastSecondMatches = false;
+
+        var matches = new long[end - start];
+        var count = 0;
+        var nextCandidate = 0;
+
+        for (int i = start; i < end; i++) {
+            if ((i & 0xfff) == 0 && generation != searchGeneration.get()) return null;
+
+            var entry = entries[i];
+            var id = firstId + (i - start);
+
+            boolean include = levelMatches[entry.getLevel().ordinal()];
+
+            if (!include) {
+                var second = Math.floorDiv(entry.getEpochNanos(), 1_000_000_000L);
+                if (second != lastSecond) {
+                    lastSecond = second;
+                    lastSecondMatches = pattern.matcher(formatTime(entry.getEpochNanos())).find();
+                }
+
+                include = lastSecondMatches;
+            }
+
+            if (!include) {
+                boolean isCandidate;
+
+                if (candidates == null) {
+                    isCandidate = true;
+                } else {
+                    while (nextCandidate < candidates.length && candidates[nextCandidate] < id) nextCandidate++;
+                    isCandidate = nextCandidate < candidates.length && candidates[nextCandidate] == id;
+                }
+
+                include = isCandidate && pattern.matcher(entry.getMessage()).find();
+            }
+
+            if (include) matches[count++] = startSeq + (i - start);
+        }
+
+        return new SearchResult(pattern, Arrays.copyOf(matches, count), startSeq + (end - start));
+    }
+
+    /**
+     * Helper method to find the ids of the live entries containing every one of the trigrams.
+     */
+    private int[] candidates(long[] trigrams, int firstId) {
+        var lists = new ArrayList<Postings>(trigrams.length);
+
+        for (var trigram : trigrams) {
+            var list = postings.get(trigram);
+            if (list == null) return new int[0];
+
+            list.trimBefore(firstId);
+            lists.add(list);
+        }
+
+        // walk the shortest list and look each id up in the others
+        lists.sort(Comparator.comparingInt(Postings::size));
+        var shortest = lists.get(0);
+
+        var result = new int[shortest.size()];
+        var count = 0;
+
+        outer:
+        for (int i = shortest.start; i < shortest.end; i++) {
+            var id = shortest.ids[i];
+
+            for (int j = 1; j < lists.size(); j++) {
+                if (!lists.get(j).contains(id)) continue outer;
+            }
+
+            result[count++] = id;
+        }
+
+        return Arrays.copyOf(result, count);
+    }
+
+    /**
+     * The ids of the entries containing a single trigram, in ascending order.
+     */
+    private static final class Postings {
+        private int[] ids = new int[4];
+        private int start = 0;
+        private int end = 0;
+
+        private void add(int id) {
+            // a trigram may appear more than once in the same message
+            if (end > start && ids[end - 1] == id) return;
+
+            if (end == ids.length) {
+                var size = end - start;
+                var newIds = size < ids.length / 2 ? ids : new int[ids.length * 2];
+
+                System.arraycopy(ids, start, newIds, 0, size);
+                ids = newIds;
+                start = 0;
+                end = size;
+            }
+
+            ids[end++] = id;
+        }
+
+        /**
+         * Drop the ids of evicted entries.
+         *
+         * @return whether the list is now empty
+         */
+        private boolean trimBefore(int firstId) {
+            while (start < end && ids[start] < firstId) start++;
+
+            if (start == end) {
+                start = 0;
+                end = 0;
+                return true;
+            }
+
+            return false;
+        }
+
+        private boolean contains(int id) {
+            return Arrays.binarySearch(ids, start, end, id) >= 0;
+        }
+
+        private int size() {
+            return end - start;
+        }
+    }
+}
@@ -16,17 +16,16 @@ package com.nccgroup.jwtreauth.ui.logging;
 import com.nccgroup.jwtreauth.ui.misc.InstantRenderer;
 
 import javax.swing.*;
-import javax.swing.table.TableModel;
-import javax.swing.table.TableRowSorter;
-import javax.swing.table.TableStringConverter;
-import java.time.Instant;
-import java.util.List;
+import javax.swing.event.TableModelEvent;
+import java.util.ArrayList;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 public class LogTable extends JTable {
-    private final TableRowSorter<LogTableModel> sorter;
+    private final LogRowSorter sorter;
 
     private final TypeFilter typeFilter;
-    private String regexFilter;
+    private final LogSearchIndex searchIndex;
 
     public LogTable() {
         // it is now safe to create the table model and column model
@@ -42,27 +41,15 @@ public class LogTable extends JTable {
         columnModel.getColumn(LogTableModel.TYPE_COL).setPreferredWidth(60);
         columnModel.getColumn(LogTableModel.TYPE_COL).setMaxWidth(60);
 
-        // create a new sorter
-        sorter = new TableRowSorter<>((LogTableModel) getModel());
-        sorter.setSortsOnUpdates(true);
-        setRowSorter(sorter);
-
-        sorter.setStringConverter(new TableStringConverter() {
-            @Override
-            public String toString(TableModel model, int row, int column) {
-                var obj = model.getValueAt(row, column);
-                if (column == LogTableModel.TIME_COL) {
-                    return InstantRenderer.FORMAT.format((Instant) obj);
-                }
-
-                return obj.toString();
-            }
-        });
-
         typeFilter = new TypeFilter();
-        regexFilter = "";
 
-        updateFilter();
+        // create a new sorter, this only filters newly appended rows rather than re-sorting the whole log
+        sorter = new LogRowSorter((LogTableModel) getModel(), typeFilter);
+        setRowSorter(sorter);
+
+        // keep the search index in step with the log, this does nothing unless there is a search
+        searchIndex = new LogSearchIndex();
+        getModel().addTableModelListener(this::updateSearchIndex);
 
         setFillsViewportHeight(true);
         setAutoResizeMode(JTable.AUTO_RESIZE_LAST_COLUMN);
@@ -71,36 +58,84 @@ public class LogTable extends JTable {
     public void setFilterIncludeError(boolean include) {
         this.typeFilter.setFilterInclude(LogLevel.Error, include);
 
-        // trigger a sort to update the GUI
-        SwingUtilities.invokeLater(this.sorter::sort);
+        // trigger a refilter to update the GUI
+        SwingUtilities.invokeLater(this.sorter::refilter);
     }
 
     public void setFilterIncludeInfo(boolean include) {
         this.typeFilter.setFilterInclude(LogLevel.Info, include);
 
-        // trigger a sort to update the GUI
-        SwingUtilities.invokeLater(this.sorter::sort);
+        // trigger a refilter to update the GUI
+        SwingUtilities.invokeLater(this.sorter::refilter);
     }
 
     public void setFilterIncludeDebug(boolean include) {
         this.typeFilter.setFilterInclude(LogLevel.Debug, include);
 
-        // trigger a sort to update the GUI
-        SwingUtilities.invokeLater(this.sorter::sort);
+        // trigger a refilter to update the GUI
+        SwingUtilities.invokeLater(this.sorter::refilter);
     }
 
     public void setRegexFilter(String regexFilter) {
-        this.regexFilter = regexFilter;
+        if (regexFilter.isEmpty()) {
+            SwingUtilities.invokeLater(() -> {
+                // the index formats every message, so it is only kept while there is a search
+                searchIndex.stop();
+                sorter.clearSearch();
+            });
+            return;
+        }
+
+        final Pattern pattern;
+
+        try {
+            pattern = Pattern.compile(regexFilter);
+        } catch (PatternSyntaxException _e) {
+            // keep the previous filter until the user finishes typing a valid regex
+            return;
+        }
+
+        SwingUtilities.invokeLater(() -> {
+            if (!searchIndex.isStarted()) {
+                var model = (LogTableModel) getModel();
+                searchIndex.start(model.getFirstSequence(), entries(model, 0, model.getRowCount() - 1));
+            }
 
-        updateFilter();
+            // the search runs in the background and the view keeps the previous filter until it finishes
+            searchIndex.search(pattern, sorter::setSearchResult);
+        });
+    }
+
+    /**
+     * Stop the search index's background thread so that the extension can be unloaded safely.
+     */
+    public void extensionUnloaded() {
+        searchIndex.shutdown();
+    }
+
+    /**
+     * Helper method to pass appended and removed rows on to the search index.
+     */
+    private void updateSearchIndex(TableModelEvent e) {
+        if (!searchIndex.isStarted()) return;
+
+        var model = (LogTableModel) getModel();
+
+        if (e.getType() == TableModelEvent.INSERT) {
+            searchIndex.append(model.getFirstSequence() + e.getFirstRow(), entries(model, e.getFirstRow(), e.getLastRow()));
+        } else {
+            // the model only ever removes its oldest rows
+            searchIndex.evictBefore(model.getFirstSequence());
+        }
     }
 
-    private void updateFilter() {
-        var newFilter = RowFilter.andFilter(List.of(
-                this.typeFilter,
-                RowFilter.regexFilter(regexFilter)
-        ));
+    private static ArrayList<LogEntry> entries(LogTableModel model, int firstRow, int lastRow) {
+        var entries = new ArrayList<LogEntry>(Math.max(lastRow - firstRow + 1, 0));
+
+        for (int row = firstRow; row <= lastRow; row++) {
+            entries.add(model.getEntry(row));
+        }
 
-        SwingUtilities.invokeLater(() -> sorter.setRowFilter(newFilter));
+        return entries;
     }
 }
@@ -17,15 +17,21 @@ import javax.validation.constraints.NotNull;
 
 import javax.swing.table.AbstractTableModel;
 import java.time.Instant;
-import java.util.ArrayList;
 import java.util.List;
 
 /**
  * Implement a custom model for the table.
+ * <p>
+ * The log is stored in a fixed capacity circular buffer of entries, each of which holds its own
+ * time, type and message, so nothing is stored twice.
+ * Row 0 is always the oldest entry and is found at head, so appending to a full log
+ * just overwrites the oldest slot and moves head along.
+ * The array starts small and doubles in size until it reaches the max log length.
  */
 public class LogTableModel extends AbstractTableModel {
     private static final List<String> columnNames = List.of("Time", "Type", "Message");
     private static final List<Class<?>> columnClasses = List.of(Instant.class, LogLevel.class, String.class);
+    private static final int INITIAL_CAPACITY = 1024;
 
     public static final LogLevel DEFAULT_LOG_LEVEL = LogLevel.Info;
     public static final int DEFAULT_MAX_LOG_LENGTH = 100_000;
@@ -34,60 +40,78 @@ public class LogTableModel extends AbstractTableModel {
     public static final int TYPE_COL = 1;
     public static final int MSG_COL = 2;
 
-    private final List<List<Object>> data;
-    private final List<Object> timeLog;
-    private final List<Object> typeLog;
-    private final List<Object> messageLog;
+    private LogEntry[] log;
 
-    private LogLevel logLevel;
+    // the physical index of row 0, and the number of rows in use
+    private int head;
+    private int size;
+
+    // every entry ever appended gets the next sequence number, this is the sequence number of row 0.
+    // unlike row indices, sequence numbers don't change when old entries are removed.
+    private long firstSequence;
+
+    // read by every thread which logs, so the level check doesn't need a lock
+    private volatile LogLevel logLevel;
     private int maxLogLength;
 
     LogTableModel() {
-        // create the log arrays
-        timeLog = new ArrayList<>();
-        typeLog = new ArrayList<>();
-        messageLog = new ArrayList<>();
-
-        // create an immutable list for the data
-        data = List.of(
-                timeLog,
-                typeLog,
-                messageLog
-        );
-
         logLevel = DEFAULT_LOG_LEVEL;
         maxLogLength = DEFAULT_MAX_LOG_LENGTH;
+
+        allocate(Math.min(INITIAL_CAPACITY, maxLogLength));
+    }
+
+    /**
+     * Check whether a message of the given type meets the current log level criteria.
+     *
+     * @param type the type of log event
+     * @return whether the message should be added to the log
+     */
+    boolean isLoggable(final @NotNull LogLevel type) {
+        return type.compareTo(logLevel) >= 0;
     }
 
     /**
-     * Add a formatted message to the log if it meets the current log level criteria.
+     * Add a batch of messages to the log, removing the oldest messages to make room.
+     * A single insertion event is fired for the whole batch.
+     * <p>
+     * Note: must be called on the EDT
      *
-     * @param type   the type of log event
-     * @param format the format of the log message
-     * @param args   the arguments to the formatter
+     * @param entries the entries to add
      */
-    synchronized void log(final @NotNull LogLevel type, final @NotNull String format, Object... args) {
-        // if the item to be logged is below logLevel, don't add it to the log
-        if (type.compareTo(logLevel) < 0) {
-            return;
+    void append(final @NotNull List<LogEntry> entries) {
+        if (entries.isEmpty()) return;
+
+        // only the most recent maxLogLength entries could ever be shown
+        var toAdd = entries.subList(Math.max(0, entries.size() - maxLogLength), entries.size());
+
+        // remove the oldest messages
+        int toRemove = size + toAdd.size() - maxLogLength;
+        if (toRemove > 0) {
+            removeOldest(toRemove);
+
+            fireTableRowsDeleted(0, toRemove - 1);
         }
 
-        // remove first message
-        if (getRowCount() == maxLogLength) {
-            timeLog.remove(0);
-            typeLog.remove(0);
-            messageLog.remove(0);
+        if (toAdd.isEmpty()) return;
 
-            fireTableRowsDeleted(0, 0);
+        if (size + toAdd.size() > log.length) {
+            var capacity = Math.max(log.length, 16);
+            while (capacity < size + toAdd.size()) capacity *= 2;
+
+            resize(Math.min(capacity, maxLogLength));
         }
 
-        int index = timeLog.size();
+        int first = size;
+
+        for (var entry : toAdd) {
+            // the message is formatted lazily when the cell is first read
+            log[physicalIndex(size)] = entry;
 
-        timeLog.add(Instant.now());
-        typeLog.add(type);
-        messageLog.add(String.format(format, args));
+            size++;
+        }
 
-        fireTableRowsInserted(index, index);
+        fireTableRowsInserted(first, size - 1);
     }
 
     void setLogLevel(LogLevel logLevel) {
@@ -100,31 +124,109 @@ public class LogTableModel extends AbstractTableModel {
         cullExcessLogMessages();
     }
 
-    private synchronized void cullExcessLogMessages() {
-        int elementsToCull = getRowCount() - maxLogLength;
+    private void cullExcessLogMessages() {
+        int elementsToCull = size - maxLogLength;
 
         if (elementsToCull > 0) {
-            timeLog.subList(0, elementsToCull).clear();
-            typeLog.subList(0, elementsToCull).clear();
-            messageLog.subList(0, elementsToCull).clear();
+            removeOldest(elementsToCull);
+        }
+
+        // don't hold on to more memory than the new max length needs
+        if (log.length > maxLogLength) {
+            resize(maxLogLength);
         }
 
         fireTableDataChanged();
     }
 
+    /**
+     * Helper method to drop the oldest rows, clearing their entries so they can be collected.
+     */
+    private void removeOldest(int count) {
+        for (int row = 0; row < count; row++) {
+            log[physicalIndex(row)] = null;
+        }
+
+        head = physicalIndex(count);
+        size -= count;
+        firstSequence += count;
+
+        if (size == 0) head = 0;
+    }
+
+    /**
+     * Helper method to copy the rows in order into a new array of the given capacity.
+     */
+    private void resize(int capacity) {
+        var newLog = new LogEntry[capacity];
+
+        // the rows may wrap around the end of the array, so copy them in two parts
+        var firstPart = Math.min(size, log.length - head);
+        System.arraycopy(log, head, newLog, 0, firstPart);
+        System.arraycopy(log, 0, newLog, firstPart, size - firstPart);
+
+        log = newLog;
+        head = 0;
+    }
+
+    private void allocate(int capacity) {
+        log = new LogEntry[capacity];
+        head = 0;
+        size = 0;
+    }
+
+    /**
+     * @return the sequence number of row 0, row i has sequence number getFirstSequence() + i
+     */
+    long getFirstSequence() {
+        return firstSequence;
+    }
+
+    long getEpochNanos(int rowIndex) {
+        return getEntry(rowIndex).getEpochNanos();
+    }
+
+    LogLevel getLevel(int rowIndex) {
+        return getEntry(rowIndex).getLevel();
+    }
+
+    String getMessage(int rowIndex) {
+        return getEntry(rowIndex).getMessage();
+    }
+
+    LogEntry getEntry(int rowIndex) {
+        return log[physicalIndex(rowIndex)];
+    }
+
+    private int physicalIndex(int rowIndex) {
+        var i = head + rowIndex;
+        return i >= log.length ? i - log.length : i;
+    }
+
     @Override
     public int getColumnCount() {
-        return data.size();
+        return columnNames.size();
     }
 
     @Override
     public int getRowCount() {
-        return messageLog.size();
+        return size;
     }
 
     @Override
     public Object getValueAt(int rowIndex, int columnIndex) {
-        return data.get(columnIndex).get(rowIndex);
+        var entry = getEntry(rowIndex);
+
+        switch (columnIndex) {
+            case TIME_COL:
+                return Instant.ofEpochSecond(0, entry.getEpochNanos());
+            case TYPE_COL:
+                return entry.getLevel();
+            case MSG_COL:
+                return entry.getMessage();
+            default:
+                throw new IndexOutOfBoundsException("No such column: " + columnIndex);
+        }
     }
 
     @Override
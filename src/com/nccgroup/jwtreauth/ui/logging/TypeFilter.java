@@ -13,12 +13,10 @@ limitations under the License.
 
 package com.nccgroup.jwtreauth.ui.logging;
 
-import javax.swing.*;
-
 /**
- * Filter class which checks the contents of the type column
+ * Filter class which checks the level of a log row, used by the LogRowSorter
  */
-class TypeFilter extends RowFilter<LogTableModel, Object> {
+class TypeFilter {
     public final static boolean INCLUDE_ERROR_BY_DEFAULT = true;
     public final static boolean INCLUDE_INFO_BY_DEFAULT = true;
     public final static boolean INCLUDE_DEBUG_BY_DEFAULT = false;
@@ -47,24 +45,22 @@ class TypeFilter extends RowFilter<LogTableModel, Object> {
         }
     }
 
-    @Override
-    public boolean include(Entry<? extends LogTableModel, ?> entry) {
-        var value = entry.getValue(LogTableModel.TYPE_COL);
-
-        // if the object is a LogLevel, then use the currently set booleans to filter
-        if (value instanceof LogLevel) {
-            var logLevel = (LogLevel) value;
-            switch (logLevel) {
-                case Info:
-                    return filterIncludeInfo;
-                case Debug:
-                    return filterIncludeDebug;
-                case Error:
-                    return filterIncludeError;
-            }
+    /**
+     * Check a log level against the currently set booleans.
+     *
+     * @param logLevel the level of the row
+     * @return whether rows of that level should be shown
+     */
+    public boolean includes(LogLevel logLevel) {
+        switch (logLevel) {
+            case Info:
+                return filterIncludeInfo;
+            case Debug:
+                return filterIncludeDebug;
+            case Error:
+                return filterIncludeError;
         }
 
-        // if its not a LogLevel something has gone wrong so just return false and don't include it
         return false;
     }
 }
@@ -0,0 +1,116 @@
+/*
+Copyright 2022 NCC Group
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    https://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.nccgroup.jwtreauth.ui.scope;
+
+import javax.validation.constraints.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Trie of host names keyed on their labels in reverse order, i.e. "api.example.com"
+ * is stored as com -> example -> api. It is used to look up wildcard subdomain rules
+ * such as "*.example.com" without checking every rule.
+ * <p>
+ * Like PrefixTrie it is only mutated while its ScopeIndex is being built.
+ *
+ * @param <T> the type of the values stored against each domain
+ */
+class HostTrie<T> {
+    private static class Node<T> {
+        private final List<String> labels = new ArrayList<>();
+        private final List<Node<T>> children = new ArrayList<>();
+        private final List<T> values = new ArrayList<>();
+
+        private Node<T> childFor(String host, int start, int end) {
+            var length = end - start;
+
+            // there are very few children per label in practice, so a linear scan beats hashing a substring
+            for (int i = 0; i < labels.size(); i++) {
+                var label = labels.get(i);
+                if (label.length() == length && host.regionMatches(true, start, label, 0, length)) {
+                    return children.get(i);
+                }
+            }
+
+            return null;
+        }
+    }
+
+    private final Node<T> root = new Node<>();
+    private boolean empty = true;
+
+    /**
+     * Add a value for every strict subdomain of domain, this must only be called before the trie is published.
+     *
+     * @param domain the parent domain, without the leading "*."
+     * @param value  the value to store
+     */
+    void add(@NotNull String domain, @NotNull T value) {
+        var node = root;
+        var end = domain.length();
+
+        while (end > 0) {
+            var start = domain.lastIndexOf('.', end - 1) + 1;
+            var child = node.childFor(domain, start, end);
+
+            if (child == null) {
+                child = new Node<>();
+                node.labels.add(domain.substring(start, end));
+                node.children.add(child);
+            }
+
+            node = child;
+            end = start - 1;
+        }
+
+        node.values.add(value);
+        empty = false;
+    }
+
+    boolean isEmpty() {
+        return empty;
+    }
+
+    /**
+     * Check the values stored against every domain which host is a strict subdomain of.
+     *
+     * @param host      the host to look up
+     * @param predicate the test to apply to each candidate value
+     * @return whether any candidate value matched the predicate
+     */
+    boolean anyMatch(@NotNull String host, @NotNull Predicate<T> predicate) {
+        var node = root;
+        var end = host.length();
+
+        while (end > 0) {
+            var start = host.lastIndexOf('.', end - 1) + 1;
+
+            node = node.childFor(host, start, end);
+            if (node == null) return false;
+
+            end = start - 1;
+
+            // only strict subdomains match, so there has to be at least one label left
+            if (end > 0) {
+                for (var value : node.values) {
+                    if (predicate.test(value)) return true;
+                }
+            }
+        }
+
+        return false;
+    }
+}
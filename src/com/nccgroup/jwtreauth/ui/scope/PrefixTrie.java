@@ -0,0 +1,103 @@
+/*
+Copyright 2022 NCC Group
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    https://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.nccgroup.jwtreauth.ui.scope;
+
+import javax.validation.constraints.NotNull;
+
+import java.util.Arrays;
+
+/**
+ * Character trie used to check whether a string starts with any of a set of prefixes.
+ * <p>
+ * The trie is only mutated while its ScopeIndex is being built, after that it is
+ * read concurrently without any locking.
+ */
+class PrefixTrie {
+    private static final char[] NO_KEYS = new char[0];
+    private static final Node[] NO_CHILDREN = new Node[0];
+
+    private static class Node {
+        // keys is kept sorted so children can be found with a binary search
+        private char[] keys = NO_KEYS;
+        private Node[] children = NO_CHILDREN;
+        private boolean terminal;
+
+        private Node childFor(char c) {
+            var i = Arrays.binarySearch(keys, c);
+            return i < 0 ? null : children[i];
+        }
+
+        private Node addChild(char c) {
+            var i = Arrays.binarySearch(keys, c);
+            if (i >= 0) return children[i];
+
+            var insertAt = -(i + 1);
+            var node = new Node();
+
+            var newKeys = new char[keys.length + 1];
+            System.arraycopy(keys, 0, newKeys, 0, insertAt);
+            System.arraycopy(keys, insertAt, newKeys, insertAt + 1, keys.length - insertAt);
+            newKeys[insertAt] = c;
+
+            var newChildren = new Node[children.length + 1];
+            System.arraycopy(children, 0, newChildren, 0, insertAt);
+            System.arraycopy(children, insertAt, newChildren, insertAt + 1, children.length - insertAt);
+            newChildren[insertAt] = node;
+
+            keys = newKeys;
+            children = newChildren;
+
+            return node;
+        }
+    }
+
+    private final Node root = new Node();
+    private boolean empty = true;
+
+    /**
+     * Add a prefix to the trie, this must only be called before the trie is published.
+     *
+     * @param prefix the prefix to add
+     */
+    void add(@NotNull String prefix) {
+        var node = root;
+
+        for (int i = 0; i < prefix.length(); i++) {
+            node = node.addChild(prefix.charAt(i));
+        }
+
+        node.terminal = true;
+        empty = false;
+    }
+
+    boolean isEmpty() {
+        return empty;
+    }
+
+    /**
+     * @param s the string to check
+     * @return whether any prefix in the trie is a prefix of s
+     */
+    boolean matchesPrefixOf(@NotNull CharSequence s) {
+        var node = root;
+
+        for (int i = 0; ; i++) {
+            if (node.terminal) return true;
+            if (i == s.length()) return false;
+
+            node = node.childFor(s.charAt(i));
+            if (node == null) return false;
+        }
+    }
+}
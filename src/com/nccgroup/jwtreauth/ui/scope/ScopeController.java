@@ -13,7 +13,10 @@ limitations under the License.
 
 package com.nccgroup.jwtreauth.ui.scope;
 
+import burp.IHttpService;
+
 import java.net.URL;
+import java.util.Set;
 import javax.validation.constraints.NotNull;
 
 public class ScopeController {
@@ -40,7 +43,35 @@ public class ScopeController {
     }
 
     public boolean inScope(@NotNull URL url) {
-        return scopeTableModel.inScope(url.toString());
+        return scopeTableModel.inScope(url);
+    }
+
+    /**
+     * Cheap check against the protocol, host and port of a message, which lets
+     * out of scope messages be rejected before the request is analyzed.
+     *
+     * @param service the http service of the message
+     * @return false if no URL on the service can be in scope
+     */
+    public boolean mayBeInScope(IHttpService service) {
+        // without a service we can't tell, so leave it to the full check
+        if (service == null) return true;
+
+        return scopeTableModel.mayBeInScope(service.getProtocol(), service.getHost(), service.getPort());
+    }
+
+    /**
+     * @return the domains to set a cookie on so it is sent to every in scope host
+     */
+    public Set<String> getCookieDomains() {
+        return scopeTableModel.getCookieDomains();
+    }
+
+    /**
+     * Add a listener which is run whenever the scope table changes.
+     */
+    public void addScopeChangeListener(@NotNull Runnable listener) {
+        scopeTableModel.addTableModelListener(_event -> listener.run());
     }
 
     public boolean contains(@NotNull URL url) {
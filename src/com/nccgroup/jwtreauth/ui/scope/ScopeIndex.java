@@ -0,0 +1,260 @@
+/*
+Copyright 2022 NCC Group
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    https://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.nccgroup.jwtreauth.ui.scope;
+
+import javax.validation.constraints.NotNull;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Immutable, precompiled form of the active rows in the scope table.
+ * <p>
+ * Exact rows are stored as canonical URL keys in a hash set and prefix rows in a trie,
+ * so checking a URL is independent of the number of rows and doesn't parse any URLs.
+ * A new index is built and published by the ScopeTableModel whenever the table changes.
+ * <p>
+ * Rows whose host starts with "*." match any strict subdomain of the rest of the host,
+ * these are stored in a HostTrie keyed on the reversed labels of the parent domain.
+ * <p>
+ * The index also keeps the set of protocol, host and port combinations which any row
+ * could match, so that most out of scope traffic can be rejected before it is analyzed,
+ * and the set of cookie domains covering the rows, for pushing the token into the cookie jar.
+ */
+class ScopeIndex {
+    static final ScopeIndex EMPTY = new Builder().build();
+
+    private final Set<String> exactKeys;
+    private final Set<String> rawExact;
+    private final PrefixTrie prefixes;
+    private final HostTrie<WildcardRule> wildcards;
+
+    private final Set<String> serviceKeys;
+    private final PrefixTrie servicePrefixes;
+    private final boolean matchesAnyService;
+    private final Set<String> cookieDomains;
+
+    private ScopeIndex(Builder builder) {
+        exactKeys = Set.copyOf(builder.exactKeys);
+        rawExact = Set.copyOf(builder.rawExact);
+        prefixes = builder.prefixes;
+        wildcards = builder.wildcards;
+        serviceKeys = Set.copyOf(builder.serviceKeys);
+        servicePrefixes = builder.servicePrefixes;
+        matchesAnyService = builder.matchesAnyService;
+        cookieDomains = Set.copyOf(builder.cookieDomains);
+    }
+
+    /**
+     * Check a URL against the index, with the same semantics as the scope table:
+     * prefix rows match if the URL string starts with them, and exact rows match
+     * using UrlComparison.compareEqual.
+     *
+     * @param url the URL to check
+     * @return whether url is in scope
+     */
+    boolean inScope(@NotNull URL url) {
+        var urlString = url.toString();
+
+        if (!prefixes.isEmpty() && prefixes.matchesPrefixOf(urlString)) return true;
+        if (!exactKeys.isEmpty() && exactKeys.contains(canonicalKey(url))) return true;
+        if (!rawExact.isEmpty() && rawExact.contains(urlString)) return true;
+
+        return !wildcards.isEmpty() && wildcards.anyMatch(url.getHost(), rule -> rule.matches(url, urlString));
+    }
+
+    /**
+     * Fast check of whether any URL on the given service could be in scope.
+     * This may return true for services which turn out not to be in scope,
+     * but it never returns false for one which is.
+     *
+     * @param protocol the protocol of the service
+     * @param host     the host of the service
+     * @param port     the port of the service
+     * @return false if no URL on the service can be in scope
+     */
+    boolean mayBeInScope(@NotNull String protocol, @NotNull String host, int port) {
+        if (matchesAnyService) return true;
+
+        var service = protocol.toLowerCase(Locale.ROOT) + "://" + host.toLowerCase(Locale.ROOT);
+        var serviceWithPort = service + ":" + port;
+
+        if (serviceKeys.contains(serviceWithPort)) return true;
+
+        // prefixes which end part way through the authority, the URL may or may not include the port
+        if (!servicePrefixes.isEmpty()
+                && (servicePrefixes.matchesPrefixOf(serviceWithPort) || servicePrefixes.matchesPrefixOf(service))) {
+            return true;
+        }
+
+        return !wildcards.isEmpty() && wildcards.anyMatch(host, rule -> rule.matchesService(protocol, port));
+    }
+
+    /**
+     * @return the lowercased hosts of the rows, with wildcard rows giving their parent domain,
+     * rows which don't name a complete host are left out
+     */
+    @NotNull Set<String> getCookieDomains() {
+        return cookieDomains;
+    }
+
+    /**
+     * Build the key used to compare URLs for equality, this is made up of the
+     * same components as UrlComparison.compareEqual uses, with the host lowercased
+     * and the default port filled in.
+     *
+     * @param url the URL to make a key for
+     * @return the canonical key
+     */
+    static @NotNull String canonicalKey(@NotNull URL url) {
+        var port = portOrDefault(url);
+
+        return serviceKey(url.getProtocol(), url.getHost(), port) + url.getPath();
+    }
+
+    private static @NotNull String serviceKey(@NotNull String protocol, @NotNull String host, int port) {
+        return protocol.toLowerCase(Locale.ROOT) + "://" + host.toLowerCase(Locale.ROOT) + ":" + port;
+    }
+
+    private static int portOrDefault(@NotNull URL url) {
+        return url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+    }
+
+    /**
+     * A row whose host is a wildcard, the host itself is matched by the HostTrie
+     * so this only holds the remaining components of the row.
+     */
+    private static class WildcardRule {
+        private final boolean isPrefix;
+        private final String protocol;
+        private final int port;
+        // the path for exact rows, or everything after the authority for prefix rows
+        private final String rest;
+
+        private WildcardRule(boolean isPrefix, String protocol, int port, String rest) {
+            this.isPrefix = isPrefix;
+            this.protocol = protocol;
+            this.port = port;
+            this.rest = rest;
+        }
+
+        private boolean matchesService(String protocol, int port) {
+            return this.port == port && this.protocol.equalsIgnoreCase(protocol);
+        }
+
+        private boolean matches(URL url, String urlString) {
+            if (!matchesService(url.getProtocol(), portOrDefault(url))) return false;
+            if (!isPrefix) return rest.equals(url.getPath());
+
+            var authority = url.getAuthority();
+            var restStart = url.getProtocol().length() + "://".length() + (authority == null ? 0 : authority.length());
+
+            return urlString.startsWith(rest, restStart);
+        }
+    }
+
+    static class Builder {
+        private final Set<String> exactKeys = new HashSet<>();
+        private final Set<String> rawExact = new HashSet<>();
+        private final PrefixTrie prefixes = new PrefixTrie();
+        private final HostTrie<WildcardRule> wildcards = new HostTrie<>();
+        private final Set<String> serviceKeys = new HashSet<>();
+        private final PrefixTrie servicePrefixes = new PrefixTrie();
+        private boolean matchesAnyService = false;
+        private final Set<String> cookieDomains = new HashSet<>();
+
+        /**
+         * Add an active row to the index.
+         *
+         * @param isPrefix whether the row is a prefix rule
+         * @param url      the URL column of the row
+         */
+        Builder add(boolean isPrefix, @NotNull String url) {
+            if (isPrefix) {
+                addPrefix(url);
+                return this;
+            }
+
+            final URL parsed;
+            try {
+                parsed = new URL(url);
+            } catch (MalformedURLException _e) {
+                // revert to naive string comparison for rows which aren't valid URLs,
+                // these can never equal a parsed URL so they don't affect the service checks
+                rawExact.add(url);
+                return this;
+            }
+
+            var host = parsed.getHost();
+            if (host.startsWith("*.")) {
+                wildcards.add(host.substring(2), new WildcardRule(false, parsed.getProtocol(), portOrDefault(parsed), parsed.getPath()));
+                cookieDomains.add(host.substring(2).toLowerCase(Locale.ROOT));
+            } else {
+                exactKeys.add(canonicalKey(parsed));
+                cookieDomains.add(host.toLowerCase(Locale.ROOT));
+                serviceKeys.add(serviceKey(parsed.getProtocol(), host, portOrDefault(parsed)));
+            }
+
+            return this;
+        }
+
+        private void addPrefix(String url) {
+            var schemeEnd = url.indexOf("://");
+
+            // without a complete scheme the prefix could match any service
+            if (schemeEnd == -1) {
+                prefixes.add(url);
+                matchesAnyService = true;
+                return;
+            }
+
+            var authorityStart = schemeEnd + "://".length();
+            var authorityEnd = authorityStart;
+            while (authorityEnd < url.length() && "/?#".indexOf(url.charAt(authorityEnd)) == -1) {
+                authorityEnd++;
+            }
+
+            try {
+                var service = new URL(url.substring(0, authorityEnd));
+
+                if (service.getHost().startsWith("*.")) {
+                    wildcards.add(service.getHost().substring(2), new WildcardRule(
+                            true, service.getProtocol(), portOrDefault(service), url.substring(authorityEnd)
+                    ));
+                    cookieDomains.add(service.getHost().substring(2).toLowerCase(Locale.ROOT));
+                    return;
+                }
+
+                if (authorityEnd == url.length()) {
+                    // the prefix stops part way through the authority e.g. "https://example.co"
+                    servicePrefixes.add(url.toLowerCase(Locale.ROOT));
+                } else {
+                    serviceKeys.add(serviceKey(service.getProtocol(), service.getHost(), portOrDefault(service)));
+                    cookieDomains.add(service.getHost().toLowerCase(Locale.ROOT));
+                }
+            } catch (MalformedURLException | IllegalArgumentException _e) {
+                matchesAnyService = true;
+            }
+
+            prefixes.add(url);
+        }
+
+        ScopeIndex build() {
+            return new ScopeIndex(this);
+        }
+    }
+}
@@ -13,16 +13,13 @@ limitations under the License.
 
 package com.nccgroup.jwtreauth.ui.scope;
 
-import com.nccgroup.jwtreauth.utils.UrlComparison;
-
 import javax.validation.constraints.NotNull;
 
 import javax.swing.table.AbstractTableModel;
-import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.stream.IntStream;
+import java.util.Set;
 
 /**
  * Implement a custom model for the table.
@@ -40,11 +37,15 @@ class ScopeTableModel extends AbstractTableModel {
     private final List<Object> isPrefixCol;
     private final List<Object> URLCol;
 
+    // rebuilt under the model lock whenever the rows change, and read without it
+    private volatile ScopeIndex scopeIndex;
+
     ScopeTableModel() {
         inScopeCol = new ArrayList<>();
         isPrefixCol = new ArrayList<>();
         URLCol = new ArrayList<>();
         data = List.of(inScopeCol, isPrefixCol, URLCol);
+        scopeIndex = ScopeIndex.EMPTY;
     }
 
     synchronized void addRow(boolean inScope, boolean isPrefix, String url) {
@@ -53,6 +54,7 @@ class ScopeTableModel extends AbstractTableModel {
         inScopeCol.add(inScope);
         isPrefixCol.add(isPrefix);
         URLCol.add(url);
+        rebuildIndex();
 
         fireTableRowsInserted(index, index);
     }
@@ -61,6 +63,7 @@ class ScopeTableModel extends AbstractTableModel {
         this.inScopeCol.remove(rowIndex);
         this.isPrefixCol.remove(rowIndex);
         this.URLCol.remove(rowIndex);
+        rebuildIndex();
 
         fireTableRowsDeleted(rowIndex, rowIndex);
     }
@@ -69,29 +72,54 @@ class ScopeTableModel extends AbstractTableModel {
         this.inScopeCol.set(rowIndex, inScope);
         this.isPrefixCol.set(rowIndex, isPrefix);
         this.URLCol.set(rowIndex, url);
+        rebuildIndex();
 
         fireTableRowsUpdated(rowIndex, rowIndex);
     }
 
-    synchronized boolean inScope(@NotNull String url) {
-        return IntStream.iterate(0, i -> i + 1)
-                .limit(getRowCount())
-                .filter(i -> (Boolean) inScopeCol.get(i))
-                .filter(i -> {
-                    if ((Boolean) isPrefixCol.get(i)) {
-                        return url.startsWith((String) URLCol.get(i));
-                    } else {
-                        try {
-                            // attempt to convert both values to a URL then
-                            return UrlComparison.compareEqual(new URL(url), new URL((String) URLCol.get(i)));
-                        } catch (MalformedURLException _e) {
-                            // revert to naive string comparison if an error occurred.
-                            return url.equals(URLCol.get(i));
-                        }
-                    }
-                })
-                .findAny()
-                .isPresent();
+    /**
+     * Check whether a URL is matched by any of the active rows.
+     * <p>
+     * Note: this doesn't take the model lock, it reads the most recently published index.
+     *
+     * @param url the URL to check
+     * @return whether the URL is in scope
+     */
+    boolean inScope(@NotNull URL url) {
+        return scopeIndex.inScope(url);
+    }
+
+    /**
+     * Fast pre-check of whether any URL on a service could be in scope, see ScopeIndex.mayBeInScope.
+     * <p>
+     * Note: like inScope this reads the most recently published index without taking the model lock.
+     */
+    boolean mayBeInScope(@NotNull String protocol, @NotNull String host, int port) {
+        return scopeIndex.mayBeInScope(protocol, host, port);
+    }
+
+    /**
+     * Note: like inScope this reads the most recently published index without taking the model lock.
+     *
+     * @return the cookie domains covering the active rows, see ScopeIndex.getCookieDomains
+     */
+    Set<String> getCookieDomains() {
+        return scopeIndex.getCookieDomains();
+    }
+
+    /**
+     * Helper method to compile the active rows into a new index and publish it.
+     */
+    private synchronized void rebuildIndex() {
+        var builder = new ScopeIndex.Builder();
+
+        for (int i = 0; i < getRowCount(); i++) {
+            if ((Boolean) inScopeCol.get(i)) {
+                builder.add((Boolean) isPrefixCol.get(i), (String) URLCol.get(i));
+            }
+        }
+
+        scopeIndex = builder.build();
     }
 
     synchronized boolean contains(String url) {
@@ -115,7 +143,11 @@ class ScopeTableModel extends AbstractTableModel {
 
     @Override
     public void setValueAt(Object aValue, int rowIndex, int columnIndex) {
-        data.get(columnIndex).set(rowIndex, aValue);
+        synchronized (this) {
+            data.get(columnIndex).set(rowIndex, aValue);
+            rebuildIndex();
+        }
+
         fireTableCellUpdated(rowIndex, columnIndex);
     }
 
@@ -13,8 +13,12 @@ limitations under the License.
 
 package com.nccgroup.jwtreauth.ui.settings;
 
+import com.nccgroup.jwtreauth.BurpTool;
 import com.nccgroup.jwtreauth.JWTReauth;
+import com.nccgroup.jwtreauth.TokenDelivery;
+import com.nccgroup.jwtreauth.TokenExtractionMode;
 import com.nccgroup.jwtreauth.TokenListener;
+import com.nccgroup.jwtreauth.TokenSource;
 import com.nccgroup.jwtreauth.ui.base.GridColumnPanel;
 import com.nccgroup.jwtreauth.ui.logging.LogController;
 import com.nccgroup.jwtreauth.ui.logging.LogLevel;
@@ -22,6 +26,8 @@ import com.nccgroup.jwtreauth.ui.logging.LogTableModel;
 import com.nccgroup.jwtreauth.ui.misc.OnOffButton;
 import com.nccgroup.jwtreauth.ui.misc.StatusLabel;
 import com.nccgroup.jwtreauth.ui.state.TokenListenerStatePanel;
+import com.nccgroup.jwtreauth.utils.JsonPathExtractor;
+import com.nccgroup.jwtreauth.utils.JwtAlgorithm;
 
 import javax.swing.*;
 import java.awt.*;
@@ -33,6 +39,12 @@ import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 
 public class SettingsViewPanel extends GridColumnPanel {
+    private static final Object[] TOOL_LOG_LEVELS = {"Global log level", LogLevel.Debug, LogLevel.Info, LogLevel.Error};
+    private static final String INJECTION_RULES_HELP = "<html>One rule per line: <tt>target name = source</tt><br>"
+            + "target: header, cookie, query, or json with a JSON path into the request body<br>"
+            + "source: token, regex:&lt;pattern&gt; or json:&lt;path&gt; into the auth response<br>"
+            + "e.g. <tt>header X-CSRF-Token = json:$.csrf</tt></html>";
+
     private final LogController logController;
     private final TokenListener tokenListener;
     private final TokenListenerStatePanel tokenListenerStatePanel;
@@ -84,6 +96,88 @@ public class SettingsViewPanel extends GridColumnPanel {
                 .build();
         addRow(authRow);
 
+        // create the token source row
+        var tokenSourceLabel = new JLabel("Token source: ");
+        var tokenSourceBox = new JComboBox<>(TokenSource.values());
+        tokenSourceBox.setFont(Font.decode("MONOSPACED"));
+        tokenSourceBox.setBorder(BorderFactory.createLineBorder(Color.GRAY));
+        tokenSourceBox.setSelectedItem(TokenListener.DEFAULT_TOKEN_SOURCE);
+        tokenSourceBox.addActionListener(_event -> tokenListener.setTokenSource(
+                (TokenSource) tokenSourceBox.getSelectedItem()
+        ));
+        updateHandlers.put("tokenSource", tokenSourceBox::setSelectedItem);
+        addRow(tokenSourceLabel, tokenSourceBox);
+
+        // Create the OAuth client id row
+        var oauthClientIdRow = new RowBuilder(this, "oauthClientId")
+                .setLabelText("OAuth client ID: ")
+                .setFieldText(TokenListener.DEFAULT_OAUTH_CLIENT_ID)
+                .setKeyReleasedHandler(field -> tokenListener.setOAuthClientId(field.getText()))
+                .build();
+        addRow(oauthClientIdRow);
+
+        // Create the OAuth client secret row
+        var oauthClientSecretRow = new RowBuilder(this, "oauthClientSecret")
+                .setLabelText("OAuth client secret: ")
+                .setFieldText(TokenListener.DEFAULT_OAUTH_CLIENT_SECRET)
+                .setKeyReleasedHandler(field -> tokenListener.setOAuthClientSecret(field.getText()))
+                .build();
+        addRow(oauthClientSecretRow);
+
+        // Create the OAuth scope row
+        var oauthScopeRow = new RowBuilder(this, "oauthScope")
+                .setLabelText("OAuth scope: ")
+                .setFieldText(TokenListener.DEFAULT_OAUTH_SCOPE)
+                .setKeyReleasedHandler(field -> tokenListener.setOAuthScope(field.getText()))
+                .build();
+        addRow(oauthScopeRow);
+
+        // create the JWT algorithm row
+        var jwtAlgorithmLabel = new JLabel("Minted JWT algorithm: ");
+        var jwtAlgorithmBox = new JComboBox<>(JwtAlgorithm.values());
+        jwtAlgorithmBox.setFont(Font.decode("MONOSPACED"));
+        jwtAlgorithmBox.setBorder(BorderFactory.createLineBorder(Color.GRAY));
+        jwtAlgorithmBox.setSelectedItem(TokenListener.DEFAULT_JWT_ALGORITHM);
+        jwtAlgorithmBox.addActionListener(_event -> tokenListener.setJwtAlgorithm(
+                (JwtAlgorithm) jwtAlgorithmBox.getSelectedItem()
+        ));
+        updateHandlers.put("jwtAlgorithm", jwtAlgorithmBox::setSelectedItem);
+        addRow(jwtAlgorithmLabel, jwtAlgorithmBox);
+
+        // Create the JWT signing key row
+        var jwtSigningKeyRow = new RowBuilder(this, "jwtSigningKey")
+                .setLabelText("Minted JWT signing key (secret or PKCS#8 PEM): ")
+                .setFieldText(TokenListener.DEFAULT_JWT_SIGNING_KEY)
+                .addStatusLabel()
+                .setKeyReleasedStatusHandler((field, status) -> {
+                    tokenListener.setJwtSigningKey(field.getText());
+                    updateJwtMinterStatus(status);
+                })
+                .build();
+        addRow(jwtSigningKeyRow);
+
+        // Create the JWT claims template row
+        var jwtClaimsTemplateRow = new RowBuilder(this, "jwtClaimsTemplate")
+                .setLabelText("Minted JWT claims: ")
+                .setFieldText(TokenListener.DEFAULT_JWT_CLAIMS_TEMPLATE)
+                .addStatusLabel()
+                .setKeyReleasedStatusHandler((field, status) -> {
+                    tokenListener.setJwtClaimsTemplate(field.getText());
+                    updateJwtMinterStatus(status);
+                })
+                .build();
+        addRow(jwtClaimsTemplateRow);
+
+        // Create the JWT lifetime row
+        var jwtLifetimeLabel = new JLabel("Minted JWT lifetime (seconds): ");
+        var jwtLifetimeSpinnerModel = new SpinnerNumberModel(TokenListener.DEFAULT_JWT_LIFETIME, 1, null, 60);
+        var jwtLifetimeSpinner = new JSpinner(jwtLifetimeSpinnerModel);
+        jwtLifetimeSpinner.addChangeListener(e -> tokenListener.setJwtLifetime(
+                Duration.ofSeconds(jwtLifetimeSpinnerModel.getNumber().longValue())
+        ));
+        updateHandlers.put("jwtLifetime", jwtLifetimeSpinnerModel::setValue);
+        addRow(jwtLifetimeLabel, jwtLifetimeSpinner);
+
         // Create the auth request delay row
         var delayLabel = new JLabel("Authorization Request Delay (seconds): ");
         var delaySpinnerModel = new SpinnerNumberModel(TokenListener.DEFAULT_AUTH_REQ_DELAY, 5, null, 5);
@@ -98,6 +192,66 @@ public class SettingsViewPanel extends GridColumnPanel {
         updateHandlers.put("delay", delaySpinnerModel::setValue);
         addRow(delayLabel, delaySpinner);
 
+        // Create the refresh margin row
+        var refreshMarginLabel = new JLabel("Refresh margin before JWT expiry (seconds): ");
+        var refreshMarginSpinnerModel = new SpinnerNumberModel(TokenListener.DEFAULT_REFRESH_MARGIN, 0, null, 5);
+        var refreshMarginSpinner = new JSpinner(refreshMarginSpinnerModel);
+        refreshMarginSpinner.addChangeListener(e -> tokenListener.setRefreshMargin(
+                Duration.ofSeconds(refreshMarginSpinnerModel.getNumber().longValue())
+        ));
+        updateHandlers.put("refreshMargin", refreshMarginSpinnerModel::setValue);
+        addRow(refreshMarginLabel, refreshMarginSpinner);
+
+        // Create the token grace period row
+        var tokenGracePeriodLabel = new JLabel("Keep using old token while refreshing for (seconds): ");
+        var tokenGracePeriodSpinnerModel = new SpinnerNumberModel(TokenListener.DEFAULT_TOKEN_GRACE_PERIOD, 0, null, 5);
+        var tokenGracePeriodSpinner = new JSpinner(tokenGracePeriodSpinnerModel);
+        tokenGracePeriodSpinner.addChangeListener(e -> tokenListener.setTokenGracePeriod(
+                Duration.ofSeconds(tokenGracePeriodSpinnerModel.getNumber().longValue())
+        ));
+        updateHandlers.put("tokenGracePeriod", tokenGracePeriodSpinnerModel::setValue);
+        addRow(tokenGracePeriodLabel, tokenGracePeriodSpinner);
+
+        // Create the refresh debounce delay row
+        var refreshDebounceDelayLabel = new JLabel("Wait for more refresh triggers for (ms): ");
+        var refreshDebounceDelaySpinnerModel = new SpinnerNumberModel(TokenListener.DEFAULT_REFRESH_DEBOUNCE_DELAY, 0, null, 250);
+        var refreshDebounceDelaySpinner = new JSpinner(refreshDebounceDelaySpinnerModel);
+        refreshDebounceDelaySpinner.addChangeListener(e -> tokenListener.setRefreshDebounceDelay(
+                Duration.ofMillis(refreshDebounceDelaySpinnerModel.getNumber().longValue())
+        ));
+        updateHandlers.put("refreshDebounceDelay", refreshDebounceDelaySpinnerModel::setValue);
+        addRow(refreshDebounceDelayLabel, refreshDebounceDelaySpinner);
+
+        // Create the refresh attempt timeout row
+        var refreshAttemptTimeoutLabel = new JLabel("Give up on a refresh attempt after (s): ");
+        var refreshAttemptTimeoutSpinnerModel = new SpinnerNumberModel(TokenListener.DEFAULT_REFRESH_ATTEMPT_TIMEOUT, 1, null, 1);
+        var refreshAttemptTimeoutSpinner = new JSpinner(refreshAttemptTimeoutSpinnerModel);
+        refreshAttemptTimeoutSpinner.addChangeListener(e -> tokenListener.setRefreshAttemptTimeout(
+                Duration.ofSeconds(refreshAttemptTimeoutSpinnerModel.getNumber().longValue())
+        ));
+        updateHandlers.put("refreshAttemptTimeout", refreshAttemptTimeoutSpinnerModel::setValue);
+        addRow(refreshAttemptTimeoutLabel, refreshAttemptTimeoutSpinner);
+
+        // Create the replay timeout row, each rejected response is held for up to this long while it is replayed
+        var replayTimeoutLabel = new JLabel("Hold each rejected response while replaying it for up to (ms): ");
+        var replayTimeoutSpinnerModel = new SpinnerNumberModel(TokenListener.DEFAULT_REPLAY_TIMEOUT, 250, null, 250);
+        var replayTimeoutSpinner = new JSpinner(replayTimeoutSpinnerModel);
+        replayTimeoutSpinner.addChangeListener(e -> tokenListener.setReplayTimeout(
+                Duration.ofMillis(replayTimeoutSpinnerModel.getNumber().longValue())
+        ));
+        updateHandlers.put("replayTimeout", replayTimeoutSpinnerModel::setValue);
+        addRow(replayTimeoutLabel, replayTimeoutSpinner);
+
+        // Create the max hold time row
+        var maxHoldTimeLabel = new JLabel("Hold requests without a valid token for up to (ms, 0 to disable): ");
+        var maxHoldTimeSpinnerModel = new SpinnerNumberModel(TokenListener.DEFAULT_MAX_HOLD_TIME, 0, null, 250);
+        var maxHoldTimeSpinner = new JSpinner(maxHoldTimeSpinnerModel);
+        maxHoldTimeSpinner.addChangeListener(e -> tokenListener.setMaxHoldTime(
+                Duration.ofMillis(maxHoldTimeSpinnerModel.getNumber().longValue())
+        ));
+        updateHandlers.put("maxHoldTime", maxHoldTimeSpinnerModel::setValue);
+        addRow(maxHoldTimeLabel, maxHoldTimeSpinner);
+
         // Create the header name row
         var headerNameRow = new RowBuilder(this, "headerName")
                 .setLabelText("Header name: ")
@@ -149,6 +303,83 @@ public class SettingsViewPanel extends GridColumnPanel {
                 .build();
         addRow(headerValuePrefixRow);
 
+        // create the token delivery row
+        var tokenDeliveryLabel = new JLabel("Token delivery: ");
+        var tokenDeliveryBox = new JComboBox<>(TokenDelivery.values());
+        tokenDeliveryBox.setFont(Font.decode("MONOSPACED"));
+        tokenDeliveryBox.setBorder(BorderFactory.createLineBorder(Color.GRAY));
+        tokenDeliveryBox.setSelectedItem(TokenListener.DEFAULT_TOKEN_DELIVERY);
+        tokenDeliveryBox.addActionListener(_event -> tokenListener.setTokenDelivery(
+                (TokenDelivery) tokenDeliveryBox.getSelectedItem()
+        ));
+        updateHandlers.put("tokenDelivery", tokenDeliveryBox::setSelectedItem);
+        addRow(tokenDeliveryLabel, tokenDeliveryBox);
+
+        // Create the cookie name row
+        var cookieNameRow = new RowBuilder(this, "cookieName")
+                .setLabelText("Cookie jar cookie name: ")
+                .setFieldText(TokenListener.DEFAULT_COOKIE_NAME)
+                .addStatusLabel()
+                .setKeyReleasedStatusHandler((field, status) -> {
+                    var name = field.getText().trim();
+
+                    if (name.isEmpty() || name.contains("=") || name.contains(";")) {
+                        status.setStatus(StatusLabel.Status.ERROR);
+                        return;
+                    }
+
+                    tokenListener.setCookieName(name);
+                    status.setStatus(StatusLabel.Status.OK);
+                })
+                .build();
+        addRow(cookieNameRow);
+
+        // create the injection rules row, the rules are edited in a dialog as the rows can't grow to fit them
+        var injectionRulesLabel = new JLabel("Extra values to inject: ");
+        var injectionRulesArea = new JTextArea(TokenListener.DEFAULT_INJECTION_RULES, 12, 60);
+        injectionRulesArea.setFont(Font.decode("MONOSPACED"));
+        var injectionRulesButton = new JButton(injectionRulesButtonText(TokenListener.DEFAULT_INJECTION_RULES));
+        var injectionRulesStatus = new StatusLabel();
+        injectionRulesButton.addActionListener(_event -> {
+            var previous = injectionRulesArea.getText();
+
+            var result = JOptionPane.showConfirmDialog(
+                    this,
+                    new Object[]{INJECTION_RULES_HELP, new JScrollPane(injectionRulesArea)},
+                    "Extra values to inject",
+                    JOptionPane.OK_CANCEL_OPTION,
+                    JOptionPane.PLAIN_MESSAGE
+            );
+
+            if (result == JOptionPane.OK_OPTION) {
+                setInjectionRules(injectionRulesArea.getText(), injectionRulesButton, injectionRulesStatus);
+            } else {
+                injectionRulesArea.setText(previous);
+            }
+        });
+        updateHandlers.put(
+                "injectionRules",
+                newData -> {
+                    if (newData instanceof String) {
+                        injectionRulesArea.setText((String) newData);
+                        setInjectionRules((String) newData, injectionRulesButton, injectionRulesStatus);
+                    }
+                }
+        );
+        addRow(injectionRulesLabel, injectionRulesButton, injectionRulesStatus);
+
+        // create the token extraction mode row
+        var tokenExtractionModeLabel = new JLabel("Token extraction mode: ");
+        var tokenExtractionModeBox = new JComboBox<>(TokenExtractionMode.values());
+        tokenExtractionModeBox.setFont(Font.decode("MONOSPACED"));
+        tokenExtractionModeBox.setBorder(BorderFactory.createLineBorder(Color.GRAY));
+        tokenExtractionModeBox.setSelectedItem(TokenListener.DEFAULT_TOKEN_EXTRACTION_MODE);
+        tokenExtractionModeBox.addActionListener(_event -> tokenListener.setTokenExtractionMode(
+                (TokenExtractionMode) tokenExtractionModeBox.getSelectedItem()
+        ));
+        updateHandlers.put("tokenExtractionMode", tokenExtractionModeBox::setSelectedItem);
+        addRow(tokenExtractionModeLabel, tokenExtractionModeBox);
+
         // Create the token regex row
         var tokenRegexRow = new RowBuilder(this, "tokenRegex")
                 .setLabelText("Token regex: ")
@@ -181,6 +412,138 @@ public class SettingsViewPanel extends GridColumnPanel {
                 .build();
         addRow(tokenRegexRow);
 
+        // Create the token JSON path row
+        var tokenJsonPathRow = new RowBuilder(this, "tokenJsonPath")
+                .setLabelText("Token JSON path: ")
+                .setFieldText(TokenListener.DEFAULT_TOKEN_JSON_PATH)
+                .addStatusLabel()
+                .setKeyReleasedStatusHandler((field, status) -> {
+                    var path = field.getText();
+                    final JsonPathExtractor tokenJsonPath;
+
+                    try {
+                        tokenJsonPath = JsonPathExtractor.compile(path);
+                    } catch (IllegalArgumentException e) {
+                        status.setStatus(StatusLabel.Status.ERROR);
+
+                        logController.error(
+                                "Failed to set new Token JSON Path: %s - %s",
+                                path, e
+                        );
+
+                        return;
+                    }
+
+                    status.setStatus(StatusLabel.Status.OK);
+                    tokenListener.setTokenJsonPath(tokenJsonPath);
+                })
+                .build();
+        addRow(tokenJsonPathRow);
+
+        // Create the max token scan length row
+        var maxTokenScanLengthLabel = new JLabel("Max response body bytes to search for token: ");
+        var maxTokenScanLengthSpinnerModel = new SpinnerNumberModel(TokenListener.DEFAULT_MAX_TOKEN_SCAN_LENGTH, 1024, null, 65536);
+        var maxTokenScanLengthSpinner = new JSpinner(maxTokenScanLengthSpinnerModel);
+        maxTokenScanLengthSpinner.addChangeListener(e ->
+                tokenListener.setMaxTokenScanLength(maxTokenScanLengthSpinnerModel.getNumber().intValue())
+        );
+        updateHandlers.put("maxTokenScanLength", maxTokenScanLengthSpinnerModel::setValue);
+        addRow(maxTokenScanLengthLabel, maxTokenScanLengthSpinner);
+
+        // Create the failure status row
+        var failureStatusesRow = new RowBuilder(this, "failureStatuses")
+                .setLabelText("Refresh on response status codes: ")
+                .setFieldText(TokenListener.DEFAULT_FAILURE_STATUSES)
+                .addStatusLabel()
+                .setKeyReleasedStatusHandler((field, status) -> {
+                    var statuses = field.getText();
+
+                    try {
+                        tokenListener.setFailureStatuses(statuses);
+                    } catch (IllegalArgumentException e) {
+                        status.setStatus(StatusLabel.Status.ERROR);
+
+                        logController.error(
+                                "Failed to set new Failure Statuses: %s - %s",
+                                statuses, e
+                        );
+
+                        return;
+                    }
+
+                    status.setStatus(StatusLabel.Status.OK);
+                })
+                .build();
+        addRow(failureStatusesRow);
+
+        // Create the failure body regex row
+        var failureBodyRegexRow = new RowBuilder(this, "failureBodyRegex")
+                .setLabelText("Refresh on response body matching: ")
+                .setFieldText(TokenListener.DEFAULT_FAILURE_BODY_REGEX)
+                .addStatusLabel()
+                .setKeyReleasedStatusHandler((field, status) -> {
+                    var regex = field.getText();
+
+                    try {
+                        tokenListener.setFailureBodyRegex(regex);
+                    } catch (PatternSyntaxException e) {
+                        status.setStatus(StatusLabel.Status.ERROR);
+
+                        logController.error(
+                                "Failed to set new Failure Body Regex: %s - %s",
+                                regex, e
+                        );
+
+                        return;
+                    }
+
+                    status.setStatus(StatusLabel.Status.OK);
+                })
+                .build();
+        addRow(failureBodyRegexRow);
+
+        // create the replay failed requests row
+        var replayFailedRequestsLabel = new JLabel("Replay requests with a rejected token: ");
+        var replayFailedRequestsButton = new OnOffButton("replaying", "not replaying", TokenListener.DEFAULT_REPLAY_FAILED_REQUESTS);
+        replayFailedRequestsButton.addStateChangeListener(tokenListener::setReplayFailedRequests);
+        updateHandlers.put(
+                "replayFailedRequests",
+                newData -> {
+                    if (newData instanceof Boolean) {
+                        SwingUtilities.invokeLater(() -> replayFailedRequestsButton.setState((Boolean) newData));
+                    }
+                }
+        );
+        addRow(replayFailedRequestsLabel, replayFailedRequestsButton);
+
+        // create the persist authorization request row, off by default as the request may hold credentials
+        var persistAuthorizeRequestLabel = new JLabel("Save the authorization request across reloads: ");
+        var persistAuthorizeRequestButton = new OnOffButton("saving", "not saving", TokenListener.DEFAULT_PERSIST_AUTHORIZE_REQUEST);
+        persistAuthorizeRequestButton.addStateChangeListener(tokenListener::setPersistAuthorizeRequest);
+        updateHandlers.put(
+                "persistAuthorizeRequest",
+                newData -> {
+                    if (newData instanceof Boolean) {
+                        SwingUtilities.invokeLater(() -> persistAuthorizeRequestButton.setState((Boolean) newData));
+                    }
+                }
+        );
+        addRow(persistAuthorizeRequestLabel, persistAuthorizeRequestButton);
+
+        // create the HTTP listener row
+        var httpListenerLabel = new JLabel("Global HTTP listener: ");
+        var httpListenerButton = new OnOffButton("enabled", "disabled", TokenListener.DEFAULT_HTTP_LISTENER_ENABLED);
+        httpListenerButton.addStateChangeListener(tokenListener::setHttpListenerEnabled);
+        updateHandlers.put(
+                "httpListenerEnabled",
+                newData -> {
+                    if (newData instanceof Boolean) {
+                        SwingUtilities.invokeLater(() -> httpListenerButton.setState((Boolean) newData));
+                    }
+                }
+        );
+        addRow(httpListenerLabel, httpListenerButton);
+
         // create the "listening" row
         var listeningLabel = new JLabel("Listening: ");
         var listeningButton = new OnOffButton("listening", "not listening", TokenListener.DEFAULT_IS_LISTENING);
@@ -201,6 +564,39 @@ public class SettingsViewPanel extends GridColumnPanel {
         );
         addRow(listeningLabel, listeningButton);
 
+        // create a row for each tool, to choose whether its messages are handled and the log level for them
+        for (var tool : BurpTool.values()) {
+            var toolLabel = new JLabel(tool + " messages: ");
+            var toolButton = new OnOffButton("handled", "ignored", true);
+            toolButton.addStateChangeListener(enabled -> tokenListener.setToolEnabled(tool, enabled));
+
+            var toolLogLevelBox = new JComboBox<>(TOOL_LOG_LEVELS);
+            toolLogLevelBox.setFont(Font.decode("MONOSPACED"));
+            toolLogLevelBox.setBorder(BorderFactory.createLineBorder(Color.GRAY));
+            toolLogLevelBox.addActionListener(_event -> {
+                var selected = toolLogLevelBox.getSelectedItem();
+                tokenListener.setToolLogLevel(tool, selected instanceof LogLevel ? (LogLevel) selected : null);
+            });
+
+            updateHandlers.put(
+                    "toolEnabled." + tool,
+                    newData -> {
+                        if (newData instanceof Boolean) {
+                            // setting the state doesn't notify the listeners, so apply it directly
+                            tokenListener.setToolEnabled(tool, (Boolean) newData);
+                            SwingUtilities.invokeLater(() -> toolButton.setState((Boolean) newData));
+                        }
+                    }
+            );
+            updateHandlers.put(
+                    "toolLogLevel." + tool,
+                    // selecting the level fires the action listener, which applies it
+                    newData -> SwingUtilities.invokeLater(() -> toolLogLevelBox.setSelectedItem(newData))
+            );
+
+            addRow(toolLabel, toolButton, toolLogLevelBox);
+        }
+
         // create the log level row
         var logLevelLabel = new JLabel("Log Level: ");
         var logLevelBox = new JComboBox<>(LogLevel.values());
@@ -233,6 +629,46 @@ public class SettingsViewPanel extends GridColumnPanel {
 
     }
 
+    /**
+     * Helper method to apply the injection rules and show whether they parsed.
+     */
+    private void setInjectionRules(String rules, JButton button, StatusLabel status) {
+        try {
+            tokenListener.setInjectionRules(rules);
+        } catch (IllegalArgumentException e) {
+            status.setStatus(StatusLabel.Status.ERROR);
+
+            logController.error(
+                    "Failed to set new Injection Rules: %s", e.getMessage()
+            );
+
+            return;
+        }
+
+        button.setText(injectionRulesButtonText(rules));
+        status.setStatus(StatusLabel.Status.OK);
+    }
+
+    private static String injectionRulesButtonText(String rules) {
+        var count = rules.lines().map(String::trim).filter(l -> !l.isEmpty() && !l.startsWith("#")).count();
+        return "Edit rules (" + count + ")";
+    }
+
+    /**
+     * Helper method to show whether tokens can be minted with the current settings,
+     * the error may be caused by another of the minter rows.
+     */
+    private void updateJwtMinterStatus(StatusLabel status) {
+        var error = tokenListener.getJwtMinterError();
+
+        if (error.isPresent()) {
+            status.setStatus(StatusLabel.Status.ERROR);
+            logController.debug("Can't mint tokens with the current settings: %s", error.get());
+        } else {
+            status.setStatus(StatusLabel.Status.OK);
+        }
+    }
+
     void updateRow(String rowID, Object newData) {
         updateHandlers.get(rowID).update(newData);
     }
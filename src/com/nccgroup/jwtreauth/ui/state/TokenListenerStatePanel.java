@@ -36,6 +36,7 @@ public class TokenListenerStatePanel extends GridColumnPanel implements IExtensi
     private JTextArea headerArea;
     private Instant tokenTimeActivated;
     private boolean tokenRefreshScheduled;
+    private boolean refreshOnTimer;
     private Duration tokenRefreshDuration;
     private Timer tokenTimer;
     private JLabel tokenTimeActiveLabel;
@@ -119,8 +120,9 @@ public class TokenListenerStatePanel extends GridColumnPanel implements IExtensi
             );
 
             // attempt to refresh the token if is greater than the refresh duration
-            // and it wasn't set manually
-            if (!tokenListener.isTokenSetManually() && !tokenRefreshScheduled && timeActive.compareTo(tokenRefreshDuration) >= 0) {
+            // and it wasn't set manually, tokens with a known expiry are refreshed by the listener itself
+            if (refreshOnTimer && !tokenListener.isTokenSetManually() && !tokenRefreshScheduled
+                    && timeActive.compareTo(tokenRefreshDuration) >= 0) {
                 // schedule a token refresh
                 tokenListener.scheduleTokenRefresh();
                 tokenRefreshScheduled = true;
@@ -148,7 +150,19 @@ public class TokenListenerStatePanel extends GridColumnPanel implements IExtensi
      * @param text the text to set on the tokenField.
      */
     public void updateToken(@NotNull String text, boolean setManually) {
+        updateToken(text, setManually, true);
+    }
+
+    /**
+     * Set the text for the token field.
+     *
+     * @param text           the text to set on the tokenField.
+     * @param refreshOnTimer whether the timer should refresh the token after the refresh duration,
+     *                       this is false when the listener has scheduled a refresh from the token's expiry
+     */
+    public void updateToken(@NotNull String text, boolean setManually, boolean refreshOnTimer) {
         this.tokenArea.setText(text);
+        this.refreshOnTimer = refreshOnTimer;
 
         // if we aren't listening then don't start the timer
         var isListening = tokenListener.isListening();
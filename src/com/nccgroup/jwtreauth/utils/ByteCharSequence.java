@@ -0,0 +1,77 @@
+/*
+Copyright 2022 NCC Group
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    https://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.nccgroup.jwtreauth.utils;
+
+import javax.validation.constraints.NotNull;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Read only CharSequence view over a range of a byte array, decoding one char per byte
+ * in the same way as IExtensionHelpers.bytesToString.
+ * <p>
+ * This lets a regex run over part of a raw HTTP message without copying it into a String first,
+ * only the text of a match is copied when it is read with toString.
+ * The view doesn't copy the array, so it must not be modified while the view is in use.
+ */
+public final class ByteCharSequence implements CharSequence {
+    private final byte[] bytes;
+    private final int offset;
+    private final int length;
+
+    /**
+     * @param bytes  the array to view
+     * @param offset the index of the first byte in the view
+     * @param length the number of bytes in the view
+     */
+    public ByteCharSequence(final @NotNull byte[] bytes, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > bytes.length) {
+            throw new IndexOutOfBoundsException(
+                    "Invalid range [" + offset + ", " + (offset + length) + ") for array of length " + bytes.length
+            );
+        }
+
+        this.bytes = bytes;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("Invalid index: " + index);
+        }
+
+        return (char) (bytes[offset + index] & 0xff);
+    }
+
+    @Override
+    public @NotNull CharSequence subSequence(int start, int end) {
+        if (start < 0 || end > length || start > end) {
+            throw new IndexOutOfBoundsException("Invalid range [" + start + ", " + end + ")");
+        }
+
+        return new ByteCharSequence(bytes, offset + start, end - start);
+    }
+
+    @Override
+    public @NotNull String toString() {
+        return new String(bytes, offset, length, StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,211 @@
+/*
+Copyright 2022 NCC Group
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    https://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.nccgroup.jwtreauth.utils;
+
+import javax.validation.constraints.NotNull;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Byte level helpers for rewriting the header block of a raw HTTP message
+ * without going through the burp helpers, which decode every header into a String
+ * and copy the body at least twice.
+ */
+public class HeaderSplicer {
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+    private static final byte[] CRLF = {CR, LF};
+
+    /**
+     * Find the offset of the blank line which terminates the header block.
+     * Both CRLF and bare LF line endings are accepted.
+     *
+     * @param message the raw HTTP message
+     * @return the offset of the first byte of the blank line, or -1 if the message has no blank line
+     */
+    public static int findHeaderBlockEnd(final @NotNull byte[] message) {
+        // the first line is the request / status line, so it can never be the blank line
+        int lineStart = nextLineStart(message, 0);
+
+        while (lineStart != -1) {
+            if (isBlankLine(message, lineStart)) return lineStart;
+
+            lineStart = nextLineStart(message, lineStart);
+        }
+
+        return -1;
+    }
+
+    /**
+     * Find the offset at which the body of the message starts, i.e. the byte after the blank line.
+     *
+     * @param message the raw HTTP message
+     * @return the body offset, or -1 if the message has no blank line
+     */
+    public static int findBodyOffset(final @NotNull byte[] message) {
+        var headerEnd = findHeaderBlockEnd(message);
+        if (headerEnd == -1) return -1;
+
+        var bodyOffset = nextLineStart(message, headerEnd);
+        return bodyOffset == -1 ? message.length : bodyOffset;
+    }
+
+    /**
+     * Find the value of the first header with the given name, the name is compared case insensitively.
+     *
+     * @param message the raw HTTP message
+     * @param name    the name of the header, without the colon
+     * @return the trimmed value of the header, or null if the message has no such header
+     */
+    public static String findHeaderValue(final @NotNull byte[] message, final @NotNull String name) {
+        int lineStart = nextLineStart(message, 0);
+
+        while (lineStart != -1 && !isBlankLine(message, lineStart)) {
+            var lineEnd = nextLineStart(message, lineStart);
+            if (lineEnd == -1) lineEnd = message.length;
+
+            var colon = lineStart + name.length();
+
+            if (colon < lineEnd && message[colon] == ':' && nameEquals(message, lineStart, name)) {
+                return new String(message, colon + 1, lineEnd - colon - 1, StandardCharsets.ISO_8859_1).trim();
+            }
+
+            lineStart = lineEnd == message.length ? -1 : lineEnd;
+        }
+
+        return null;
+    }
+
+    /**
+     * Remove every header line matched by the template, then append its header as the last header line.
+     * <p>
+     * The result is written into a single new array, and if the only matching header
+     * is already exactly equal to the template's header then the original array is returned untouched.
+     *
+     * @param message  the raw HTTP message
+     * @param template the header to add, which also identifies the lines to remove
+     * @return the rewritten message, or null if the message has no blank line terminating the headers
+     */
+    public static byte[] replaceHeader(final @NotNull byte[] message, final @NotNull HeaderTemplate template) {
+        var header = template.getLineBytes();
+
+        // pairs of [start, end) offsets of the lines to drop, including their line terminators
+        int[] removals = new int[4];
+        int removalCount = 0;
+        int removedBytes = 0;
+        boolean identicalFound = false;
+
+        int headerEnd = -1;
+        int lineStart = nextLineStart(message, 0);
+
+        while (lineStart != -1) {
+            if (isBlankLine(message, lineStart)) {
+                headerEnd = lineStart;
+                break;
+            }
+
+            var next = nextLineStart(message, lineStart);
+            var lineEnd = next == -1 ? message.length : next;
+
+            if (template.matchesLine(message, lineStart, lineEnd)) {
+                if (removalCount * 2 == removals.length) {
+                    removals = Arrays.copyOf(removals, removals.length * 2);
+                }
+
+                removals[removalCount * 2] = lineStart;
+                removals[removalCount * 2 + 1] = lineEnd;
+                removalCount++;
+                removedBytes += lineEnd - lineStart;
+
+                identicalFound |= contentEquals(message, lineStart, lineEnd, header);
+            }
+
+            lineStart = next;
+        }
+
+        if (headerEnd == -1) return null;
+
+        // the exact header is already present and there are no other lines to remove
+        if (removalCount == 1 && identicalFound) return message;
+
+        var result = new byte[message.length - removedBytes + header.length + CRLF.length];
+        int readPos = 0;
+        int writePos = 0;
+
+        for (int i = 0; i < removalCount; i++) {
+            var start = removals[i * 2];
+            var end = removals[i * 2 + 1];
+
+            System.arraycopy(message, readPos, result, writePos, start - readPos);
+            writePos += start - readPos;
+            readPos = end;
+        }
+
+        // copy the remaining headers up to the blank line
+        System.arraycopy(message, readPos, result, writePos, headerEnd - readPos);
+        writePos += headerEnd - readPos;
+
+        // add the new header
+        System.arraycopy(header, 0, result, writePos, header.length);
+        writePos += header.length;
+        System.arraycopy(CRLF, 0, result, writePos, CRLF.length);
+        writePos += CRLF.length;
+
+        // finally the blank line and the body
+        System.arraycopy(message, headerEnd, result, writePos, message.length - headerEnd);
+
+        return result;
+    }
+
+    /**
+     * Find the start of the line following the one starting at offset.
+     *
+     * @return the offset of the next line, or -1 if there isn't one
+     */
+    private static int nextLineStart(final byte[] message, int offset) {
+        for (int i = offset; i < message.length; i++) {
+            if (message[i] == LF) return i + 1;
+        }
+
+        return -1;
+    }
+
+    private static boolean isBlankLine(final byte[] message, int offset) {
+        if (offset >= message.length) return false;
+        if (message[offset] == LF) return true;
+
+        return message[offset] == CR && offset + 1 < message.length && message[offset + 1] == LF;
+    }
+
+    private static boolean nameEquals(final byte[] message, int start, final String name) {
+        for (int i = 0; i < name.length(); i++) {
+            var c = (char) (message[start + i] & 0xff);
+
+            if (Character.toLowerCase(c) != Character.toLowerCase(name.charAt(i))) return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Compare the contents of the line [start, end), without its line terminator, to expected.
+     */
+    private static boolean contentEquals(final byte[] message, int start, int end, final byte[] expected) {
+        if (end > start && message[end - 1] == LF) end--;
+        if (end > start && message[end - 1] == CR) end--;
+
+        return Arrays.equals(message, start, end, expected, 0, expected.length);
+    }
+}
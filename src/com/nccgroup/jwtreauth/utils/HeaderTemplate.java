@@ -0,0 +1,137 @@
+/*
+Copyright 2022 NCC Group
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    https://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.nccgroup.jwtreauth.utils;
+
+import javax.validation.constraints.NotNull;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The auth header line, compiled once per token change into everything needed to inject it.
+ * <p>
+ * This holds the encoded header line, ready to be copied into a request, and a matcher which
+ * recognises existing auth header lines. Header names are case insensitive, so the name is
+ * matched against a pre-lowercased copy, then any whitespace after the colon is skipped
+ * and the value must start with the value prefix.
+ * Instances are immutable and thread safe.
+ */
+public final class HeaderTemplate {
+    private final String name;
+    private final String valuePrefix;
+    private final String token;
+
+    private final String line;
+    private final byte[] lineBytes;
+    private final byte[] lowerName;
+    private final byte[] valuePrefixBytes;
+
+    private HeaderTemplate(String name, String valuePrefix, String token) {
+        this.name = name;
+        this.valuePrefix = valuePrefix;
+        this.token = token;
+
+        this.line = name + ": " + valuePrefix + token;
+        this.lineBytes = encode(line);
+        this.lowerName = encode(name);
+        for (int i = 0; i < lowerName.length; i++) lowerName[i] = toLower(lowerName[i]);
+
+        // the whitespace after the colon is skipped when matching, so it can't be part of the prefix
+        this.valuePrefixBytes = encode(valuePrefix.stripLeading());
+    }
+
+    /**
+     * @param name        the header name
+     * @param valuePrefix the text before the token in the header value, e.g. "Bearer "
+     * @param token       the token
+     * @return the compiled header
+     */
+    public static @NotNull HeaderTemplate compile(
+            final @NotNull String name,
+            final @NotNull String valuePrefix,
+            final @NotNull String token
+    ) {
+        return new HeaderTemplate(name, valuePrefix, token);
+    }
+
+    /**
+     * @return whether this template was compiled from the given values, so it can be reused
+     */
+    public boolean isFor(final @NotNull String name, final @NotNull String valuePrefix, final @NotNull String token) {
+        return this.token.equals(token) && this.name.equals(name) && this.valuePrefix.equals(valuePrefix);
+    }
+
+    /**
+     * @return the header line, without a line terminator
+     */
+    public @NotNull String getLine() {
+        return line;
+    }
+
+    /**
+     * @return the encoded header line, without a line terminator, which must not be modified
+     */
+    public @NotNull byte[] getLineBytes() {
+        return lineBytes;
+    }
+
+    /**
+     * Check whether the line [start, end) of a message is an auth header which should be replaced.
+     *
+     * @param message the raw HTTP message
+     * @param start   the offset of the first byte of the line
+     * @param end     the offset after the last byte of the line, its terminator may be included
+     * @return whether the line has our header name and its value starts with the value prefix
+     */
+    public boolean matchesLine(final @NotNull byte[] message, int start, int end) {
+        var colon = start + lowerName.length;
+        if (colon >= end || message[colon] != ':') return false;
+
+        for (int i = 0; i < lowerName.length; i++) {
+            if (toLower(message[start + i]) != lowerName[i]) return false;
+        }
+
+        var valueStart = colon + 1;
+        while (valueStart < end && (message[valueStart] == ' ' || message[valueStart] == '\t')) valueStart++;
+
+        if (end - valueStart < valuePrefixBytes.length) return false;
+
+        for (int i = 0; i < valuePrefixBytes.length; i++) {
+            if (message[valueStart + i] != valuePrefixBytes[i]) return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Check whether a decoded header line is an auth header which should be replaced.
+     *
+     * @param headerLine the header line, without a line terminator
+     * @return whether the line has our header name and its value starts with the value prefix
+     */
+    public boolean matchesLine(final @NotNull String headerLine) {
+        var bytes = encode(headerLine);
+        return matchesLine(bytes, 0, bytes.length);
+    }
+
+    private static byte toLower(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    /**
+     * Encode a header the same way the burp helpers do, one byte per char.
+     */
+    private static byte[] encode(String s) {
+        return s.getBytes(StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,448 @@
+/*
+Copyright 2022 NCC Group
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    https://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.nccgroup.jwtreauth.utils;
+
+import javax.validation.constraints.NotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Extracts a single value from a JSON document using a simple JSON path, e.g. "$.data.auth.access_token".
+ * <p>
+ * The document is scanned directly from its bytes, without building a tree: members and elements which aren't
+ * on the path are skipped over, and the scan stops as soon as the target value has been read.
+ * This means the rest of the document is never validated, so a malformed document may still yield a value.
+ * <p>
+ * Supported path syntax is the root "$", followed by any number of ".name", ["name"], ['name'] or [index] steps.
+ * Instances are immutable and thread safe.
+ */
+public final class JsonPathExtractor {
+    private final String path;
+    // each step is either a String member name or an Integer array index
+    private final Object[] steps;
+
+    private JsonPathExtractor(String path, Object[] steps) {
+        this.path = path;
+        this.steps = steps;
+    }
+
+    /**
+     * Parse a JSON path.
+     *
+     * @param path the path to parse
+     * @return the compiled path
+     * @throws IllegalArgumentException if the path is not valid
+     */
+    public static @NotNull JsonPathExtractor compile(final @NotNull String path) {
+        var p = path.trim();
+        if (!p.startsWith("$")) {
+            throw new IllegalArgumentException("JSON path must start with \"$\": " + path);
+        }
+
+        List<Object> steps = new ArrayList<>();
+        int i = 1;
+
+        while (i < p.length()) {
+            var c = p.charAt(i);
+
+            if (c == '.') {
+                int start = ++i;
+                while (i < p.length() && p.charAt(i) != '.' && p.charAt(i) != '[') i++;
+
+                if (i == start) {
+                    throw new IllegalArgumentException("Empty member name at index " + start + ": " + path);
+                }
+
+                steps.add(p.substring(start, i));
+            } else if (c == '[') {
+                var close = p.indexOf(']', i);
+                if (close == -1) {
+                    throw new IllegalArgumentException("Unterminated \"[\" at index " + i + ": " + path);
+                }
+
+                var inner = p.substring(i + 1, close).trim();
+
+                if (inner.length() >= 2
+                        && (inner.charAt(0) == '\'' || inner.charAt(0) == '"')
+                        && inner.charAt(inner.length() - 1) == inner.charAt(0)) {
+                    steps.add(inner.substring(1, inner.length() - 1));
+                } else {
+                    try {
+                        var index = Integer.parseInt(inner);
+                        if (index < 0) throw new NumberFormatException();
+
+                        steps.add(index);
+                    } catch (NumberFormatException _e) {
+                        throw new IllegalArgumentException("Invalid index \"" + inner + "\" at index " + i + ": " + path);
+                    }
+                }
+
+                i = close + 1;
+            } else {
+                throw new IllegalArgumentException("Unexpected \"" + c + "\" at index " + i + ": " + path);
+            }
+        }
+
+        return new JsonPathExtractor(path, steps.toArray());
+    }
+
+    /**
+     * Find the value at the path in a JSON document.
+     * <p>
+     * Strings are returned unescaped, and any other value is returned as its raw JSON text.
+     *
+     * @param json   the bytes holding the document, in UTF-8
+     * @param offset the index of the first byte of the document
+     * @param length the number of bytes to scan
+     * @return the value, or null if the path doesn't exist or the document can't be parsed
+     */
+    public String extract(final @NotNull byte[] json, int offset, int length) {
+        var scanner = new Scanner(json, offset, Math.min(json.length, offset + length));
+
+        try {
+            return scanner.find(steps);
+        } catch (MalformedJsonException _e) {
+            return null;
+        }
+    }
+
+    /**
+     * Find where the value at the path is in a JSON document, so it can be replaced in place.
+     *
+     * @param json   the bytes holding the document, in UTF-8
+     * @param offset the index of the first byte of the document
+     * @param length the number of bytes to scan
+     * @return the [start, end) offsets of the raw value, including the quotes of a string,
+     * or null if the path doesn't exist or the document can't be parsed
+     */
+    public int[] locate(final @NotNull byte[] json, int offset, int length) {
+        var scanner = new Scanner(json, offset, Math.min(json.length, offset + length));
+
+        try {
+            return scanner.locate(steps);
+        } catch (MalformedJsonException _e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return path;
+    }
+
+    /**
+     * Thrown when the scanner hits something which isn't valid JSON, or runs out of input.
+     */
+    private static final class MalformedJsonException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        private MalformedJsonException() {
+            // the stack trace is never used, so don't pay for it
+            super(null, null, false, false);
+        }
+    }
+
+    /**
+     * Single use cursor over the bytes of a document.
+     */
+    private static final class Scanner {
+        private final byte[] bytes;
+        private final int end;
+        private int pos;
+
+        private Scanner(byte[] bytes, int start, int end) {
+            this.bytes = bytes;
+            this.pos = start;
+            this.end = end;
+        }
+
+        private String find(Object[] steps) throws MalformedJsonException {
+            return seek(steps) ? readValue() : null;
+        }
+
+        private int[] locate(Object[] steps) throws MalformedJsonException {
+            if (!seek(steps)) return null;
+
+            var start = pos;
+            skipValue();
+
+            return new int[]{start, pos};
+        }
+
+        /**
+         * Move to the value at the end of the path, leaving the cursor on its first byte.
+         *
+         * @return false if the path doesn't exist
+         */
+        private boolean seek(Object[] steps) throws MalformedJsonException {
+            for (var step : steps) {
+                var found = step instanceof String
+                        ? seekMember((String) step)
+                        : seekElement((Integer) step);
+
+                if (!found) return false;
+            }
+
+            // skip any whitespace before the value
+            peek();
+            return true;
+        }
+
+        /**
+         * Move to the value of the named member of the object at the cursor.
+         *
+         * @return false if the value isn't an object or doesn't have the member
+         */
+        private boolean seekMember(String name) throws MalformedJsonException {
+            if (peek() != '{') return false;
+            pos++;
+
+            if (peek() == '}') return false;
+
+            while (true) {
+                if (peek() != '"') throw new MalformedJsonException();
+
+                var matches = readString().equals(name);
+
+                if (peek() != ':') throw new MalformedJsonException();
+                pos++;
+
+                if (matches) return true;
+
+                skipValue();
+
+                var c = peek();
+                pos++;
+
+                if (c == '}') return false;
+                if (c != ',') throw new MalformedJsonException();
+            }
+        }
+
+        /**
+         * Move to the element at the given index of the array at the cursor.
+         *
+         * @return false if the value isn't an array or is too short
+         */
+        private boolean seekElement(int index) throws MalformedJsonException {
+            if (peek() != '[') return false;
+            pos++;
+
+            if (peek() == ']') return false;
+
+            for (int i = 0; ; i++) {
+                if (i == index) return true;
+
+                skipValue();
+
+                var c = peek();
+                pos++;
+
+                if (c == ']') return false;
+                if (c != ',') throw new MalformedJsonException();
+            }
+        }
+
+        /**
+         * Read the value at the cursor, unescaping it if it is a string.
+         */
+        private String readValue() throws MalformedJsonException {
+            if (peek() == '"') return readString();
+
+            var start = pos;
+            skipValue();
+
+            return new String(bytes, start, pos - start, StandardCharsets.UTF_8).trim();
+        }
+
+        /**
+         * Skip over the value at the cursor, without decoding any of it.
+         */
+        private void skipValue() throws MalformedJsonException {
+            var c = peek();
+
+            if (c == '"') {
+                skipString();
+            } else if (c == '{' || c == '[') {
+                skipContainer();
+            } else {
+                // a number or literal runs until the next delimiter
+                var start = pos;
+                while (pos < end && !isDelimiter(bytes[pos])) pos++;
+
+                if (pos == start) throw new MalformedJsonException();
+            }
+        }
+
+        /**
+         * Skip over an object or array, only strings need care as they may contain brackets.
+         */
+        private void skipContainer() throws MalformedJsonException {
+            int depth = 0;
+
+            while (pos < end) {
+                var b = bytes[pos];
+
+                if (b == '"') {
+                    skipString();
+                    continue;
+                }
+
+                pos++;
+
+                if (b == '{' || b == '[') {
+                    depth++;
+                } else if (b == '}' || b == ']') {
+                    if (--depth == 0) return;
+                }
+            }
+
+            throw new MalformedJsonException();
+        }
+
+        private void skipString() throws MalformedJsonException {
+            pos++;
+
+            while (pos < end) {
+                var b = bytes[pos++];
+
+                if (b == '\\') {
+                    pos++;
+                } else if (b == '"') {
+                    return;
+                }
+            }
+
+            throw new MalformedJsonException();
+        }
+
+        /**
+         * Read the string at the cursor, the common case of a string with no escapes is decoded directly.
+         */
+        private String readString() throws MalformedJsonException {
+            var start = ++pos;
+
+            while (pos < end) {
+                var b = bytes[pos];
+
+                if (b == '"') {
+                    pos++;
+                    return new String(bytes, start, pos - 1 - start, StandardCharsets.UTF_8);
+                }
+
+                if (b == '\\') {
+                    pos = start;
+                    return readEscapedString();
+                }
+
+                pos++;
+            }
+
+            throw new MalformedJsonException();
+        }
+
+        private String readEscapedString() throws MalformedJsonException {
+            var out = new ByteArrayOutputStream();
+
+            while (pos < end) {
+                var b = bytes[pos++];
+
+                if (b == '"') return out.toString(StandardCharsets.UTF_8);
+
+                if (b != '\\') {
+                    out.write(b);
+                    continue;
+                }
+
+                if (pos >= end) break;
+
+                var escape = bytes[pos++];
+                switch (escape) {
+                    case 'b':
+                        out.write('\b');
+                        break;
+                    case 'f':
+                        out.write('\f');
+                        break;
+                    case 'n':
+                        out.write('\n');
+                        break;
+                    case 'r':
+                        out.write('\r');
+                        break;
+                    case 't':
+                        out.write('\t');
+                        break;
+                    case 'u':
+                        if (pos + 4 > end) throw new MalformedJsonException();
+
+                        final int codeUnit;
+                        try {
+                            codeUnit = Integer.parseInt(new String(bytes, pos, 4, StandardCharsets.ISO_8859_1), 16);
+                        } catch (NumberFormatException _e) {
+                            throw new MalformedJsonException();
+                        }
+
+                        pos += 4;
+
+                        // surrogate pairs are written one half at a time, which the UTF-8 encoder
+                        // can't join back together, so combine them here
+                        var chars = String.valueOf((char) codeUnit);
+                        if (Character.isHighSurrogate((char) codeUnit)
+                                && pos + 6 <= end && bytes[pos] == '\\' && bytes[pos + 1] == 'u') {
+                            try {
+                                var low = Integer.parseInt(new String(bytes, pos + 2, 4, StandardCharsets.ISO_8859_1), 16);
+                                if (Character.isLowSurrogate((char) low)) {
+                                    chars += (char) low;
+                                    pos += 6;
+                                }
+                            } catch (NumberFormatException _e) {
+                                throw new MalformedJsonException();
+                            }
+                        }
+
+                        out.writeBytes(chars.getBytes(StandardCharsets.UTF_8));
+                        break;
+                    default:
+                        // \" \\ and \/ are the character itself
+                        out.write(escape);
+                        break;
+                }
+            }
+
+            throw new MalformedJsonException();
+        }
+
+        /**
+         * Skip whitespace and return the next byte without consuming it.
+         */
+        private byte peek() throws MalformedJsonException {
+            while (pos < end) {
+                var b = bytes[pos];
+                if (b != ' ' && b != '\t' && b != '\n' && b != '\r') return b;
+
+                pos++;
+            }
+
+            throw new MalformedJsonException();
+        }
+
+        private static boolean isDelimiter(byte b) {
+            return b == ',' || b == '}' || b == ']' || b == ' ' || b == '\t' || b == '\n' || b == '\r';
+        }
+    }
+}
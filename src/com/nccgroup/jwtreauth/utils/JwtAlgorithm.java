@@ -0,0 +1,56 @@
+/*
+Copyright 2022 NCC Group
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    https://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.nccgroup.jwtreauth.utils;
+
+/**
+ * Enum describing the JWS algorithms which can be used to sign locally minted tokens
+ */
+public enum JwtAlgorithm {
+    HS256("HmacSHA256", null),
+    HS384("HmacSHA384", null),
+    HS512("HmacSHA512", null),
+    RS256("SHA256withRSA", "RSA"),
+    RS384("SHA384withRSA", "RSA"),
+    RS512("SHA512withRSA", "RSA"),
+    // the P1363 format is the fixed length r || s which JWS uses, rather than the DER default
+    ES256("SHA256withECDSAinP1363Format", "EC"),
+    ES384("SHA384withECDSAinP1363Format", "EC"),
+    ES512("SHA512withECDSAinP1363Format", "EC");
+
+    private final String jcaName;
+    private final String keyAlgorithm;
+
+    JwtAlgorithm(String jcaName, String keyAlgorithm) {
+        this.jcaName = jcaName;
+        this.keyAlgorithm = keyAlgorithm;
+    }
+
+    /**
+     * @return the name of the Mac or Signature algorithm
+     */
+    String getJcaName() {
+        return jcaName;
+    }
+
+    /**
+     * @return the KeyFactory algorithm of the private key, or null for HMAC algorithms which use a secret
+     */
+    String getKeyAlgorithm() {
+        return keyAlgorithm;
+    }
+
+    boolean isHmac() {
+        return keyAlgorithm == null;
+    }
+}
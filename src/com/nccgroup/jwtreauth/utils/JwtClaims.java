@@ -0,0 +1,97 @@
+/*
+Copyright 2022 NCC Group
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    https://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.nccgroup.jwtreauth.utils;
+
+import javax.validation.constraints.NotNull;
+
+import java.time.Instant;
+import java.util.Base64;
+import java.util.Optional;
+
+/**
+ * The time claims of a JWT, read from its payload without verifying the signature.
+ * <p>
+ * These are only used to decide when to refresh the token, so an unverified value is fine,
+ * the worst a bad value can do is cause a refresh at the wrong time.
+ */
+public final class JwtClaims {
+    private static final JsonPathExtractor EXP = JsonPathExtractor.compile("$.exp");
+    private static final JsonPathExtractor IAT = JsonPathExtractor.compile("$.iat");
+
+    private final Optional<Instant> expiresAt;
+    private final Optional<Instant> issuedAt;
+
+    private JwtClaims(Optional<Instant> expiresAt, Optional<Instant> issuedAt) {
+        this.expiresAt = expiresAt;
+        this.issuedAt = issuedAt;
+    }
+
+    /**
+     * Decode the claims of a signed JWT in compact form, i.e. header.payload.signature.
+     *
+     * @param token the token to decode
+     * @return the claims, or empty if the token isn't a JWT with a JSON payload
+     */
+    public static @NotNull Optional<JwtClaims> parse(final @NotNull String token) {
+        var firstDot = token.indexOf('.');
+        if (firstDot == -1) return Optional.empty();
+
+        var secondDot = token.indexOf('.', firstDot + 1);
+
+        // encrypted tokens have five parts, and their payload can't be read
+        if (secondDot == -1 || token.indexOf('.', secondDot + 1) != -1) return Optional.empty();
+
+        final byte[] payload;
+        try {
+            payload = Base64.getUrlDecoder().decode(token.substring(firstDot + 1, secondDot).trim());
+        } catch (IllegalArgumentException _e) {
+            return Optional.empty();
+        }
+
+        return Optional.of(new JwtClaims(
+                numericDate(EXP.extract(payload, 0, payload.length)),
+                numericDate(IAT.extract(payload, 0, payload.length))
+        ));
+    }
+
+    /**
+     * Helper method to parse a NumericDate, which is a possibly fractional number of seconds since the epoch.
+     */
+    private static Optional<Instant> numericDate(String value) {
+        if (value == null) return Optional.empty();
+
+        try {
+            var seconds = Double.parseDouble(value);
+            if (!Double.isFinite(seconds)) return Optional.empty();
+
+            return Optional.of(Instant.ofEpochMilli((long) (seconds * 1000)));
+        } catch (NumberFormatException _e) {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * @return the time given by the exp claim, according to the issuer's clock
+     */
+    public @NotNull Optional<Instant> getExpiresAt() {
+        return expiresAt;
+    }
+
+    /**
+     * @return the time given by the iat claim, according to the issuer's clock
+     */
+    public @NotNull Optional<Instant> getIssuedAt() {
+        return issuedAt;
+    }
+}
@@ -0,0 +1,245 @@
+/*
+Copyright 2022 NCC Group
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    https://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.nccgroup.jwtreauth.utils;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.validation.constraints.NotNull;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.interfaces.ECPrivateKey;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.Optional;
+import java.util.UUID;
+
+/**
+ * Mints signed JWTs locally from a claims template, for environments where the signing key is known.
+ * <p>
+ * The key, the encoded header and the template are all prepared once when the settings change,
+ * and each thread which mints a token keeps its own initialised Mac or Signature, so minting a token
+ * is just building the payload and signing it.
+ * <p>
+ * The iat, exp and jti claims are added to every token, unless the template sets them itself.
+ * Settings which can't be used, e.g. a key which doesn't parse, don't throw as they may be
+ * in the middle of being edited, instead the minter reports the error and refuses to mint.
+ * Instances are immutable and thread safe.
+ */
+public final class JwtMinter {
+    private static final Base64.Encoder BASE64URL = Base64.getUrlEncoder().withoutPadding();
+
+    private final JwtAlgorithm algorithm;
+    private final String key;
+    private final String claimsTemplate;
+    private final Duration lifetime;
+
+    // derived from the fields above, error is null if the rest are usable
+    private final String error;
+    private final Key signingKey;
+    private final String headerSegment;
+    private final String templateClaims;
+    private final boolean addIssuedAt;
+    private final boolean addExpiresAt;
+    private final boolean addId;
+    private final ThreadLocal<Object> signers;
+
+    private JwtMinter(JwtAlgorithm algorithm, String key, String claimsTemplate, Duration lifetime) {
+        this.algorithm = algorithm;
+        this.key = key;
+        this.claimsTemplate = claimsTemplate;
+        this.lifetime = lifetime;
+
+        this.headerSegment = encodeSegment("{\"alg\":\"" + algorithm.name() + "\",\"typ\":\"JWT\"}") + ".";
+
+        String error = null;
+        Key signingKey = null;
+        try {
+            signingKey = parseKey(algorithm, key);
+            // check the key works with the algorithm now, rather than on the first mint
+            newSigner(algorithm, signingKey);
+        } catch (IllegalArgumentException | GeneralSecurityException e) {
+            error = "Invalid signing key: " + e.getMessage();
+        }
+
+        var template = claimsTemplate.trim();
+        if (!template.startsWith("{") || !template.endsWith("}")) {
+            error = "Claims template must be a JSON object";
+            template = "{}";
+        }
+
+        var templateBytes = template.getBytes(StandardCharsets.UTF_8);
+
+        this.error = error;
+        this.signingKey = signingKey;
+        this.templateClaims = template.substring(1, template.length() - 1).trim();
+        this.addIssuedAt = !hasClaim(templateBytes, "iat");
+        this.addExpiresAt = !hasClaim(templateBytes, "exp");
+        this.addId = !hasClaim(templateBytes, "jti");
+
+        final var finalKey = signingKey;
+        this.signers = ThreadLocal.withInitial(() -> {
+            try {
+                return newSigner(algorithm, finalKey);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    /**
+     * @param algorithm      the algorithm to sign with
+     * @param key            an HMAC secret, which is base64 decoded if it starts with "base64:",
+     *                       or a PKCS#8 PEM private key for the RSA and EC algorithms
+     * @param claimsTemplate a JSON object holding the claims to put in every token
+     * @param lifetime       the time between the iat and exp claims
+     */
+    public static @NotNull JwtMinter of(
+            @NotNull JwtAlgorithm algorithm,
+            @NotNull String key,
+            @NotNull String claimsTemplate,
+            @NotNull Duration lifetime
+    ) {
+        return new JwtMinter(algorithm, key, claimsTemplate, lifetime);
+    }
+
+    public JwtMinter withAlgorithm(@NotNull JwtAlgorithm newAlgorithm) {
+        return new JwtMinter(newAlgorithm, key, claimsTemplate, lifetime);
+    }
+
+    public JwtMinter withKey(@NotNull String newKey) {
+        return new JwtMinter(algorithm, newKey, claimsTemplate, lifetime);
+    }
+
+    public JwtMinter withClaimsTemplate(@NotNull String newClaimsTemplate) {
+        return new JwtMinter(algorithm, key, newClaimsTemplate, lifetime);
+    }
+
+    public JwtMinter withLifetime(@NotNull Duration newLifetime) {
+        return new JwtMinter(algorithm, key, claimsTemplate, newLifetime);
+    }
+
+    /**
+     * @return why tokens can't be minted with the current settings, or empty if they can
+     */
+    public @NotNull Optional<String> getError() {
+        return Optional.ofNullable(error);
+    }
+
+    /**
+     * Mint a new token.
+     *
+     * @param now the time to issue the token at
+     * @return the signed token in compact form
+     * @throws IllegalStateException if the settings can't be used, see getError
+     */
+    public @NotNull String mint(@NotNull Instant now) {
+        if (error != null) throw new IllegalStateException(error);
+
+        var payload = new StringBuilder(templateClaims.length() + 96).append('{');
+
+        if (addIssuedAt) payload.append("\"iat\":").append(now.getEpochSecond()).append(',');
+        if (addExpiresAt) payload.append("\"exp\":").append(now.plus(lifetime).getEpochSecond()).append(',');
+        if (addId) payload.append("\"jti\":\"").append(UUID.randomUUID()).append("\",");
+
+        if (templateClaims.isEmpty()) {
+            // drop the trailing comma, if anything was added
+            if (payload.length() > 1) payload.setLength(payload.length() - 1);
+        } else {
+            payload.append(templateClaims);
+        }
+
+        var signingInput = headerSegment + encodeSegment(payload.append('}').toString());
+        var signature = sign(signingInput.getBytes(StandardCharsets.US_ASCII));
+
+        return signingInput + "." + BASE64URL.encodeToString(signature);
+    }
+
+    private byte[] sign(byte[] input) {
+        var signer = signers.get();
+
+        try {
+            if (signer instanceof Mac) return ((Mac) signer).doFinal(input);
+
+            // a Signature goes back to its initialised state after signing, so it can be reused
+            var signature = (Signature) signer;
+            signature.update(input);
+            return signature.sign();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Object newSigner(JwtAlgorithm algorithm, Key key) throws GeneralSecurityException {
+        if (algorithm.isHmac()) {
+            var mac = Mac.getInstance(algorithm.getJcaName());
+            mac.init(key);
+            return mac;
+        }
+
+        var signature = Signature.getInstance(algorithm.getJcaName());
+        signature.initSign((PrivateKey) key);
+        return signature;
+    }
+
+    private static Key parseKey(JwtAlgorithm algorithm, String key) throws GeneralSecurityException {
+        if (key.isEmpty()) throw new IllegalArgumentException("no key set");
+
+        if (algorithm.isHmac()) {
+            var secret = key.startsWith("base64:")
+                    ? Base64.getDecoder().decode(key.substring("base64:".length()).trim())
+                    : key.getBytes(StandardCharsets.UTF_8);
+
+            return new SecretKeySpec(secret, algorithm.getJcaName());
+        }
+
+        if (key.contains("BEGIN RSA PRIVATE KEY") || key.contains("BEGIN EC PRIVATE KEY")) {
+            throw new IllegalArgumentException("the key must be PKCS#8, convert it with \"openssl pkcs8 -topk8 -nocrypt\"");
+        }
+
+        // pasting into a text field drops the line breaks, so don't rely on them
+        var base64 = key
+                .replaceAll("-----(BEGIN|END) PRIVATE KEY-----", "")
+                .replaceAll("\\s", "");
+
+        var spec = new PKCS8EncodedKeySpec(Base64.getDecoder().decode(base64));
+        var privateKey = KeyFactory.getInstance(algorithm.getKeyAlgorithm()).generatePrivate(spec);
+
+        // each ES algorithm is tied to a curve, and the signature length depends on it
+        if (privateKey instanceof ECPrivateKey) {
+            var fieldSize = ((ECPrivateKey) privateKey).getParams().getCurve().getField().getFieldSize();
+            var expected = algorithm == JwtAlgorithm.ES256 ? 256 : algorithm == JwtAlgorithm.ES384 ? 384 : 521;
+
+            if (fieldSize != expected) {
+                throw new IllegalArgumentException(algorithm + " needs a " + expected + " bit curve, not " + fieldSize);
+            }
+        }
+
+        return privateKey;
+    }
+
+    private static boolean hasClaim(byte[] template, String name) {
+        return JsonPathExtractor.compile("$." + name).extract(template, 0, template.length) != null;
+    }
+
+    private static String encodeSegment(String json) {
+        return BASE64URL.encodeToString(json.getBytes(StandardCharsets.UTF_8));
+    }
+}
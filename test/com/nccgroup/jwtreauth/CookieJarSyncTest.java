@@ -0,0 +1,189 @@
+/*
+Copyright 2022 NCC Group
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    https://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.nccgroup.jwtreauth;
+
+import burp.IBurpExtenderCallbacks;
+import burp.ICookie;
+import com.nccgroup.jwtreauth.ui.scope.ScopeController;
+import com.nccgroup.jwtreauth.utils.JsonPathExtractor;
+import com.nccgroup.jwtreauth.utils.JwtAlgorithm;
+import com.nccgroup.jwtreauth.utils.JwtMinter;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.swing.table.AbstractTableModel;
+import java.lang.reflect.Proxy;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CookieJarSyncTest {
+    private static final long EXPIRES_AT = 1_700_000_000_000L;
+
+    // the cookies passed to burp, in order
+    private final List<ICookie> updates = new ArrayList<>();
+    private ScopeController scopeController;
+    private CookieJarSync cookieJarSync;
+
+    private static URL url(String url) {
+        try {
+            return new URL(url);
+        } catch (MalformedURLException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    @BeforeEach
+    void setUp() {
+        var callbacks = (IBurpExtenderCallbacks) Proxy.newProxyInstance(
+                IBurpExtenderCallbacks.class.getClassLoader(),
+                new Class<?>[]{IBurpExtenderCallbacks.class},
+                (proxy, method, args) -> {
+                    if (!method.getName().equals("updateCookieJar")) throw new UnsupportedOperationException(method.getName());
+
+                    updates.add((ICookie) args[0]);
+                    return null;
+                });
+
+        scopeController = new ScopeController();
+        scopeController.addToScope(url("https://api.example.com/"));
+        scopeController.addToScope(url("https://www.example.org/"));
+
+        cookieJarSync = new CookieJarSync(callbacks, scopeController);
+    }
+
+    private static AuthState state(TokenDelivery delivery) {
+        var authorizeURL = url("https://auth.example.com/token");
+
+        return AuthState.initial(
+                authorizeURL,
+                "Authorization",
+                "Bearer ",
+                TokenExtractionMode.Regex,
+                Pattern.compile(TokenListener.DEFAULT_TOKEN_REGEX),
+                JsonPathExtractor.compile("$.access_token"),
+                1024,
+                Duration.ZERO,
+                Duration.ZERO,
+                TokenSource.AuthRequest,
+                OAuthGrant.of(authorizeURL, "", "", ""),
+                JwtMinter.of(JwtAlgorithm.HS256, "", "{}", Duration.ofMinutes(5)),
+                FailureSignature.parse("", ""),
+                false,
+                delivery,
+                "session",
+                true
+        );
+    }
+
+    private static AuthState withToken(String token) {
+        return state(TokenDelivery.CookieJar).withToken(token, false).withTokenExpiry(EXPIRES_AT);
+    }
+
+    /**
+     * Helper method to describe the cookies passed to burp since the last call.
+     */
+    private Set<String> takeUpdates() {
+        var described = updates.stream()
+                .map(c -> c.getDomain() + " " + c.getPath() + " " + c.getName() + "=" + c.getValue())
+                .collect(Collectors.toSet());
+        updates.clear();
+
+        return described;
+    }
+
+    /**
+     * Helper method to untick the Active column of a scope row, like the user would.
+     */
+    private void removeFromScope(String url) {
+        var model = (AbstractTableModel) scopeController.getScopeTable().getModel();
+        var activeCol = model.findColumn("Active");
+        var urlCol = model.findColumn("URL");
+
+        for (int row = 0; row < model.getRowCount(); row++) {
+            if (url.equals(model.getValueAt(row, urlCol))) {
+                model.setValueAt(false, row, activeCol);
+            }
+        }
+    }
+
+    @Test
+    void setsTheCookieOnEveryDomainInScope() {
+        assertEquals(2, cookieJarSync.sync(withToken("abc")));
+
+        assertEquals(new Date(EXPIRES_AT), updates.get(0).getExpiration());
+        assertEquals(Set.of("api.example.com / session=abc", "www.example.org / session=abc"), takeUpdates());
+    }
+
+    @Test
+    void syncingAnUnchangedStateDoesNothing() {
+        cookieJarSync.sync(withToken("abc"));
+        updates.clear();
+
+        assertEquals(0, cookieJarSync.sync(withToken("abc")));
+        assertTrue(updates.isEmpty());
+    }
+
+    @Test
+    void updatesTheCookiesWhenTheTokenChanges() {
+        cookieJarSync.sync(withToken("abc"));
+        updates.clear();
+
+        assertEquals(2, cookieJarSync.sync(withToken("def")));
+        assertEquals(Set.of("api.example.com / session=def", "www.example.org / session=def"), takeUpdates());
+    }
+
+    @Test
+    void removesCookiesUnderAnOldName() {
+        cookieJarSync.sync(withToken("abc"));
+        updates.clear();
+
+        assertEquals(4, cookieJarSync.sync(withToken("abc").withCookieName("auth")));
+        assertEquals(Set.of(
+                "api.example.com / session=null", "www.example.org / session=null",
+                "api.example.com / auth=abc", "www.example.org / auth=abc"
+        ), takeUpdates());
+    }
+
+    @Test
+    void removesCookiesFromDomainsWhichLeaveTheScope() {
+        cookieJarSync.sync(withToken("abc"));
+        updates.clear();
+
+        removeFromScope("https://www.example.org/");
+
+        assertEquals(1, cookieJarSync.sync(withToken("abc")));
+        assertEquals(Set.of("www.example.org / session=null"), takeUpdates());
+    }
+
+    @Test
+    void removesTheCookiesWhenTheyShouldntBeDelivered() {
+        cookieJarSync.sync(withToken("abc"));
+        updates.clear();
+
+        assertEquals(2, cookieJarSync.sync(withToken("abc").withListening(false)));
+        assertEquals(Set.of("api.example.com / session=null", "www.example.org / session=null"), takeUpdates());
+
+        assertEquals(0, cookieJarSync.sync(withToken("abc").withTokenDelivery(TokenDelivery.Header)));
+        assertEquals(0, cookieJarSync.sync(state(TokenDelivery.CookieJar)));
+    }
+}
@@ -0,0 +1,88 @@
+/*
+Copyright 2022 NCC Group
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    https://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.nccgroup.jwtreauth;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FailureSignatureTest {
+    private static byte[] response(String status, String body) {
+        return ("HTTP/1.1 " + status + "\r\nContent-Type: application/json\r\n\r\n" + body).getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    @Test
+    void matchesListedStatuses() {
+        var signature = FailureSignature.parse(" 401, 403,401 ", "");
+
+        assertTrue(signature.matches(response("401 Unauthorized", "")));
+        assertTrue(signature.matches(response("403 Forbidden", "")));
+        assertFalse(signature.matches(response("200 OK", "")));
+    }
+
+    @Test
+    void matchesTheBodyPattern() {
+        var signature = FailureSignature.parse("", "invalid_token");
+
+        assertTrue(signature.matches(response("400 Bad Request", "{\"error\": \"invalid_token\"}")));
+        assertFalse(signature.matches(response("400 Bad Request", "{\"error\": \"invalid_request\"}")));
+        // only the body is searched
+        assertFalse(signature.matches(("HTTP/1.1 200 OK\r\nX-Error: invalid_token\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1)));
+    }
+
+    @Test
+    void theBodyPatternNarrowsTheStatuses() {
+        var signature = FailureSignature.parse("401, 403", "invalid_token");
+
+        assertTrue(signature.matches(response("401 Unauthorized", "{\"error\": \"invalid_token\"}")));
+        assertTrue(signature.matches(response("403 Forbidden", "{\"error\": \"invalid_token\"}")));
+        // a 403 for a missing permission doesn't mean the token was rejected
+        assertFalse(signature.matches(response("403 Forbidden", "{\"error\": \"insufficient_scope\"}")));
+        assertFalse(signature.matches(response("200 OK", "invalid_token")));
+        assertFalse(signature.matches(response("200 OK", "")));
+    }
+
+    @Test
+    void matchesNothingWhenBlank() {
+        var signature = FailureSignature.parse("", "");
+
+        assertFalse(signature.matches(response("401 Unauthorized", "invalid_token")));
+    }
+
+    @Test
+    void ignoresMalformedResponses() {
+        var signature = FailureSignature.parse("401", "");
+
+        assertFalse(signature.matches(new byte[0]));
+        assertFalse(signature.matches("HTTP/1.1".getBytes(StandardCharsets.ISO_8859_1)));
+        assertFalse(signature.matches("HTTP/1.1 4x1 Unauthorized\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1)));
+    }
+
+    @Test
+    void isOnlyEnabledWithAStatusOrPattern() {
+        assertFalse(FailureSignature.parse(" , ", " ").isEnabled());
+        assertTrue(FailureSignature.parse("401", "").isEnabled());
+        assertTrue(FailureSignature.parse("", "invalid").isEnabled());
+        assertFalse(FailureSignature.parse("401", "").withStatuses("").isEnabled());
+        assertTrue(FailureSignature.parse("", "").withBodyPattern("invalid").isEnabled());
+    }
+
+    @Test
+    void rejectsInvalidSettings() {
+        assertThrows(IllegalArgumentException.class, () -> FailureSignature.parse("40l", ""));
+        assertThrows(IllegalArgumentException.class, () -> FailureSignature.parse("", "(unclosed"));
+    }
+}
@@ -0,0 +1,107 @@
+/*
+Copyright 2022 NCC Group
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    https://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.nccgroup.jwtreauth;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OAuthGrantTest {
+    private static URL url(String url) {
+        try {
+            return new URL(url);
+        } catch (MalformedURLException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    private static String text(byte[] request) {
+        return new String(request, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Helper method to check the Content-Length header matches the body, and return the body.
+     */
+    private static String body(String request) {
+        var bodyStart = request.indexOf("\r\n\r\n") + 4;
+        var body = request.substring(bodyStart);
+
+        assertTrue(request.contains("\r\nContent-Length: " + body.length() + "\r\n"), request);
+        return body;
+    }
+
+    @Test
+    void buildsTheClientCredentialsRequest() {
+        var grant = OAuthGrant.of(url("https://auth.example.com/oauth/token?tenant=a"), "client", "s&cret", "read write");
+        var request = text(grant.clientCredentialsRequest());
+
+        assertTrue(request.startsWith("POST /oauth/token?tenant=a HTTP/1.1\r\nHost: auth.example.com\r\n"), request);
+        assertTrue(request.contains("\r\nContent-Type: application/x-www-form-urlencoded\r\n"), request);
+        assertEquals("grant_type=client_credentials&client_id=client&client_secret=s%26cret&scope=read+write", body(request));
+    }
+
+    @Test
+    void leavesOutBlankParameters() {
+        var grant = OAuthGrant.of(url("https://auth.example.com/token"), "client", "", " ");
+
+        assertEquals("grant_type=client_credentials&client_id=client", body(text(grant.clientCredentialsRequest())));
+    }
+
+    @Test
+    void appendsTheRefreshToken() {
+        var grant = OAuthGrant.of(url("https://auth.example.com/token"), "client", "secret", "");
+
+        assertEquals(
+                "grant_type=refresh_token&client_id=client&client_secret=secret&refresh_token=a%2Bb%3D",
+                body(text(grant.refreshTokenRequest("a+b=")))
+        );
+    }
+
+    @Test
+    void includesNonDefaultPortsInTheHost() {
+        var grant = OAuthGrant.of(url("http://auth.example.com:8080"), "client", "", "");
+        var request = text(grant.clientCredentialsRequest());
+
+        assertTrue(request.startsWith("POST / HTTP/1.1\r\nHost: auth.example.com:8080\r\n"), request);
+        assertEquals("http", grant.getService().getProtocol());
+        assertEquals("auth.example.com", grant.getService().getHost());
+        assertEquals(8080, grant.getService().getPort());
+        assertEquals(443, OAuthGrant.of(url("https://auth.example.com/"), "", "", "").getService().getPort());
+    }
+
+    @Test
+    void handsOutCopiesOfTheTemplate() {
+        var grant = OAuthGrant.of(url("https://auth.example.com/token"), "client", "", "");
+
+        grant.clientCredentialsRequest()[0] = 'X';
+        assertTrue(text(grant.clientCredentialsRequest()).startsWith("POST "));
+    }
+
+    @Test
+    void copiesWithNewSettingsRebuildTheRequests() {
+        var grant = OAuthGrant.of(url("https://auth.example.com/token"), "client", "", "")
+                .withTokenEndpoint(url("https://other.example.com/token"))
+                .withClientId("other")
+                .withClientSecret("secret")
+                .withScope("read");
+        var request = text(grant.clientCredentialsRequest());
+
+        assertTrue(request.contains("\r\nHost: other.example.com\r\n"), request);
+        assertEquals("grant_type=client_credentials&client_id=other&client_secret=secret&scope=read", body(request));
+    }
+}
@@ -0,0 +1,152 @@
+/*
+Copyright 2022 NCC Group
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    https://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.nccgroup.jwtreauth;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RefreshCoordinatorTest {
+    private static final Duration DEBOUNCE = Duration.ofMillis(100);
+    private static final Duration LONG_TIME = Duration.ofMinutes(1);
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    private final ExecutorService workers = Executors.newCachedThreadPool();
+    private final AtomicInteger refreshes = new AtomicInteger();
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    /**
+     * Helper method to create a coordinator which counts the refreshes it runs.
+     * Each refresh runs on its own thread, like the ones started by the RefreshExecutor.
+     */
+    private RefreshCoordinator coordinator(Supplier<Optional<String>> refresh, Duration debounceDelay, Duration maxHoldTime, int maxHeld) {
+        return new RefreshCoordinator(executor, () -> {
+            refreshes.incrementAndGet();
+            return CompletableFuture.supplyAsync(refresh, workers);
+        }, debounceDelay, maxHoldTime, maxHeld);
+    }
+
+    private static Supplier<Optional<String>> blockUntil(CountDownLatch started, CountDownLatch release, String token) {
+        return () -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return Optional.ofNullable(token);
+        };
+    }
+
+    @Test
+    void aBurstOfTriggersRunsOneRefresh() throws Exception {
+        var coordinator = coordinator(() -> Optional.of("token"), DEBOUNCE, Duration.ZERO, 1);
+
+        var first = coordinator.requestRefresh(false);
+        for (int i = 0; i < 10; i++) {
+            assertSame(first, coordinator.requestRefresh(false));
+        }
+
+        assertEquals(Optional.of("token"), first.get(5, TimeUnit.SECONDS));
+        assertEquals(1, refreshes.get());
+    }
+
+    @Test
+    void triggersWhileInFlightJoinTheRefresh() throws Exception {
+        var started = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        var coordinator = coordinator(blockUntil(started, release, "token"), Duration.ZERO, Duration.ZERO, 1);
+
+        var first = coordinator.requestRefresh(true);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertTrue(coordinator.isRefreshing());
+
+        assertSame(first, coordinator.requestRefresh(true));
+        assertSame(first, coordinator.requestRefresh(false));
+
+        release.countDown();
+        assertEquals(Optional.of("token"), first.get(5, TimeUnit.SECONDS));
+        assertEquals(1, refreshes.get());
+
+        // once it has finished the next trigger starts a new refresh
+        assertNotSame(first, coordinator.requestRefresh(true));
+    }
+
+    @Test
+    void immediateTriggersSkipTheDebounceDelay() throws Exception {
+        var coordinator = coordinator(() -> Optional.of("token"), LONG_TIME, Duration.ZERO, 1);
+
+        var delayed = coordinator.requestRefresh(false);
+        var immediate = coordinator.requestRefresh(true);
+
+        assertSame(delayed, immediate);
+        assertEquals(Optional.of("token"), immediate.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void onlyHoldsRequestsWhenEnabled() {
+        var disabled = coordinator(() -> Optional.of("token"), Duration.ZERO, Duration.ZERO, 1);
+        assertFalse(disabled.isHoldingEnabled());
+        assertFalse(disabled.awaitRefresh());
+        assertEquals(0, refreshes.get());
+
+        var enabled = coordinator(() -> Optional.of("token"), LONG_TIME, Duration.ofSeconds(5), 1);
+        assertTrue(enabled.isHoldingEnabled());
+        assertTrue(enabled.awaitRefresh());
+        assertEquals(1, refreshes.get());
+    }
+
+    @Test
+    void limitsTheNumberOfHeldRequests() throws Exception {
+        var started = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        var coordinator = coordinator(blockUntil(started, release, "token"), Duration.ZERO, Duration.ofSeconds(5), 1);
+
+        var held = new Thread(coordinator::awaitRefresh);
+        held.start();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        // the only permit is taken, so this gives up rather than waiting
+        assertFalse(coordinator.awaitRefresh());
+
+        release.countDown();
+        held.join();
+    }
+
+    @Test
+    void doesntHoldRequestsJustAfterAFailedRefresh() {
+        var coordinator = coordinator(Optional::empty, Duration.ZERO, Duration.ofSeconds(5), 4);
+
+        assertTrue(coordinator.awaitRefresh());
+        assertFalse(coordinator.awaitRefresh());
+        assertEquals(1, refreshes.get());
+    }
+}
@@ -0,0 +1,238 @@
+/*
+Copyright 2022 NCC Group
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    https://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.nccgroup.jwtreauth;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import static com.nccgroup.jwtreauth.RefreshEvent.Type.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class RefreshExecutorTest {
+    private static final Duration TIMEOUT = Duration.ofSeconds(5);
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final List<RefreshEvent> events = new CopyOnWriteArrayList<>();
+    private final AtomicInteger attempts = new AtomicInteger();
+    private RefreshExecutor executor;
+
+    @AfterEach
+    void tearDown() {
+        if (executor != null) executor.shutdown();
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Helper method to create an executor which records its events and counts its attempts.
+     */
+    private RefreshExecutor executor(RefreshExecutor.Attempt attempt, Duration attemptTimeout,
+                                     int maxAttempts, int failureThreshold, Duration openDuration) {
+        executor = new RefreshExecutor(scheduler, commit -> {
+            attempts.incrementAndGet();
+            return attempt.run(commit);
+        }, attemptTimeout, maxAttempts, failureThreshold, openDuration);
+        executor.addListener(events::add);
+
+        return executor;
+    }
+
+    /**
+     * Helper method to create an executor whose attempts commit before they return a token, like the listener's.
+     */
+    private RefreshExecutor executor(Supplier<Optional<String>> attempt, Duration attemptTimeout,
+                                     int maxAttempts, int failureThreshold, Duration openDuration) {
+        return executor((RefreshExecutor.Attempt) commit -> {
+            var token = attempt.get();
+            return token.isPresent() && !commit.getAsBoolean() ? Optional.empty() : token;
+        }, attemptTimeout, maxAttempts, failureThreshold, openDuration);
+    }
+
+    private static Supplier<Optional<String>> failing() {
+        return () -> {
+            throw new RefreshExecutor.RefreshFailedException("no token");
+        };
+    }
+
+    private List<RefreshEvent.Type> types() {
+        return events.stream().map(RefreshEvent::getType).collect(Collectors.toList());
+    }
+
+    private static Optional<String> await(RefreshExecutor executor) throws Exception {
+        return executor.refresh().get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void publishesASuccessfulAttempt() throws Exception {
+        var executor = executor(() -> Optional.of("token"), TIMEOUT, 3, 3, Duration.ofMinutes(1));
+
+        assertEquals(Optional.of("token"), await(executor));
+        assertEquals(List.of(ATTEMPT_STARTED, SUCCEEDED), types());
+    }
+
+    @Test
+    void retriesFailedAttemptsWithGrowingBackoff() throws Exception {
+        var executor = executor(() -> {
+            if (attempts.get() < 3) throw new RefreshExecutor.RefreshFailedException("not yet");
+            return Optional.of("token");
+        }, TIMEOUT, 3, 3, Duration.ofMinutes(1));
+
+        assertEquals(Optional.of("token"), await(executor));
+        assertEquals(3, attempts.get());
+        assertEquals(List.of(
+                ATTEMPT_STARTED, ATTEMPT_FAILED, RETRY_SCHEDULED,
+                ATTEMPT_STARTED, ATTEMPT_FAILED, RETRY_SCHEDULED,
+                ATTEMPT_STARTED, SUCCEEDED
+        ), types());
+
+        // each delay is picked from the upper half of a ceiling which doubles
+        var delays = events.stream()
+                .filter(e -> e.getType() == RETRY_SCHEDULED)
+                .map(e -> e.getDelay().orElseThrow().toMillis())
+                .collect(Collectors.toList());
+        assertTrue(delays.get(0) >= 250 && delays.get(0) <= 500, "first delay " + delays.get(0));
+        assertTrue(delays.get(1) >= 500 && delays.get(1) <= 1000, "second delay " + delays.get(1));
+    }
+
+    @Test
+    void doesntRetryWhenThereIsNothingToDo() throws Exception {
+        var executor = executor(Optional::empty, TIMEOUT, 3, 1, Duration.ofMinutes(1));
+
+        assertEquals(Optional.empty(), await(executor));
+        assertEquals(Optional.empty(), await(executor));
+        assertEquals(2, attempts.get());
+        assertFalse(types().contains(CIRCUIT_OPENED));
+    }
+
+    @Test
+    void timesOutHungAttempts() throws Exception {
+        var executor = executor(() -> {
+            try {
+                Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return Optional.of("late");
+        }, Duration.ofMillis(100), 1, 3, Duration.ofMinutes(1));
+
+        assertEquals(Optional.empty(), await(executor));
+        assertEquals(List.of(ATTEMPT_STARTED, ATTEMPT_FAILED, FAILED), types());
+        assertTrue(events.get(1).getCause().orElseThrow() instanceof TimeoutException);
+    }
+
+    @Test
+    void opensTheCircuitAfterRepeatedFailures() throws Exception {
+        var executor = executor(failing(), TIMEOUT, 1, 2, Duration.ofMinutes(1));
+
+        await(executor);
+        assertFalse(types().contains(CIRCUIT_OPENED));
+        await(executor);
+        assertTrue(types().contains(CIRCUIT_OPENED));
+
+        // while it is open refreshes are skipped without an attempt
+        assertEquals(Optional.empty(), await(executor));
+        assertEquals(2, attempts.get());
+        assertEquals(CIRCUIT_REJECTED, events.get(events.size() - 1).getType());
+    }
+
+    @Test
+    void closesTheCircuitAfterASuccessfulTrial() throws Exception {
+        var fail = new AtomicBoolean(true);
+        var executor = executor(() -> {
+            if (fail.get()) throw new RefreshExecutor.RefreshFailedException("down");
+            return Optional.of("token");
+        }, TIMEOUT, 1, 1, Duration.ofMillis(200));
+
+        await(executor);
+        assertTrue(types().contains(CIRCUIT_OPENED));
+
+        fail.set(false);
+        Thread.sleep(300);
+
+        assertEquals(Optional.of("token"), await(executor));
+        assertEquals(List.of(SUCCEEDED, CIRCUIT_CLOSED), types().subList(types().size() - 2, types().size()));
+    }
+
+    @Test
+    void attemptsWhichTimedOutCantCommit() throws Exception {
+        var committed = new CompletableFuture<Boolean>();
+        var executor = executor((RefreshExecutor.Attempt) commit -> {
+            // like a burp request, the attempt carries on after it has been cancelled
+            var end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(300);
+            while (System.nanoTime() < end) Thread.onSpinWait();
+
+            committed.complete(commit.getAsBoolean());
+            return Optional.of("late");
+        }, Duration.ofMillis(100), 1, 3, Duration.ofMinutes(1));
+
+        assertEquals(Optional.empty(), await(executor));
+        assertFalse(committed.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void committedAttemptsCantTimeOut() throws Exception {
+        var executor = executor((RefreshExecutor.Attempt) commit -> {
+            assertTrue(commit.getAsBoolean());
+
+            // publishing the token takes longer than the timeout
+            var end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(300);
+            while (System.nanoTime() < end) Thread.onSpinWait();
+
+            return Optional.of("token");
+        }, Duration.ofMillis(100), 1, 3, Duration.ofMinutes(1));
+
+        assertEquals(Optional.of("token"), await(executor));
+        assertEquals(List.of(ATTEMPT_STARTED, SUCCEEDED), types());
+    }
+
+    @Test
+    void marksRequestsOnlyWhileTheyAreSent() {
+        var executor = executor(failing(), TIMEOUT, 1, 3, Duration.ofMinutes(1));
+        var request = "POST /token HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+        assertFalse(executor.isSending(request));
+
+        executor.sending(request, () -> {
+            // the listener sees a copy of the bytes, not the same array
+            assertTrue(executor.isSending(request.clone()));
+            assertFalse(executor.isSending("GET / HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1)));
+
+            // a timed out attempt may still be sending the same request as its retry
+            executor.sending(request.clone(), () -> null);
+            assertTrue(executor.isSending(request));
+
+            return null;
+        });
+        assertFalse(executor.isSending(request));
+
+        assertThrows(IllegalStateException.class, () -> executor.sending(request, () -> {
+            throw new IllegalStateException("no response");
+        }));
+        assertFalse(executor.isSending(request));
+    }
+}
@@ -0,0 +1,113 @@
+/*
+Copyright 2022 NCC Group
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    https://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.nccgroup.jwtreauth;
+
+import com.nccgroup.jwtreauth.utils.HeaderTemplate;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RequestRewriterTest {
+    private static final HeaderTemplate TEMPLATE = HeaderTemplate.compile("Authorization", "Bearer ", "tok");
+
+    private static String rewrite(String request, String rules, String... values) {
+        var result = RequestRewriter.rewrite(
+                request.getBytes(StandardCharsets.ISO_8859_1), TEMPLATE, InjectionRules.parse(rules), values
+        );
+
+        return result == null ? null : new String(result, StandardCharsets.ISO_8859_1);
+    }
+
+    @Test
+    void replacesTheAuthHeaderAndAddsRuleHeaders() {
+        var rewritten = rewrite(
+                "GET / HTTP/1.1\r\nAuthorization: Bearer old\r\nX-CSRF: old\r\nHost: a.com\r\n\r\n",
+                "header X-CSRF = json:$.csrf",
+                "new"
+        );
+
+        assertEquals("GET / HTTP/1.1\r\nHost: a.com\r\nAuthorization: Bearer tok\r\nX-CSRF: new\r\n\r\n", rewritten);
+    }
+
+    @Test
+    void returnsTheSameArrayIfNothingChanges() {
+        var request = "GET /?a=1 HTTP/1.1\r\nAuthorization: Bearer tok\r\nX-CSRF: v\r\nCookie: s=v\r\n\r\n"
+                .getBytes(StandardCharsets.ISO_8859_1);
+        var rules = InjectionRules.parse("header X-CSRF = token\ncookie s = token\nquery a = token");
+
+        assertSame(request, RequestRewriter.rewrite(request, TEMPLATE, rules, new String[]{"v", "v", "1"}));
+    }
+
+    @Test
+    void skipsRulesWithoutAValue() {
+        var rewritten = rewrite(
+                "GET / HTTP/1.1\r\nX-CSRF: old\r\n\r\n",
+                "header X-CSRF = json:$.csrf",
+                (String) null
+        );
+
+        assertEquals("GET / HTTP/1.1\r\nX-CSRF: old\r\nAuthorization: Bearer tok\r\n\r\n", rewritten);
+    }
+
+    @Test
+    void replacesAndAddsCookies() {
+        var rules = "cookie session = regex:s=(\\w+)\ncookie csrf = json:$.csrf";
+
+        assertEquals(
+                "GET / HTTP/1.1\r\nCookie: a=1; session=new; b=2; csrf=c\r\nAuthorization: Bearer tok\r\n\r\n",
+                rewrite("GET / HTTP/1.1\r\nCookie: a=1; session=old; b=2\r\n\r\n", rules, "new", "c")
+        );
+        assertEquals(
+                "GET / HTTP/1.1\r\nAuthorization: Bearer tok\r\nCookie: session=new; csrf=c\r\n\r\n",
+                rewrite("GET / HTTP/1.1\r\n\r\n", rules, "new", "c")
+        );
+    }
+
+    @Test
+    void replacesAndAddsQueryParameters() {
+        var rules = "query state = token\nquery next = json:$.next";
+
+        assertEquals(
+                "GET /p?a=1&state=tok&b=2&next=%2Fhome HTTP/1.1\r\nAuthorization: Bearer tok\r\n\r\n",
+                rewrite("GET /p?a=1&state=old&b=2 HTTP/1.1\r\n\r\n", rules, "tok", "/home")
+        );
+        assertEquals(
+                "GET /p?state=tok HTTP/1.1\r\nAuthorization: Bearer tok\r\n\r\n",
+                rewrite("GET /p HTTP/1.1\r\n\r\n", "query state = token", "tok")
+        );
+    }
+
+    @Test
+    void replacesJsonValuesAndFixesContentLength() {
+        var body = "{\"user\": {\"csrf\": 1, \"name\": \"x\"}}";
+        var rewritten = rewrite(
+                "POST / HTTP/1.1\r\nContent-Length: " + body.length() + "\r\n\r\n" + body,
+                "json $.user.csrf = json:$.csrf\njson $.missing = token",
+                "a\"b", "tok"
+        );
+
+        var newBody = "{\"user\": {\"csrf\": \"a\\\"b\", \"name\": \"x\"}}";
+        assertEquals(
+                "POST / HTTP/1.1\r\nContent-Length: " + newBody.length() + "\r\nAuthorization: Bearer tok\r\n\r\n" + newBody,
+                rewritten
+        );
+    }
+
+    @Test
+    void givesUpOnAnIncompleteHeaderBlock() {
+        assertNull(rewrite("GET / HTTP/1.1\r\nHost: a.com\r\n", "header X = token", "tok"));
+    }
+}
@@ -0,0 +1,376 @@
+/*
+Copyright 2022 NCC Group
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    https://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.nccgroup.jwtreauth;
+
+import burp.IBurpExtenderCallbacks;
+import burp.IExtensionHelpers;
+import burp.IHttpRequestResponse;
+import burp.IHttpService;
+import burp.IRequestInfo;
+import com.nccgroup.jwtreauth.utils.HeaderSplicer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Hammers the request path of the TokenListener while the token and the header settings are changed,
+ * checking that every injected header was built from a single snapshot of the state.
+ */
+class TokenListenerStressTest {
+    private static final String REQUEST = "GET /api HTTP/1.1\r\nHost: example.com\r\n\r\n";
+    private static final Pattern INJECTED = Pattern.compile("^(X-Auth-(\\d+)): Bearer-(\\d+) token-(\\d+)$");
+    private static final Pattern REFRESHED = Pattern.compile("^Authorization: Bearer token-(\\d+)$");
+    private static final URL AUTHORIZE_URL = url("https://auth.example.com/token");
+    private static final long RUN_MILLIS = 2000;
+    private static final long MAX_RUN_MILLIS = 20000;
+    private static final int MIN_REFRESHES = 2;
+    private static final int READERS = 4;
+
+    private TokenListener tokenListener;
+    // the number of requests the extension has sent to the authorization URL
+    private final AtomicLong refreshes = new AtomicLong();
+
+    /**
+     * A message which can be rewritten by the listener, like the ones burp passes to it.
+     */
+    private static final class Message implements IHttpRequestResponse {
+        private final IHttpService service;
+        private byte[] request;
+        private byte[] response;
+
+        private Message(IHttpService service, byte[] request, byte[] response) {
+            this.service = service;
+            this.request = request;
+            this.response = response;
+        }
+
+        @Override
+        public byte[] getRequest() {
+            return request;
+        }
+
+        @Override
+        public void setRequest(byte[] message) {
+            request = message;
+        }
+
+        @Override
+        public byte[] getResponse() {
+            return response;
+        }
+
+        @Override
+        public void setResponse(byte[] message) {
+            response = message;
+        }
+
+        @Override
+        public String getComment() {
+            return null;
+        }
+
+        @Override
+        public void setComment(String comment) {
+        }
+
+        @Override
+        public String getHighlight() {
+            return null;
+        }
+
+        @Override
+        public void setHighlight(String color) {
+        }
+
+        @Override
+        public IHttpService getHttpService() {
+            return service;
+        }
+
+        @Override
+        public void setHttpService(IHttpService httpService) {
+        }
+    }
+
+    /**
+     * Helper method to implement a burp interface with the given methods, the rest return their default value.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T stub(Class<T> type, Map<String, Function<Object[], Object>> methods) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            var handler = methods.get(method.getName());
+            if (handler != null) return handler.apply(args);
+
+            var returnType = method.getReturnType();
+            if (returnType == boolean.class) return false;
+            if (returnType == int.class) return 0;
+            if (returnType == long.class) return 0L;
+            if (returnType == short.class) return (short) 0;
+            if (returnType == byte.class) return (byte) 0;
+            return null;
+        });
+    }
+
+    private static URL url(String url) {
+        try {
+            return new URL(url);
+        } catch (MalformedURLException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    private static IHttpService service(String protocol, String host, int port) {
+        return stub(IHttpService.class, Map.of(
+                "getProtocol", _args -> protocol,
+                "getHost", _args -> host,
+                "getPort", _args -> port
+        ));
+    }
+
+    private static IRequestInfo analyze(IHttpService service, byte[] request) {
+        var requestLine = new String(request, 0, Math.max(new String(request, StandardCharsets.ISO_8859_1).indexOf('\r'), 0),
+                StandardCharsets.ISO_8859_1);
+        var path = requestLine.split(" ")[1];
+        var url = url(service.getProtocol() + "://" + service.getHost() + ":" + service.getPort() + path);
+
+        return stub(IRequestInfo.class, Map.of(
+                "getUrl", _args -> url,
+                "getBodyOffset", _args -> HeaderSplicer.findBodyOffset(request)
+        ));
+    }
+
+    /**
+     * Answer a request to the authorization URL with the next token, and like burp,
+     * show the response to the http listener before handing it back to the extension.
+     */
+    private IHttpRequestResponse authorize(IHttpService service, byte[] request) {
+        var generation = refreshes.incrementAndGet();
+        var response = "HTTP/1.1 200 OK\r\n\r\n{\"access_token\": \"token-" + generation + "\"}";
+        var message = new Message(service, request, response.getBytes(StandardCharsets.ISO_8859_1));
+
+        tokenListener.processHttpMessage(IBurpExtenderCallbacks.TOOL_EXTENDER, false, message);
+
+        return message;
+    }
+
+    @BeforeEach
+    void setUp() {
+        var helpers = stub(IExtensionHelpers.class, Map.of(
+                "analyzeRequest", args -> args.length == 2 && args[0] instanceof IHttpService
+                        ? analyze((IHttpService) args[0], (byte[]) args[1])
+                        : analyze(((IHttpRequestResponse) args[0]).getHttpService(), ((IHttpRequestResponse) args[0]).getRequest()),
+                "bytesToString", args -> new String((byte[]) args[0], StandardCharsets.ISO_8859_1),
+                "buildHttpService", args -> args[2] instanceof Boolean
+                        ? service((Boolean) args[2] ? "https" : "http", (String) args[0], (Integer) args[1])
+                        : service((String) args[2], (String) args[0], (Integer) args[1] == -1 ? 443 : (Integer) args[1]),
+                "buildHttpRequest", args -> ("GET " + ((URL) args[0]).getPath() + " HTTP/1.1\r\nHost: "
+                        + ((URL) args[0]).getHost() + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1)
+        ));
+        var callbacks = stub(IBurpExtenderCallbacks.class, Map.of(
+                "getHelpers", _args -> helpers,
+                "makeHttpRequest", args -> authorize((IHttpService) args[0], (byte[]) args[1])
+        ));
+
+        var jwtReauth = new JWTReauth();
+        jwtReauth.registerExtenderCallbacks(callbacks);
+        // like burp, the stub helpers give URLs with an explicit port
+        jwtReauth.getScopeController().addToScope(url("https://example.com:443/"));
+
+        tokenListener = jwtReauth.getTokenListener();
+    }
+
+    @AfterEach
+    void tearDown() {
+        tokenListener.extensionUnloaded();
+    }
+
+    @Test
+    void injectedHeadersAreNeverTorn() throws InterruptedException {
+        var stop = new AtomicBoolean();
+        var failures = new ConcurrentLinkedQueue<String>();
+        var injected = new AtomicLong();
+        var service = service("https", "example.com", 443);
+        var original = REQUEST.getBytes(StandardCharsets.ISO_8859_1);
+
+        // each round changes the header name, then the prefix, then the token, all to the same generation.
+        // changing the header settings stops listening and drops the token, so while listening the
+        // state always holds a single generation, and any mix of generations in a header is a torn read
+        var writer = new Thread(() -> {
+            for (int generation = 0; !stop.get(); generation++) {
+                tokenListener.setHeaderName("X-Auth-" + generation);
+                tokenListener.setHeaderValuePrefix("Bearer-" + generation + " ");
+
+                if (generation % 2 == 0) {
+                    tokenListener.setTokenManual("token-" + generation);
+                } else {
+                    var response = "HTTP/1.1 200 OK\r\n\r\n{\"access_token\": \"token-" + generation + "\"}";
+                    tokenListener.processAuthResponse(
+                            new Message(service("https", "auth.example.com", 443), null, response.getBytes(StandardCharsets.ISO_8859_1)),
+                            true
+                    );
+                }
+
+                tokenListener.setIsListening(true);
+            }
+        });
+
+        var readers = new ArrayList<Thread>();
+        for (int i = 0; i < READERS; i++) {
+            readers.add(new Thread(() -> {
+                var lastGeneration = -1L;
+
+                while (!stop.get()) {
+                    var message = new Message(service, original, null);
+                    tokenListener.processHttpMessage(IBurpExtenderCallbacks.TOOL_REPEATER, true, message);
+
+                    var request = message.getRequest();
+                    if (request == original) continue;
+
+                    var text = new String(request, StandardCharsets.ISO_8859_1);
+                    var expectedStart = REQUEST.substring(0, REQUEST.length() - 2);
+                    if (!text.startsWith(expectedStart) || !text.endsWith("\r\n\r\n")) {
+                        failures.add("Request was rewritten unexpectedly: " + text);
+                        continue;
+                    }
+
+                    var added = text.substring(expectedStart.length(), text.length() - 4);
+                    var m = INJECTED.matcher(added);
+                    if (!m.matches()) {
+                        failures.add("Injected header line is malformed: " + added);
+                        continue;
+                    }
+
+                    if (!m.group(2).equals(m.group(3)) || !m.group(2).equals(m.group(4))) {
+                        failures.add("Injected header mixes generations: " + added);
+                        continue;
+                    }
+
+                    var generation = Long.parseLong(m.group(2));
+                    if (generation < lastGeneration) {
+                        failures.add("Injected header went back from generation " + lastGeneration + " to " + generation);
+                    }
+
+                    lastGeneration = generation;
+                    injected.incrementAndGet();
+                }
+            }));
+        }
+
+        writer.setUncaughtExceptionHandler((thread, e) -> failures.add("Writer threw " + e));
+        writer.start();
+        readers.forEach(reader -> {
+            reader.setUncaughtExceptionHandler((thread, e) -> failures.add("Reader threw " + e));
+            reader.start();
+        });
+
+        Thread.sleep(RUN_MILLIS);
+        stop.set(true);
+
+        writer.join();
+        for (var reader : readers) reader.join();
+
+        assertTrue(failures.isEmpty(), () -> failures.size() + " failures, the first was: " + failures.peek());
+        assertTrue(injected.get() > 0, "No requests had the header injected");
+    }
+
+    @Test
+    void refreshesRaceInjection() throws InterruptedException {
+        var stop = new AtomicBoolean();
+        var failures = new ConcurrentLinkedQueue<String>();
+        var injected = new AtomicLong();
+        var service = service("https", "example.com", 443);
+        var original = REQUEST.getBytes(StandardCharsets.ISO_8859_1);
+
+        // refresh as soon as it is asked for, so the run covers as many refreshes as possible
+        tokenListener.setRefreshDebounceDelay(Duration.ZERO);
+        tokenListener.setAuthorizeURL(AUTHORIZE_URL);
+        tokenListener.setIsListening(true);
+
+        var readers = new ArrayList<Thread>();
+        for (int i = 0; i < READERS; i++) {
+            readers.add(new Thread(() -> {
+                var lastGeneration = -1L;
+
+                while (!stop.get()) {
+                    var message = new Message(service, original, null);
+                    tokenListener.processHttpMessage(IBurpExtenderCallbacks.TOOL_REPEATER, true, message);
+
+                    var request = message.getRequest();
+                    if (request == original) continue;
+
+                    var text = new String(request, StandardCharsets.ISO_8859_1);
+                    var expectedStart = REQUEST.substring(0, REQUEST.length() - 2);
+                    var added = text.startsWith(expectedStart) && text.endsWith("\r\n\r\n")
+                            ? text.substring(expectedStart.length(), text.length() - 4)
+                            : text;
+                    var m = REFRESHED.matcher(added);
+                    if (!m.matches()) {
+                        failures.add("Injected header is malformed: " + added);
+                        continue;
+                    }
+
+                    var generation = Long.parseLong(m.group(1));
+                    if (generation < lastGeneration) {
+                        failures.add("Injected token went back from generation " + lastGeneration + " to " + generation);
+                    } else if (generation > refreshes.get()) {
+                        failures.add("Injected token generation " + generation + " was never sent");
+                    }
+
+                    lastGeneration = generation;
+                    injected.incrementAndGet();
+                }
+            }));
+        }
+
+        readers.forEach(reader -> {
+            reader.setUncaughtExceptionHandler((thread, e) -> failures.add("Reader threw " + e));
+            reader.start();
+        });
+
+        // keep asking for refreshes, each one is sent through the listener and parsed from its response
+        var start = System.currentTimeMillis();
+        while (System.currentTimeMillis() - start < MAX_RUN_MILLIS
+                && (System.currentTimeMillis() - start < RUN_MILLIS || refreshes.get() < MIN_REFRESHES)) {
+            var sent = refreshes.get();
+
+            // a trigger while a refresh is in flight joins it, so keep triggering until another one is sent
+            while (refreshes.get() == sent && System.currentTimeMillis() - start < MAX_RUN_MILLIS) {
+                tokenListener.scheduleTokenRefresh();
+                Thread.sleep(1);
+            }
+        }
+
+        stop.set(true);
+        for (var reader : readers) reader.join();
+
+        assertTrue(failures.isEmpty(), () -> failures.size() + " failures, the first was: " + failures.peek());
+        assertTrue(refreshes.get() >= MIN_REFRESHES, "The token was only refreshed " + refreshes.get() + " times");
+        assertTrue(injected.get() > 0, "No requests had the header injected");
+    }
+}
@@ -0,0 +1,119 @@
+/*
+Copyright 2022 NCC Group
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    https://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.nccgroup.jwtreauth.ui.logging;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LogRingBufferTest {
+    private static final int PRODUCERS = 4;
+    private static final int ENTRIES_PER_PRODUCER = 100_000;
+
+    private static LogEntry entry() {
+        return new LogEntry(System.nanoTime(), LogLevel.Info, "entry", new Object[0]);
+    }
+
+    @Test
+    void rejectsCapacitiesWhichArentPowersOfTwo() {
+        assertThrows(IllegalArgumentException.class, () -> new LogRingBuffer(0));
+        assertThrows(IllegalArgumentException.class, () -> new LogRingBuffer(12));
+    }
+
+    @Test
+    void drainsEntriesInOrder() {
+        var buffer = new LogRingBuffer(4);
+        var entries = List.of(entry(), entry(), entry());
+        entries.forEach(buffer::offer);
+
+        var out = new ArrayList<LogEntry>();
+        assertEquals(3, buffer.drainTo(out));
+        assertEquals(entries, out);
+
+        assertEquals(0, buffer.drainTo(out));
+    }
+
+    @Test
+    void dropsEntriesWhenFullUntilDrained() {
+        var buffer = new LogRingBuffer(2);
+
+        assertTrue(buffer.offer(entry()));
+        assertTrue(buffer.offer(entry()));
+        assertFalse(buffer.offer(entry()));
+        assertFalse(buffer.offer(entry()));
+
+        assertEquals(2, buffer.takeDroppedCount());
+        assertEquals(0, buffer.takeDroppedCount());
+
+        assertEquals(2, buffer.drainTo(new ArrayList<>()));
+        assertTrue(buffer.offer(entry()));
+    }
+
+    @Test
+    void deliversEachEntryOnceInProducerOrder() throws InterruptedException {
+        var buffer = new LogRingBuffer(1024);
+
+        // the entries are created up front so the consumer can tell which producer sent each one
+        var entries = new LogEntry[PRODUCERS][ENTRIES_PER_PRODUCER];
+        var positions = new IdentityHashMap<LogEntry, int[]>();
+        for (int p = 0; p < PRODUCERS; p++) {
+            for (int i = 0; i < ENTRIES_PER_PRODUCER; i++) {
+                entries[p][i] = entry();
+                positions.put(entries[p][i], new int[]{p, i});
+            }
+        }
+
+        var offered = new AtomicLong();
+        var producers = new ArrayList<Thread>();
+        for (int p = 0; p < PRODUCERS; p++) {
+            var producer = entries[p];
+            producers.add(new Thread(() -> {
+                for (var entry : producer) {
+                    if (buffer.offer(entry)) offered.incrementAndGet();
+                }
+            }));
+        }
+        producers.forEach(Thread::start);
+
+        var lastSeen = new int[PRODUCERS];
+        Arrays.fill(lastSeen, -1);
+        var received = 0L;
+        var out = new ArrayList<LogEntry>();
+
+        while (producers.stream().anyMatch(Thread::isAlive) || received < offered.get()) {
+            out.clear();
+            buffer.drainTo(out);
+
+            for (var entry : out) {
+                var position = positions.remove(entry);
+                assertNotNull(position, "An entry was delivered twice");
+                assertTrue(position[1] > lastSeen[position[0]], "A producer's entries were reordered");
+
+                lastSeen[position[0]] = position[1];
+                received++;
+            }
+        }
+
+        for (var producer : producers) producer.join();
+
+        assertEquals(offered.get(), received);
+        assertEquals((long) PRODUCERS * ENTRIES_PER_PRODUCER, received + buffer.takeDroppedCount());
+    }
+}
@@ -0,0 +1,125 @@
+/*
+Copyright 2022 NCC Group
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    https://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.nccgroup.jwtreauth.ui.logging;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.swing.*;
+import javax.swing.event.TableModelEvent;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LogRowSorterTest {
+    private LogTableModel model;
+    private TypeFilter typeFilter;
+    private LogRowSorter sorter;
+    private long time;
+
+    @BeforeEach
+    void setUp() {
+        model = new LogTableModel();
+        typeFilter = new TypeFilter();
+        sorter = new LogRowSorter(model, typeFilter);
+
+        // pass the model's events on the same way a JTable does
+        model.addTableModelListener(e -> {
+            if (e.getType() == TableModelEvent.INSERT) {
+                sorter.rowsInserted(e.getFirstRow(), e.getLastRow());
+            } else if (e.getType() == TableModelEvent.DELETE) {
+                sorter.rowsDeleted(e.getFirstRow(), e.getLastRow());
+            } else {
+                sorter.allRowsChanged();
+            }
+        });
+    }
+
+    private void log(LogLevel level, String... messages) {
+        var entries = new ArrayList<LogEntry>();
+        for (var message : messages) {
+            entries.add(new LogEntry(++time, level, "%s", new Object[]{message}));
+        }
+
+        model.append(entries);
+    }
+
+    private List<String> view() {
+        var messages = new ArrayList<String>();
+        for (int i = 0; i < sorter.getViewRowCount(); i++) {
+            messages.add(model.getMessage(sorter.convertRowIndexToModel(i)));
+        }
+
+        return messages;
+    }
+
+    @Test
+    void filtersAppendedRowsByLevel() {
+        log(LogLevel.Info, "a");
+        log(LogLevel.Debug, "b");
+        log(LogLevel.Error, "c");
+
+        assertEquals(List.of("a", "c"), view());
+        assertEquals(-1, sorter.convertRowIndexToView(1));
+        assertEquals(1, sorter.convertRowIndexToView(2));
+
+        typeFilter.setFilterInclude(LogLevel.Debug, true);
+        typeFilter.setFilterInclude(LogLevel.Info, false);
+        sorter.refilter();
+
+        assertEquals(List.of("b", "c"), view());
+    }
+
+    @Test
+    void mergesAppendedRowsIntoASortedView() {
+        log(LogLevel.Info, "m", "c", "x");
+
+        sorter.setSortKeys(List.of(new RowSorter.SortKey(LogTableModel.MSG_COL, SortOrder.DESCENDING)));
+        assertEquals(List.of("x", "m", "c"), view());
+
+        log(LogLevel.Info, "a", "z", "n");
+        assertEquals(List.of("z", "x", "n", "m", "c", "a"), view());
+
+        for (int row = 0; row < model.getRowCount(); row++) {
+            assertEquals(row, sorter.convertRowIndexToModel(sorter.convertRowIndexToView(row)));
+        }
+
+        sorter.toggleSortOrder(LogTableModel.MSG_COL);
+        assertEquals(List.of("a", "c", "m", "n", "x", "z"), view());
+    }
+
+    @Test
+    void dropsRemovedRowsFromTheView() {
+        log(LogLevel.Info, "a", "b", "c", "d");
+        model.setMaxLogLength(2);
+
+        assertEquals(List.of("c", "d"), view());
+
+        log(LogLevel.Info, "e");
+        assertEquals(List.of("d", "e"), view());
+        assertEquals(0, sorter.convertRowIndexToModel(0));
+    }
+
+    @Test
+    void dropsRemovedRowsFromASortedView() {
+        sorter.setSortKeys(List.of(new RowSorter.SortKey(LogTableModel.MSG_COL, SortOrder.DESCENDING)));
+        model.setMaxLogLength(3);
+
+        log(LogLevel.Info, "b", "a", "c");
+        log(LogLevel.Info, "d");
+
+        assertEquals(List.of("d", "c", "a"), view());
+    }
+}
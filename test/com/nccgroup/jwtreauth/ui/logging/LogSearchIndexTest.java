@@ -0,0 +1,91 @@
+/*
+Copyright 2022 NCC Group
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    https://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.nccgroup.jwtreauth.ui.logging;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LogSearchIndexTest {
+    /**
+     * Helper method to get the trigrams required by a regex as a set.
+     */
+    private static Set<Long> required(String regex) {
+        return Arrays.stream(LogSearchIndex.requiredTrigrams(regex)).boxed().collect(Collectors.toSet());
+    }
+
+    /**
+     * Helper method to get the trigrams of some plain literals, which contain no regex syntax.
+     */
+    private static Set<Long> literals(String... literals) {
+        return Arrays.stream(literals).flatMap(l -> required(l).stream()).collect(Collectors.toSet());
+    }
+
+    @Test
+    void literalsRequireEachOfTheirTrigrams() {
+        assertEquals(3, required("token").size());
+        assertEquals(2, required("aaaaa ").size());
+        assertTrue(required("ab").isEmpty());
+    }
+
+    @Test
+    void regexesWhichMayNotNeedAnyLiteralRequireNothing() {
+        assertTrue(required("token|other").isEmpty());
+        assertTrue(required("(token)").isEmpty());
+        assertTrue(required("[t]oken").isEmpty());
+    }
+
+    @Test
+    void optionalCharactersSplitTheRuns() {
+        assertEquals(literals("colo"), required("colou?r"));
+        assertEquals(literals("abc", "efgh"), required("abcd*efgh"));
+        assertEquals(literals("abc", "efg"), required("abcd{0,2}efg"));
+    }
+
+    @Test
+    void otherMetacharactersSplitTheRuns() {
+        assertEquals(literals("abc", "def"), required("abc+def"));
+        assertEquals(literals("abc", "def"), required("abc.def"));
+        assertEquals(literals("abc"), required("^abc$"));
+    }
+
+    @Test
+    void escapesAreLiteralsOrSplitTheRuns() {
+        assertEquals(literals("a-bc"), required("a\\-bc"));
+        assertEquals(literals("abc", "def"), required("abc\\sdef"));
+        assertEquals(literals("abc"), required("\\dabc\\w"));
+    }
+
+    @Test
+    void escapesWithArgumentsDontLeakIntoTheRuns() {
+        assertEquals(literals("bcd"), required("\\x41bcd"));
+        assertEquals(literals("bcd"), required("\\x{41}bcd"));
+        assertEquals(literals("bcd"), required("\\u0041bcd"));
+        assertEquals(literals("bcd"), required("\\0101bcd"));
+        assertEquals(literals("bcd"), required("\\cAbcd"));
+        assertEquals(literals("bcd"), required("\\p{Lu}bcd"));
+        assertEquals(literals("bcd"), required("\\pLbcd"));
+        assertEquals(literals("bcd"), required("\\k<name>bcd"));
+        assertEquals(literals("bcd"), required("\\12bcd"));
+    }
+
+    @Test
+    void quotedSectionsRequireNothing() {
+        assertTrue(required("\\Qab.cd\\Eabcd").isEmpty());
+    }
+}
@@ -0,0 +1,115 @@
+/*
+Copyright 2022 NCC Group
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    https://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.nccgroup.jwtreauth.ui.logging;
+
+import org.junit.jupiter.api.Test;
+
+import javax.swing.event.TableModelEvent;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LogTableModelTest {
+    private static List<LogEntry> entries(int from, int to) {
+        return IntStream.range(from, to)
+                .mapToObj(i -> new LogEntry(i, LogLevel.values()[i % 3], "message %d", new Object[]{i}))
+                .collect(Collectors.toList());
+    }
+
+    private static List<String> messages(LogTableModel model) {
+        return IntStream.range(0, model.getRowCount())
+                .mapToObj(row -> (String) model.getValueAt(row, LogTableModel.MSG_COL))
+                .collect(Collectors.toList());
+    }
+
+    private static List<String> expected(int from, int to) {
+        return IntStream.range(from, to).mapToObj(i -> "message " + i).collect(Collectors.toList());
+    }
+
+    @Test
+    void readsBackEveryColumn() {
+        var model = new LogTableModel();
+        model.append(entries(0, 3));
+
+        assertEquals(3, model.getRowCount());
+        assertEquals(Instant.ofEpochSecond(0, 2), model.getValueAt(2, LogTableModel.TIME_COL));
+        assertEquals(LogLevel.values()[2], model.getValueAt(2, LogTableModel.TYPE_COL));
+        assertEquals("message 2", model.getValueAt(2, LogTableModel.MSG_COL));
+    }
+
+    @Test
+    void overwritesTheOldestRowsOnceFull() {
+        var model = new LogTableModel();
+        model.setMaxLogLength(5);
+
+        var events = new ArrayList<TableModelEvent>();
+        model.addTableModelListener(events::add);
+
+        model.append(entries(0, 4));
+        model.append(entries(4, 7));
+
+        // the second batch wraps around the end of the buffer
+        assertEquals(expected(2, 7), messages(model));
+
+        assertEquals(3, events.size());
+        assertEquals(TableModelEvent.INSERT, events.get(0).getType());
+        assertEquals(TableModelEvent.DELETE, events.get(1).getType());
+        assertEquals(0, events.get(1).getFirstRow());
+        assertEquals(1, events.get(1).getLastRow());
+        assertEquals(TableModelEvent.INSERT, events.get(2).getType());
+        assertEquals(2, events.get(2).getFirstRow());
+        assertEquals(4, events.get(2).getLastRow());
+    }
+
+    @Test
+    void keepsOnlyTheNewestEntriesOfAnOversizedBatch() {
+        var model = new LogTableModel();
+        model.setMaxLogLength(4);
+
+        model.append(entries(0, 2));
+        model.append(entries(2, 12));
+
+        assertEquals(expected(8, 12), messages(model));
+    }
+
+    @Test
+    void growsPastTheInitialCapacityInOrder() {
+        var model = new LogTableModel();
+        model.setMaxLogLength(3000);
+
+        for (int i = 0; i < 5000; i += 250) {
+            model.append(entries(i, i + 250));
+        }
+
+        assertEquals(expected(2000, 5000), messages(model));
+    }
+
+    @Test
+    void shrinkingKeepsTheNewestRows() {
+        var model = new LogTableModel();
+        model.setMaxLogLength(8);
+        model.append(entries(0, 6));
+        model.append(entries(6, 11));
+
+        model.setMaxLogLength(3);
+        assertEquals(expected(8, 11), messages(model));
+
+        model.append(entries(11, 13));
+        assertEquals(expected(10, 13), messages(model));
+    }
+}
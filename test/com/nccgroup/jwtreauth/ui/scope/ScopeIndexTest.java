@@ -0,0 +1,112 @@
+/*
+Copyright 2022 NCC Group
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    https://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.nccgroup.jwtreauth.ui.scope;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ScopeIndexTest {
+    private static URL url(String url) {
+        try {
+            return new URL(url);
+        } catch (MalformedURLException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    @Test
+    void matchesExactRowsLikeUrlComparison() {
+        var index = new ScopeIndex.Builder().add(false, "https://Example.com/api").build();
+
+        assertTrue(index.inScope(url("https://example.com/api")));
+        assertTrue(index.inScope(url("https://example.com:443/api")));
+        assertFalse(index.inScope(url("https://example.com/api/users")));
+        assertFalse(index.inScope(url("http://example.com/api")));
+    }
+
+    @Test
+    void matchesPrefixRowsOnTheUrlString() {
+        var index = new ScopeIndex.Builder().add(true, "https://example.com/api/").build();
+
+        assertTrue(index.inScope(url("https://example.com/api/users?id=1")));
+        assertFalse(index.inScope(url("https://example.com/apiv2/")));
+        assertFalse(index.inScope(url("https://example.com.evil/api/")));
+    }
+
+    @Test
+    void matchesStrictSubdomainsOfWildcardRows() {
+        var index = new ScopeIndex.Builder()
+                .add(true, "https://*.example.com/")
+                .add(false, "https://*.example.org/login")
+                .build();
+
+        assertTrue(index.inScope(url("https://api.example.com/anything")));
+        assertTrue(index.inScope(url("https://a.b.example.com/")));
+        assertFalse(index.inScope(url("https://example.com/")));
+        assertFalse(index.inScope(url("https://api.example.com:8443/")));
+
+        assertTrue(index.inScope(url("https://www.example.org/login")));
+        assertFalse(index.inScope(url("https://www.example.org/logout")));
+    }
+
+    @Test
+    void rejectsServicesNoRowCanMatch() {
+        var index = new ScopeIndex.Builder()
+                .add(false, "https://example.com/api")
+                .add(true, "http://*.example.org/")
+                .build();
+
+        assertTrue(index.mayBeInScope("https", "EXAMPLE.com", 443));
+        assertFalse(index.mayBeInScope("https", "example.com", 8443));
+        assertFalse(index.mayBeInScope("http", "example.com", 80));
+        assertTrue(index.mayBeInScope("http", "www.example.org", 80));
+        assertFalse(index.mayBeInScope("http", "example.org", 80));
+    }
+
+    @Test
+    void prefixesWithoutACompleteServiceMayMatchAnything() {
+        var partialHost = new ScopeIndex.Builder().add(true, "https://example.co").build();
+        assertTrue(partialHost.mayBeInScope("https", "example.com", 443));
+        assertFalse(partialHost.mayBeInScope("https", "other.com", 443));
+
+        var noScheme = new ScopeIndex.Builder().add(true, "http").build();
+        assertTrue(noScheme.mayBeInScope("https", "other.com", 443));
+        assertTrue(noScheme.inScope(url("https://other.com/")));
+    }
+
+    @Test
+    void comparesInvalidRowsAsStrings() {
+        var index = new ScopeIndex.Builder().add(false, "not a url").build();
+
+        assertFalse(index.inScope(url("https://example.com/")));
+        assertFalse(index.mayBeInScope("https", "example.com", 443));
+    }
+
+    @Test
+    void collectsCookieDomains() {
+        var index = new ScopeIndex.Builder()
+                .add(false, "https://API.example.com/")
+                .add(true, "https://*.example.org/")
+                .add(true, "https://example.ne")
+                .build();
+
+        assertEquals(Set.of("api.example.com", "example.org"), index.getCookieDomains());
+        assertTrue(ScopeIndex.EMPTY.getCookieDomains().isEmpty());
+    }
+}
@@ -0,0 +1,64 @@
+/*
+Copyright 2022 NCC Group
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    https://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.nccgroup.jwtreauth.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ByteCharSequenceTest {
+    private static final byte[] MESSAGE = "HTTP/1.1 200 OK\r\n\r\n{\"access_token\": \"abc\"}".getBytes(StandardCharsets.ISO_8859_1);
+
+    @Test
+    void viewsOnlyItsRange() {
+        var body = new ByteCharSequence(MESSAGE, 19, MESSAGE.length - 19);
+
+        assertEquals(MESSAGE.length - 19, body.length());
+        assertEquals('{', body.charAt(0));
+        assertEquals("{\"access_token\": \"abc\"}", body.toString());
+        assertEquals("access_token", body.subSequence(2, 14).toString());
+    }
+
+    @Test
+    void decodesEachByteAsOneChar() {
+        var bytes = new byte[]{(byte) 0xe9, (byte) 0xff, 0x41};
+        var view = new ByteCharSequence(bytes, 0, bytes.length);
+
+        assertEquals((char) 0xe9, view.charAt(0));
+        assertEquals((char) 0xff, view.charAt(1));
+        assertEquals(new String(bytes, StandardCharsets.ISO_8859_1), view.toString());
+    }
+
+    @Test
+    void regexesRunOverTheView() {
+        var m = Pattern.compile("\"access_token\":\\s?\"([^\"]*)\"").matcher(new ByteCharSequence(MESSAGE, 0, MESSAGE.length));
+
+        assertTrue(m.find());
+        assertEquals("abc", m.group(1));
+    }
+
+    @Test
+    void rejectsRangesOutsideTheView() {
+        assertThrows(IndexOutOfBoundsException.class, () -> new ByteCharSequence(MESSAGE, 1, MESSAGE.length));
+        assertThrows(IndexOutOfBoundsException.class, () -> new ByteCharSequence(MESSAGE, -1, 1));
+
+        var view = new ByteCharSequence(MESSAGE, 4, 4);
+        assertThrows(IndexOutOfBoundsException.class, () -> view.charAt(4));
+        assertThrows(IndexOutOfBoundsException.class, () -> view.subSequence(2, 5));
+        assertThrows(IndexOutOfBoundsException.class, () -> view.subSequence(3, 2));
+    }
+}
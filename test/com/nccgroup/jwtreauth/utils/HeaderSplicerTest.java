@@ -0,0 +1,84 @@
+/*
+Copyright 2022 NCC Group
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    https://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.nccgroup.jwtreauth.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HeaderSplicerTest {
+    private static final HeaderTemplate TEMPLATE = HeaderTemplate.compile("Authorization", "Bearer ", "new");
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static String string(byte[] b) {
+        return new String(b, StandardCharsets.ISO_8859_1);
+    }
+
+    @Test
+    void findsTheEndOfTheHeaderBlock() {
+        assertEquals(29, HeaderSplicer.findHeaderBlockEnd(bytes("GET / HTTP/1.1\r\nHost: a.com\r\n\r\nbody")));
+        assertEquals(27, HeaderSplicer.findHeaderBlockEnd(bytes("GET / HTTP/1.1\nHost: a.com\n\nbody")));
+        assertEquals(-1, HeaderSplicer.findHeaderBlockEnd(bytes("GET / HTTP/1.1\r\nHost: a.com\r\n")));
+    }
+
+    @Test
+    void findsTheBodyOffset() {
+        assertEquals(31, HeaderSplicer.findBodyOffset(bytes("GET / HTTP/1.1\r\nHost: a.com\r\n\r\nbody")));
+        assertEquals(28, HeaderSplicer.findBodyOffset(bytes("GET / HTTP/1.1\nHost: a.com\n\nbody")));
+        assertEquals(-1, HeaderSplicer.findBodyOffset(bytes("GET / HTTP/1.1\r\nHost: a.com")));
+    }
+
+    @Test
+    void findsHeaderValuesIgnoringCase() {
+        var request = bytes("GET / HTTP/1.1\r\nHost: a.com\r\nAUTHORIZATION:   Bearer abc  \r\n\r\nAuthorization: body");
+
+        assertEquals("Bearer abc", HeaderSplicer.findHeaderValue(request, "authorization"));
+        assertNull(HeaderSplicer.findHeaderValue(request, "Cookie"));
+    }
+
+    @Test
+    void replacesMatchingHeadersAndKeepsTheBody() {
+        var request = bytes("POST / HTTP/1.1\r\nauthorization: Bearer old\r\nHost: a.com\r\nAuthorization: Bearer older\r\n\r\n{\"a\":1}");
+
+        var replaced = HeaderSplicer.replaceHeader(request, TEMPLATE);
+
+        assertEquals("POST / HTTP/1.1\r\nHost: a.com\r\nAuthorization: Bearer new\r\n\r\n{\"a\":1}", string(replaced));
+    }
+
+    @Test
+    void leavesHeadersWithADifferentPrefixAlone() {
+        var request = bytes("GET / HTTP/1.1\r\nAuthorization: Basic dXNlcg==\r\n\r\n");
+
+        var replaced = HeaderSplicer.replaceHeader(request, TEMPLATE);
+
+        assertEquals("GET / HTTP/1.1\r\nAuthorization: Basic dXNlcg==\r\nAuthorization: Bearer new\r\n\r\n", string(replaced));
+    }
+
+    @Test
+    void returnsTheSameArrayIfTheHeaderIsAlreadyCorrect() {
+        var request = bytes("GET / HTTP/1.1\r\nAuthorization: Bearer new\r\nHost: a.com\r\n\r\n");
+
+        assertSame(request, HeaderSplicer.replaceHeader(request, TEMPLATE));
+    }
+
+    @Test
+    void givesUpOnAnIncompleteHeaderBlock() {
+        assertNull(HeaderSplicer.replaceHeader(bytes("GET / HTTP/1.1\r\nHost: a.com\r\n"), TEMPLATE));
+    }
+}
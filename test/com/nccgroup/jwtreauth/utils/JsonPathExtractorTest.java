@@ -0,0 +1,82 @@
+/*
+Copyright 2022 NCC Group
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    https://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.nccgroup.jwtreauth.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JsonPathExtractorTest {
+    private static final String DOCUMENT = "{\"data\": {\"skip\": [1, {\"x\": \"}\"}], \"auth\": {\"access_token\": \"a\\\"b\\u0041\","
+            + " \"expires_in\": 3600, \"scopes\": [\"read\", \"write\"], \"odd name\": true}}}";
+
+    private static String extract(String path, String json) {
+        var bytes = json.getBytes(StandardCharsets.UTF_8);
+        return JsonPathExtractor.compile(path).extract(bytes, 0, bytes.length);
+    }
+
+    @Test
+    void extractsNestedStringsUnescaped() {
+        assertEquals("a\"bA", extract("$.data.auth.access_token", DOCUMENT));
+    }
+
+    @Test
+    void extractsOtherValuesAsRawJson() {
+        assertEquals("3600", extract("$.data.auth.expires_in", DOCUMENT));
+        assertEquals("true", extract("$['data'][\"auth\"]['odd name']", DOCUMENT));
+        assertEquals("[\"read\", \"write\"]", extract("$.data.auth.scopes", DOCUMENT));
+    }
+
+    @Test
+    void extractsArrayElements() {
+        assertEquals("write", extract("$.data.auth.scopes[1]", DOCUMENT));
+        assertNull(extract("$.data.auth.scopes[2]", DOCUMENT));
+    }
+
+    @Test
+    void returnsNullForMissingPathsAndBrokenDocuments() {
+        assertNull(extract("$.data.missing", DOCUMENT));
+        assertNull(extract("$.data.auth.access_token", "{\"data\": {\"auth\": "));
+        assertNull(extract("$.a", "[1, 2]"));
+    }
+
+    @Test
+    void onlyScansTheGivenRange() {
+        var bytes = ("xx" + "{\"a\": \"b\"}" + "yy").getBytes(StandardCharsets.UTF_8);
+
+        assertEquals("b", JsonPathExtractor.compile("$.a").extract(bytes, 2, bytes.length - 4));
+    }
+
+    @Test
+    void locatesRawValues() {
+        var json = "{\"a\": {\"b\": \"value\", \"c\": [1, 2]}}";
+        var bytes = json.getBytes(StandardCharsets.UTF_8);
+
+        var string = JsonPathExtractor.compile("$.a.b").locate(bytes, 0, bytes.length);
+        assertEquals("\"value\"", json.substring(string[0], string[1]));
+
+        var array = JsonPathExtractor.compile("$.a.c").locate(bytes, 0, bytes.length);
+        assertEquals("[1, 2]", json.substring(array[0], array[1]));
+
+        assertNull(JsonPathExtractor.compile("$.a.d").locate(bytes, 0, bytes.length));
+    }
+
+    @Test
+    void rejectsInvalidPaths() {
+        assertThrows(IllegalArgumentException.class, () -> JsonPathExtractor.compile("data.token"));
+        assertThrows(IllegalArgumentException.class, () -> JsonPathExtractor.compile("$.data["));
+    }
+}